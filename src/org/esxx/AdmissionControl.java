@@ -0,0 +1,405 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import org.esxx.jmx.AdmissionMXBean;
+
+/** Limits the number of requests that are executing concurrently.
+ *
+ *  Requests that cannot be admitted immediately are put in a bounded
+ *  FIFO queue. A queued request is rejected if the queue is full or
+ *  if it has been waiting longer than its queue deadline, so that
+ *  overload results in fast "503 Service Unavailable" responses
+ *  instead of an ever-growing backlog.
+ *
+ *  Tickets may also belong to a group (an application), in which
+ *  case the number of concurrently executing tickets per group can
+ *  be limited as well.
+ *
+ *  Ticket.admitted() and Ticket.rejected() are always invoked
+ *  without holding any locks.
+ */
+
+public class AdmissionControl {
+
+  public static abstract class Ticket {
+    public Ticket(String group) {
+      this.group = group;
+    }
+
+    public String getGroup() {
+      return group;
+    }
+
+    public boolean isRejected() {
+      return rejectReason != null;
+    }
+
+    public String getRejectReason() {
+      return rejectReason;
+    }
+
+    /** Called when the ticket has been admitted. */
+    protected abstract void admitted();
+
+    /** Called when the ticket has been rejected. */
+    protected abstract void rejected(String reason);
+
+    private String group;
+    private long deadline;
+    private int state = NEW;
+    private volatile String rejectReason;
+  }
+
+  /** Creates a new AdmissionControl.
+   *
+   *  @param max_active      Max number of active tickets, or -1 for no limit.
+   *  @param max_queue       Max number of queued tickets.
+   *  @param queue_timeout   Max time, in milliseconds, that a ticket may be queued.
+   *  @param group_max_active  Max number of active tickets per group,
+   *                           or -1 for no limit.
+   */
+
+  public AdmissionControl(int max_active, int max_queue, long queue_timeout,
+			  int group_max_active) {
+    maxActive      = max_active;
+    maxQueue       = max_queue;
+    queueTimeout   = queue_timeout;
+    groupMaxActive = group_max_active;
+  }
+
+  public synchronized JMXBean getJMXBean() {
+    if (jmxBean == null) {
+      jmxBean = new JMXBean();
+    }
+
+    return jmxBean;
+  }
+
+  /** Admits, queues or rejects a ticket.
+   *
+   *  @param ticket   The ticket to submit.
+   *  @param expires  The absolute time, in milliseconds, when the
+   *                  ticket's workload expires. A queued ticket will
+   *                  be rejected before this time.
+   */
+
+  public void submit(Ticket ticket, long expires) {
+    boolean admit  = false;
+    String  reason = null;
+
+    synchronized (this) {
+      if (ticket.state != NEW) {
+	throw new IllegalStateException("Ticket already submitted");
+      }
+
+      // (Queued tickets are only left waiting if they cannot be
+      // admitted, so it's fair to admit this one directly if possible)
+      if (canAdmit(ticket.group)) {
+	activate(ticket);
+	admit = true;
+      }
+      else if (queue.size() < maxQueue) {
+	long now = System.currentTimeMillis();
+
+	ticket.deadline = Math.min(expires, now + queueTimeout);
+	ticket.state    = QUEUED;
+	queue.add(ticket);
+	peakQueued = Math.max(peakQueued, queue.size());
+      }
+      else {
+	reason = "Too many queued requests";
+	reject(ticket, reason);
+	++rejected;
+      }
+    }
+
+    if (admit) {
+      ticket.admitted();
+    }
+    else if (reason != null) {
+      ticket.rejected(reason);
+    }
+  }
+
+  /** Releases an admitted ticket and admits queued tickets, if possible.
+   *
+   *  It's safe to call this method more than once, and also for
+   *  tickets that were never admitted.
+   *
+   *  @param ticket  The ticket to release.
+   */
+
+  public void release(Ticket ticket) {
+    synchronized (this) {
+      if (ticket.state != ACTIVE) {
+	return;
+      }
+
+      deactivate(ticket);
+      ticket.state = DONE;
+    }
+
+    process(System.currentTimeMillis(), false);
+  }
+
+  /** Rejects an admitted ticket after all, because its work could
+   *  not be started. Its slot is released, and Ticket.rejected() is
+   *  called.
+   *
+   *  @param ticket  The ticket to reject.
+   *  @param reason  Why it was rejected.
+   */
+
+  public void revoke(Ticket ticket, String reason) {
+    synchronized (this) {
+      if (ticket.state != ACTIVE) {
+	return;
+      }
+
+      deactivate(ticket);
+      reject(ticket, reason);
+      --admitted;
+      ++rejected;
+    }
+
+    ticket.rejected(reason);
+    process(System.currentTimeMillis(), false);
+  }
+
+  /** Rejects all queued tickets whose deadline has passed.
+   *
+   *  @param now  The current time, in milliseconds.
+   */
+
+  public void expire(long now) {
+    process(now, true);
+  }
+
+  /** Admits and expires queued tickets.
+   *
+   *  @param now         The current time, in milliseconds.
+   *  @param expire_all  If false, stop as soon as no more tickets can
+   *                     be admitted, instead of looking for expired
+   *                     tickets in the rest of the queue. (expire()
+   *                     will find them.)
+   */
+
+  private void process(long now, boolean expire_all) {
+    List<Ticket> admit  = new ArrayList<Ticket>();
+    List<Ticket> expire = new ArrayList<Ticket>();
+
+    synchronized (this) {
+      for (Iterator<Ticket> i = queue.iterator(); i.hasNext(); ) {
+	if (!expire_all && maxActive != -1 && active >= maxActive) {
+	  // Nothing else can be admitted now, whatever its group
+	  break;
+	}
+
+	Ticket t = i.next();
+
+	if (t.deadline <= now) {
+	  i.remove();
+	  reject(t, "Request timed out in queue");
+	  ++expired;
+	  expire.add(t);
+	}
+	else if (canAdmit(t.group)) {
+	  i.remove();
+	  activate(t);
+	  admit.add(t);
+	}
+      }
+    }
+
+    for (Ticket t : expire) {
+      t.rejected(t.rejectReason);
+    }
+
+    for (Ticket t : admit) {
+      t.admitted();
+    }
+  }
+
+  private boolean canAdmit(String group) {
+    if (maxActive != -1 && active >= maxActive) {
+      return false;
+    }
+
+    if (group != null && groupMaxActive != -1) {
+      Integer count = groupActive.get(group);
+
+      if (count != null && count >= groupMaxActive) {
+	return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void activate(Ticket t) {
+    t.state = ACTIVE;
+    ++active;
+    ++admitted;
+
+    if (t.group != null) {
+      Integer count = groupActive.get(t.group);
+
+      groupActive.put(t.group, count == null ? 1 : count + 1);
+    }
+  }
+
+  private void deactivate(Ticket t) {
+    --active;
+
+    if (t.group != null) {
+      Integer count = groupActive.get(t.group);
+
+      if (count == null || count <= 1) {
+	groupActive.remove(t.group);
+      }
+      else {
+	groupActive.put(t.group, count - 1);
+      }
+    }
+  }
+
+  private void reject(Ticket t, String reason) {
+    t.state        = REJECTED;
+    t.rejectReason = reason;
+  }
+
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  public int getMaxQueue() {
+    return maxQueue;
+  }
+
+  public int getGroupMaxActive() {
+    return groupMaxActive;
+  }
+
+  public synchronized int getActiveCount() {
+    return active;
+  }
+
+  public synchronized int getQueueLength() {
+    return queue.size();
+  }
+
+  public synchronized int getPeakQueueLength() {
+    return peakQueued;
+  }
+
+  public synchronized long getAdmittedCount() {
+    return admitted;
+  }
+
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+  public synchronized long getExpiredCount() {
+    return expired;
+  }
+
+  public synchronized void resetStatistics() {
+    peakQueued = queue.size();
+    admitted   = 0;
+    rejected   = 0;
+    expired    = 0;
+  }
+
+  private class JMXBean
+    extends javax.management.StandardEmitterMBean
+    implements AdmissionMXBean {
+
+    public JMXBean() {
+      super(AdmissionMXBean.class, true,
+	    new javax.management.NotificationBroadcasterSupport());
+    }
+
+    @Override public int getMaxActiveRequests() {
+      return getMaxActive();
+    }
+
+    @Override public int getMaxQueuedRequests() {
+      return getMaxQueue();
+    }
+
+    @Override public int getMaxActiveRequestsPerApplication() {
+      return getGroupMaxActive();
+    }
+
+    @Override public int getActiveRequests() {
+      return getActiveCount();
+    }
+
+    @Override public int getQueuedRequests() {
+      return getQueueLength();
+    }
+
+    @Override public int getPeakQueuedRequests() {
+      return getPeakQueueLength();
+    }
+
+    @Override public long getAdmittedRequests() {
+      return getAdmittedCount();
+    }
+
+    @Override public long getRejectedRequests() {
+      return getRejectedCount();
+    }
+
+    @Override public long getExpiredRequests() {
+      return getExpiredCount();
+    }
+
+    @Override public void resetStatistics() {
+      AdmissionControl.this.resetStatistics();
+    }
+  }
+
+  private static final int NEW      = 0;
+  private static final int QUEUED   = 1;
+  private static final int ACTIVE   = 2;
+  private static final int DONE     = 3;
+  private static final int REJECTED = 4;
+
+  private final int maxActive;
+  private final int maxQueue;
+  private final long queueTimeout;
+  private final int groupMaxActive;
+
+  private LinkedList<Ticket> queue = new LinkedList<Ticket>();
+  private HashMap<String, Integer> groupActive = new HashMap<String, Integer>();
+  private int active;
+  private int peakQueued;
+  private long admitted;
+  private long rejected;
+  private long expired;
+  private JMXBean jmxBean;
+}
@@ -24,12 +24,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import org.esxx.cache.LRUCache;
+import org.esxx.cache.WeightBudget;
 import org.esxx.js.*;
 import org.esxx.util.*;
 import org.mozilla.javascript.Context;
@@ -74,6 +77,8 @@ public class Application
     loadMainFile(cx);
     compileAndInitialize(cx);
     setCurrentLocation(null);
+
+    bulkhead = createBulkhead();
   }
 
   @Override public String toString() {
@@ -107,7 +112,9 @@ public class Application
 
   public synchronized JSLRUCache getPLS(Context cx) {
     if (cache == null) {
-      cache = JSLRUCache.newJSLRUCache(cx, this);
+      // The PLS is shared by all threads executing this application
+      cache = JSLRUCache.newJSLRUCache(cx, this, esxx.getPLSSegments(),
+				       esxx.getPLSMaxBytes());
     }
 
     return cache;
@@ -130,13 +137,83 @@ public class Application
     JSLRUCache cache = tls.caches.get(this);
 
     if (cache == null) {
-      cache = JSLRUCache.newJSLRUCache(cx, this);
+      // No need for more than one segment in a thread-local cache
+      cache = JSLRUCache.newJSLRUCache(cx, this, 1, esxx.getTLSMaxBytes());
       tls.caches.put(this, cache);
     }
 
     return cache;
   }
 
+  /** Returns the WeightBudget shared by this application's esxx.pls
+   *  and esxx.tls caches.
+   *
+   *  @return A WeightBudget, or null if esxx.app.cache_max_bytes is not set.
+   */
+
+  public synchronized WeightBudget getCacheBudget() {
+    if (cacheBudget == null && esxx.getAppCacheMaxBytes() != Long.MAX_VALUE) {
+      cacheBudget = new WeightBudget(esxx.getAppCacheMaxBytes());
+    }
+
+    return cacheBudget;
+  }
+
+  /** Returns the latency histogram for a handler, filter or timer.
+   *
+   *  Handler names may be built from the request URI, so once
+   *  MAX_LATENCY_HISTOGRAMS different keys have been seen, all new
+   *  keys share a single "other" histogram.
+   *
+   *  @param key  The kind of handler, followed by its name.
+   *
+   *  @return A LatencyHistogram. Never null.
+   */
+
+  public LatencyHistogram getLatencyHistogram(String key) {
+    LatencyHistogram histogram = latencies.get(key);
+
+    if (histogram == null) {
+      if (latencies.size() >= MAX_LATENCY_HISTOGRAMS) {
+	key = "other";
+
+	histogram = latencies.get(key);
+
+	if (histogram != null) {
+	  return histogram;
+	}
+      }
+
+      histogram = new LatencyHistogram();
+
+      LatencyHistogram old = latencies.putIfAbsent(key, histogram);
+
+      if (old != null) {
+	histogram = old;
+      }
+    }
+
+    return histogram;
+  }
+
+  public synchronized LatencyJMXBean getLatencyJMXBean() {
+    if (latencyJMXBean == null) {
+      latencyJMXBean = new LatencyJMXBean();
+    }
+
+    return latencyJMXBean;
+  }
+
+  /** Returns this application's private thread pool.
+   *
+   *  @return A Bulkhead, or null if the application uses the
+   *  server's shared thread pool.
+   */
+
+  public Bulkhead getBulkhead() {
+    return bulkhead;
+  }
+
   public static void clearTLS(Context cx) {
     TLS tls = (TLS) cx.getThreadLocal(TLS.class);
 
@@ -221,6 +298,9 @@ public class Application
       String nsuri  = soap_body.getNamespaceURI();
       String method = soap_body.getLocalName();
 
+      long start_nanos = System.nanoTime();
+      ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.HANDLER);
+
       try {
 	result = JS.callJSMethod(object, method, args, "SOAP handler", cx, applicationScope, true);
 
@@ -232,6 +312,10 @@ public class Application
       catch (Exception ex) {
 	result = executeErrorHandler(cx, req, ex);
       }
+      finally {
+	ESXX.Workload.leavePhase(old_phase);
+	getLatencyHistogram("soap " + match.template).recordSince(start_nanos);
+      }
 
       // Automatically add a SOAP-Envelope, if missing. The generated
       // envelope is based on the request envelope.
@@ -297,6 +381,8 @@ public class Application
 	  throws Exception {
 	  JSResponse result;
 	  Object args[] = { req };
+	  long start_nanos = System.nanoTime();
+	  ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.HANDLER);
 
 	  try {
 	    result = wrapResult(cx, JS.callJSMethod(match.handler, args,
@@ -306,13 +392,18 @@ public class Application
 	  catch (Exception ex) {
 	    result = executeErrorHandler(cx, req, ex);
 	  }
+	  finally {
+	    ESXX.Workload.leavePhase(old_phase);
+	    getLatencyHistogram("http " + match.template).recordSince(start_nanos);
+	  }
 
 	  return result;
 	}
       };
 
     if (hasFilters()) {
-      return new FilterFunction(hcb, req, request_method, path_info).execute(cx);
+      return new FilterFunction(hcb, req, getFilterChain(request_method, path_info, match))
+	.execute(cx);
     }
     else {
       return hcb.execute(req);
@@ -366,6 +457,8 @@ public class Application
     String handler = getErrorHandlerFunction();
 
     if (handler != null) {
+      ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.ERROR);
+
       try {
 	Object args[] = { req, Context.javaToJS(cause, applicationScope) };
 
@@ -379,6 +472,9 @@ public class Application
 				ex.getMessage() + "'",
 				ex);
       }
+      finally {
+	ESXX.Workload.leavePhase(old_phase);
+      }
     }
 
     if (result == null || result == Context.getUndefinedValue()) {
@@ -398,6 +494,8 @@ public class Application
     throws Exception {
     JSResponse result;
     Object args[] = { req, next };
+    long start_nanos = System.nanoTime();
+    ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.FILTER);
 
     try {
       result = wrapResult(cx, JS.callJSMethod(filter, args,
@@ -407,22 +505,32 @@ public class Application
     catch (Exception ex) {
       result = executeErrorHandler(cx, req, ex);
     }
+    finally {
+      ESXX.Workload.leavePhase(old_phase);
+
+      // (Includes the time spent in the rest of the filter chain)
+      getLatencyHistogram("filter " + filter).recordSince(start_nanos);
+    }
 
     return result;
   }
 
 
-  public synchronized boolean enter() {
-    if (terminated) {
-      return false;
-    }
+  public boolean enter() {
+    while (true) {
+      int state = enterState.get();
 
-    ++enterCount;
+      if ((state & TERMINATED) != 0) {
+	return false;
+      }
 
-    return true;
+      if (enterState.compareAndSet(state, state + 1)) {
+	return true;
+      }
+    }
   }
 
-  public synchronized boolean terminate(long timeout) {
+  public boolean terminate(long timeout) {
     // Cancel all timers
     for (TimerHandler th : timerHandlers) {
       if (th.future != null) {
@@ -431,41 +539,54 @@ public class Application
     }
 
     // Prevent new requests from enter()-ing
-    terminated = true;
+    int state;
 
-    try {
-      while (enterCount > 0 && timeout > 0) {
-	long t = Math.min(100, timeout);
-	timeout -= t;
-	this.wait(t);
+    do {
+      state = enterState.get();
+    } while (!enterState.compareAndSet(state, state | TERMINATED));
+
+    synchronized (drainLock) {
+      try {
+	while (enterState.get() != TERMINATED && timeout > 0) {
+	  long t = Math.min(100, timeout);
+	  timeout -= t;
+	  drainLock.wait(t);
+	}
+      }
+      catch (InterruptedException ex) {
+	// Preserve status
+	Thread.currentThread().interrupt();
       }
-    }
-    catch (InterruptedException ex) {
-      // Preserve status
-      Thread.currentThread().interrupt();
     }
 
-    return enterCount == 0;
+    return enterState.get() == TERMINATED;
   }
 
-  public synchronized void exit() {
-    if (enterCount == 0) {
-      throw new IllegalStateException("enterCount becomes negative!");
-    }
+  public void exit() {
+    while (true) {
+      int state = enterState.get();
 
-    --enterCount;
-    this.notify();
-  }
+      if ((state & ~TERMINATED) == 0) {
+	throw new IllegalStateException("enterCount becomes negative!");
+      }
 
-  @Override /* Cached */ public synchronized void logUsage(long start_time) {
-    ++invocations;
-    lastAccessed  = System.currentTimeMillis();
+      if (enterState.compareAndSet(state, state - 1)) {
+	if (state - 1 == TERMINATED) {
+	  // The last request has left a terminated application
+	  synchronized (drainLock) {
+	    drainLock.notifyAll();
+	  }
+	}
 
-    if (start_time != 0) {
-      executionTime += (lastAccessed - start_time);
+	return;
+      }
     }
   }
 
+  @Override /* Cached */ public void logUsage(long start_time) {
+    usage.logUsage(start_time);
+  }
+
   public String getAppName() {
     return ident;
   }
@@ -719,7 +840,8 @@ public class Application
 
       XPathSelector xs = xc.compile("//processing-instruction() | " +
 				    "//esxx:esxx/esxx:handlers/esxx:* | " +
-				    "//esxx:esxx/esxx:filters/esxx:filter").load();
+				    "//esxx:esxx/esxx:filters/esxx:filter | " +
+				    "//esxx:esxx/esxx:bulkhead").load();
       xs.setContextItem(esxx.getSaxonDocumentBuilder().wrap(xml));
 
       int esxx_pi_cnt = 0;
@@ -778,6 +900,9 @@ public class Application
 	    gotFilters = true;
 	    handleFilter(e);
 	  }
+	  else if (name.equals("bulkhead")) {
+	    handleBulkhead(e);
+	  }
 	}
       }
     }
@@ -811,6 +936,9 @@ public class Application
       soapMatcher.compile();
       requestMatcher.compile();
       xsltMatcher.compile();
+      filterMatcher.compile();
+      filterChains = new LRUCache<String, String[]>(esxx.getFilterCacheEntries(), 0,
+						    esxx.getFilterCacheSegments());
 
       // Create per-application top-level and global scopes
       applicationScope = new JSGlobal(cx);
@@ -875,8 +1003,10 @@ public class Application
       Runnable r = new Runnable() {
 	    @Override public void run() {
 	      if (th.running.compareAndSet(false, true) /* Do not run handler concurrently */) {
-		esxx.addContextAction(null, new ContextAction() {
+		esxx.addContextAction(null, Application.this, new ContextAction() {
 		      @Override public Object run(Context cx) {
+			long start_nanos = System.nanoTime();
+
 			try{
 			  Object[] args = { new Date() };
 
@@ -889,6 +1019,7 @@ public class Application
 			  return null;
 			}
 			finally {
+			  getLatencyHistogram("timer " + th.handler).recordSince(start_nanos);
 			  th.running.set(false);
 			}
 		      }
@@ -963,6 +1094,53 @@ public class Application
     }
   }
 
+  private void handleBulkhead(Element e) {
+    bulkheadSettings.setProperty("max_threads",   e.getAttributeNS(null, "max-threads").trim());
+    bulkheadSettings.setProperty("max_queue",     e.getAttributeNS(null, "max-queue").trim());
+    bulkheadSettings.setProperty("queue_timeout", e.getAttributeNS(null, "queue-timeout").trim());
+  }
+
+  /** Looks up a bulkhead setting. The esxx.bulkhead.<app>.<name>
+   *  property has the highest priority, followed by the
+   *  &lt;esxx:bulkhead> element and the esxx.bulkhead.<name>
+   *  property.
+   */
+
+  private String getBulkheadSetting(String name, String def) {
+    Properties p = esxx.getSettings();
+    String value = p.getProperty("esxx.bulkhead." + ident + "." + name);
+
+    if (value == null) {
+      value = bulkheadSettings.getProperty(name, "");
+
+      if (value.equals("")) {
+	value = p.getProperty("esxx.bulkhead." + name, def);
+      }
+    }
+
+    return value;
+  }
+
+  private Bulkhead createBulkhead() {
+    try {
+      int max_threads = Integer.parseInt(getBulkheadSetting("max_threads", "-1"));
+
+      if (max_threads <= 0 || esxx.getExecutor() instanceof SingleThreadedExecutor) {
+	return null;
+      }
+
+      int max_queue = Integer.parseInt(getBulkheadSetting("max_queue", "64"));
+      long queue_timeout = (long) (Double.parseDouble(getBulkheadSetting("queue_timeout", "10"))
+				   * 1000);
+
+      return new Bulkhead(max_threads, max_queue, queue_timeout,
+			  esxx.createThreadFactory("ESXX-" + ident + "-"));
+    }
+    catch (NumberFormatException ex) {
+      throw new ESXXException("Invalid bulkhead setting: " + ex.getMessage(), ex);
+    }
+  }
+
   private void handleHTTPHandler(Element e) {
     String method  = e.getAttributeNS(null, "method").trim();
     String uri     = e.getAttributeNS(null, "uri").trim();
@@ -1104,7 +1282,38 @@ public class Application
 			      "should not include parentheses");
     }
 
-    filters.add(new FilterRule(method, uri, handler));
+    filterMatcher.addRequestPattern(method, uri, handler);
+  }
+
+  /** Returns the filters that apply to a request, in the order they
+   *  should be invoked.
+   *
+   *  Chains are cached per route (the method and the handler pattern
+   *  that matched), so that '/users/1' and '/users/2' share an entry.
+   *  Routes where the filters may differ from one URI to another are
+   *  remembered as such, and their filters are matched every time.
+   */
+
+  private String[] getFilterChain(String method, String path_info, RequestMatcher.Match route) {
+    String   key   = method + "\n" + route.route;
+    String[] chain = filterChains.get(key);
+
+    if (chain == null) {
+      if (filterMatcher.isRouteInvariant(method, route)) {
+	chain = filterMatcher.matchAllHandlers(method, path_info);
+      }
+      else {
+	chain = PER_URI_FILTERS;
+      }
+
+      filterChains.set(key, chain, 0);
+    }
+
+    if (chain == PER_URI_FILTERS) {
+      chain = filterMatcher.matchAllHandlers(method, path_info);
+    }
+
+    return chain;
   }
 
   private static class TLS {
@@ -1154,32 +1363,6 @@ public class Application
     public AtomicBoolean running = new AtomicBoolean(false);
   }
 
-  private static class FilterRule {
-    public FilterRule(String method, String uri, String filter) {
-      if (method.isEmpty()) {
-	method = "[^" + SEPARATOR + "]+";
-      }
-
-      if (uri.isEmpty()) {
-	uri = ".*";
-      }
-
-      String regex = "(?:" + method + ")" + SEPARATOR + "(?:" + uri + ")";
-
-      pattern = Pattern.compile(regex);
-      this.filter = filter;
-    }
-
-    public String matches(String method, String uri) {
-      return pattern.matcher(method + SEPARATOR + uri).matches() ? filter : null;
-    }
-
-    private Pattern pattern;
-    private String filter;
-
-    private static char SEPARATOR = '\n';
-  }
-
   public interface HandlerCallback {
     JSResponse execute(JSRequest req)
       throws Exception;
@@ -1190,32 +1373,26 @@ public class Application
 
     private static final long serialVersionUID = -3956216539946083943L;
 
-    public FilterFunction(HandlerCallback handler, JSRequest req,
-			  String method, String path_info) {
+    public FilterFunction(HandlerCallback handler, JSRequest req, String[] chain) {
       super("next", filterMethod, applicationScope);
 
       this.request = req;
       this.handler = handler;
-
-      for (FilterRule r : filters) {
-	String m = r.matches(method, path_info);
-	if (m != null) {
-	  matchingFilters.add(m);
-	}
-      }
+      this.chain   = chain;
     }
 
     public JSResponse execute(Context cx)
       throws Exception {
-      if (matchingFilters.isEmpty()) {
+      if (position == chain.length) {
 	return handler.execute(request);
       }
       else {
-	return executeFilter(cx, request, this, matchingFilters.remove(0));
+	return executeFilter(cx, request, this, chain[position++]);
       }
     }
 
-    private List<String> matchingFilters = new LinkedList<String>();
+    private String[] chain;
+    private int position;
     private JSRequest request;
     private HandlerCallback handler;
   }
@@ -1279,9 +1456,42 @@ public class Application
     }
 
     @Override public org.esxx.jmx.ApplicationStats getStatistics() {
-      synchronized (Application.this) {
-	return new org.esxx.jmx.ApplicationStats(invocations, executionTime,
-						 started, new Date(lastAccessed));
+      return usage.getStatistics(started);
+    }
+
+    @Override public org.esxx.jmx.BulkheadStats getBulkheadStatistics() {
+      return bulkhead != null ? bulkhead.getStatistics() : null;
+    }
+  }
+
+  private class LatencyJMXBean
+    extends javax.management.StandardEmitterMBean
+    implements org.esxx.jmx.LatencyMXBean {
+
+    public LatencyJMXBean() {
+      super(org.esxx.jmx.LatencyMXBean.class, true,
+	    new javax.management.NotificationBroadcasterSupport());
+    }
+
+    @Override public String getFilename() {
+      return Application.this.getFilename();
+    }
+
+    @Override public List<org.esxx.jmx.LatencyStats> getLatencies() {
+      List<org.esxx.jmx.LatencyStats> result = new ArrayList<org.esxx.jmx.LatencyStats>();
+
+      TreeMap<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(latencies);
+
+      for (Map.Entry<String, LatencyHistogram> e : sorted.entrySet()) {
+	result.add(e.getValue().getStatistics(e.getKey()));
+      }
+
+      return result;
+    }
+
+    @Override public void resetLatencies() {
+      for (LatencyHistogram h : latencies.values()) {
+	h.reset();
       }
     }
   }
@@ -1317,6 +1527,7 @@ public class Application
 
   private ESXX esxx;
   private JMXBean jmxBean;
+  private LatencyJMXBean latencyJMXBean;
   private URI baseURI;
   private HashSet<URI> externalURIs = new HashSet<URI>();
 
@@ -1337,15 +1548,22 @@ public class Application
   private JSGlobal applicationScope;
   private JSESXX jsESXX;
   private JSLRUCache cache;
-
-  private int enterCount = 0;
-  private boolean terminated = false;
+  private WeightBudget cacheBudget;
+  private Properties bulkheadSettings = new Properties();
+  private Bulkhead bulkhead;
+
+  // The number of requests executing, plus the TERMINATED flag
+  private AtomicInteger enterState = new AtomicInteger();
+  private Object drainLock = new Object();
+  private static final int TERMINATED = 1 << 30;
+  private static final int MAX_LATENCY_HISTOGRAMS = 256;
+  private static final String[] PER_URI_FILTERS = new String[0];
   private boolean initExecuted = false;
 
-  private long invocations;
-  private long executionTime;
+  private UsageCounter usage = new UsageCounter();
+  private ConcurrentHashMap<String, LatencyHistogram> latencies =
+    new ConcurrentHashMap<String, LatencyHistogram>();
   private Date started;
-  private long lastAccessed;
 
   private Scriptable mainDocument;
   private JSURI mainURI;
@@ -1366,7 +1584,8 @@ public class Application
   private String initHandler;
   private String exitHandler;
 
-  private List<FilterRule> filters = new LinkedList<FilterRule>();
+  private RequestMatcher filterMatcher = new RequestMatcher();
+  private LRUCache<String, String[]> filterChains;
 
   private Collection<TimerHandler> timerHandlers = new LinkedList<TimerHandler>();
 }
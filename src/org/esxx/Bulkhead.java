@@ -0,0 +1,110 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx;
+
+import java.util.concurrent.*;
+import org.esxx.jmx.BulkheadStats;
+
+/** A private thread pool, with its own admission control.
+ *
+ *  Applications that are configured to use a bulkhead execute their
+ *  requests (and everything they fork) in their own thread pool, so
+ *  that a slow application cannot starve all other applications
+ *  running in the same server.
+ */
+
+public class Bulkhead {
+  /** Creates a new Bulkhead.
+   *
+   *  @param max_threads    Max number of concurrently executing requests.
+   *  @param max_queue      Max number of requests waiting to execute.
+   *  @param queue_timeout  Max time, in milliseconds, a request may wait.
+   *  @param tf             The ThreadFactory used to create pool threads.
+   */
+
+  public Bulkhead(int max_threads, int max_queue, long queue_timeout, final ThreadFactory tf) {
+    admissionControl = new AdmissionControl(max_threads, max_queue, queue_timeout, -1);
+
+    // Marks our own threads, so that the rejection handler can tell
+    // them from the front-end's
+    ThreadFactory own_tf = new ThreadFactory() {
+	public Thread newThread(final Runnable r) {
+	  return tf.newThread(new Runnable() {
+	      public void run() {
+		currentBulkhead.set(Bulkhead.this);
+		r.run();
+	      }
+	    });
+	}
+      };
+
+    // If all threads are busy, one of our own threads (forking, most
+    // likely) runs the job itself -- even if the pool has been shut
+    // down, since it will be waiting for the result. Anyone else is
+    // rejected; the caller decides what to do instead.
+    RejectedExecutionHandler rh = new RejectedExecutionHandler() {
+	public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+	  if (currentBulkhead.get() == Bulkhead.this) {
+	    r.run();
+	  }
+	  else {
+	    throw new RejectedExecutionException("Bulkhead is full or has been shut down");
+	  }
+	}
+      };
+
+    // One extra thread, so that a finishing request can hand over to
+    // the next queued one without running it itself.
+    executor = new ThreadPoolExecutor(0, max_threads + 1,
+				      60L, TimeUnit.SECONDS,
+				      new SynchronousQueue<Runnable>(),
+				      own_tf, rh);
+  }
+
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
+  /** Returns the bulkhead's Executor. Only the bulkhead's own
+   *  threads may have a job run in the calling thread; anyone else
+   *  gets a RejectedExecutionException if all threads are busy. */
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public BulkheadStats getStatistics() {
+    AdmissionControl ac = admissionControl;
+
+    return new BulkheadStats(ac.getMaxActive(), ac.getMaxQueue(),
+			     executor.getPoolSize(), ac.getActiveCount(),
+			     ac.getQueueLength(), ac.getPeakQueueLength(),
+			     ac.getAdmittedCount(), ac.getRejectedCount(), ac.getExpiredCount());
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private AdmissionControl admissionControl;
+  private ThreadPoolExecutor executor;
+
+  private static final ThreadLocal<Bulkhead> currentBulkhead = new ThreadLocal<Bulkhead>();
+}
@@ -0,0 +1,365 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.esxx.cache.LRUCache;
+import org.esxx.util.FileRegion;
+import org.esxx.util.IO;
+import org.esxx.util.JS;
+import org.esxx.util.ObjectWeigher;
+
+/** Negotiates and applies gzip/deflate content encoding.
+ *
+ *  Responses are compressed while they are being written, so the
+ *  body is never buffered just because it's compressed. Only
+ *  content types that match one of the configured patterns, and
+ *  bodies that are not known to be shorter than the minimum size,
+ *  are compressed.
+ *
+ *  Streaming results (generators, iterators and writer callbacks)
+ *  are never compressed, since they rely on each chunk reaching the
+ *  client when it's flushed.
+ */
+
+public class Compression {
+  public Compression(Properties p) {
+    enabled  = Boolean.parseBoolean(p.getProperty("esxx.compression.enabled", "true"));
+    minSize  = Long.parseLong(p.getProperty("esxx.compression.min_size", "1024"));
+    level    = Integer.parseInt(p.getProperty("esxx.compression.level", "6"));
+    maxCachedFile = Long.parseLong(p.getProperty("esxx.compression.cache_max_file",
+						 Long.toString(1024 * 1024)));
+
+    for (String type : p.getProperty("esxx.compression.types", DEFAULT_TYPES).split(",")) {
+      type = type.trim().toLowerCase();
+
+      if (!type.isEmpty()) {
+	types.add(type);
+      }
+    }
+
+    long cache_bytes = Long.parseLong(p.getProperty("esxx.compression.cache_max_bytes",
+						    Long.toString(16 * 1024 * 1024)));
+
+    precompressed = new LRUCache<String, byte[]>(1024, 0);
+    precompressed.setWeigher(ObjectWeigher.INSTANCE, cache_bytes, null);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getMinSize() {
+    return minSize;
+  }
+
+  /** Checks if a content type should be compressed.
+   *
+   *  @param content_type  A MIME type, with or without parameters.
+   *
+   *  @return true if the type matches one of the configured patterns.
+   */
+
+  public boolean isCompressible(String content_type) {
+    if (!enabled || content_type == null) {
+      return false;
+    }
+
+    String ct = ESXX.parseMIMEType(content_type, null).toLowerCase();
+
+    for (String type : types) {
+      int star = type.indexOf('*');
+
+      if (star == -1) {
+	if (ct.equals(type)) {
+	  return true;
+	}
+      }
+      else if (ct.length() >= type.length() - 1
+	       && ct.startsWith(type.substring(0, star))
+	       && ct.endsWith(type.substring(star + 1))) {
+	// Handles both "text/*" and "application/*+xml"
+	return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** Chooses a content encoding from an Accept-Encoding header.
+   *
+   *  @param accept_encoding  The Accept-Encoding header, or null.
+   *
+   *  @return "gzip", "deflate" or null.
+   */
+
+  public String negotiate(String accept_encoding) {
+    if (accept_encoding == null) {
+      return null;
+    }
+
+    double gzip = -1, deflate = -1, any = -1;
+
+    for (String coding : accept_encoding.split(",")) {
+      String[] parts = coding.split(";");
+      String   name  = parts[0].trim().toLowerCase();
+      double   q     = 1.0;
+
+      for (int i = 1; i < parts.length; ++i) {
+	String param = parts[i].trim();
+
+	if (param.startsWith("q=")) {
+	  try {
+	    q = Double.parseDouble(param.substring(2).trim());
+	  }
+	  catch (NumberFormatException ex) {
+	    q = 0;
+	  }
+	}
+      }
+
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+	gzip = q;
+      }
+      else if (name.equals("deflate")) {
+	deflate = q;
+      }
+      else if (name.equals("*")) {
+	any = q;
+      }
+    }
+
+    if (gzip == -1)    gzip    = any;
+    if (deflate == -1) deflate = any;
+
+    if (gzip > 0 && gzip >= deflate) {
+      return "gzip";
+    }
+    else if (deflate > 0) {
+      return "deflate";
+    }
+    else {
+      return null;
+    }
+  }
+
+  /** Decides if a response should be compressed and, if so, updates
+   *  its headers accordingly.
+   *
+   *  This method must be called before the headers are sent.
+   *
+   *  @param request   The request.
+   *  @param response  The response.
+   *
+   *  @return The content encoding to apply when writing the body, or
+   *  null if it should be sent as-is.
+   */
+
+  public String prepare(Request request, Response response)
+    throws IOException {
+    int    status = response.getStatus();
+    Object result = JS.toJavaObject(response.getResult());
+
+    if (!enabled || result == null || Response.isStreamingResult(result)
+	|| result instanceof PubSub.EventStream
+	|| status < 200 || status == 204 || status == 206 || status == 304
+	|| response.getHeader("Content-Encoding") != null
+	|| !isCompressible(response.getContentType(true))) {
+      return null;
+    }
+
+    // The response varies even if this particular one is not compressed
+    response.addHeaderValue("Vary", "Accept-Encoding");
+
+    long length = getKnownLength(response);
+
+    if (length != -1 && length < minSize) {
+      return null;
+    }
+
+    String encoding = negotiate(request.getHeader("Accept-Encoding"));
+
+    if (encoding != null) {
+      String etag = response.getHeader("ETag");
+
+      if (etag != null && etag.endsWith("\"") && !etag.endsWith("-" + encoding + "\"")) {
+	// A compressed representation must have its own ETag (static
+	// files already have one, which they have validated against)
+	response.setHeader("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+      }
+
+      response.setHeader("Content-Encoding", encoding);
+      response.removeHeader("Content-Length");
+    }
+
+    return encoding;
+  }
+
+  /** Writes a response body, compressed with the specified encoding.
+   *
+   *  @param response  The response.
+   *  @param encoding  "gzip" or "deflate".
+   *  @param out       The stream to write to. It will not be closed.
+   */
+
+  public void writeResult(Response response, String encoding, OutputStream out)
+    throws IOException {
+    DeflaterOutputStream dos = createStream(encoding, new FilterOutputStream(out) {
+	@Override public void write(byte[] b, int off, int len)
+	  throws IOException {
+	  out.write(b, off, len);
+	}
+
+	@Override public void close()
+	  throws IOException {
+	  flush();
+	}
+      });
+
+    try {
+      response.writeResult(dos);
+    }
+    finally {
+      // Finishes the stream and releases the native Deflater
+      dos.close();
+    }
+  }
+
+  /** Returns a gzipped copy of a static file, from the cache if
+   *  possible.
+   *
+   *  @param file  The file.
+   *
+   *  @return The compressed bytes, or null if the file is too large
+   *  to be cached.
+   */
+
+  public byte[] getPrecompressed(final File file)
+    throws IOException {
+    final long length = file.length();
+
+    if (length > maxCachedFile) {
+      return null;
+    }
+
+    String key = file.getPath() + "\n" + file.lastModified() + "\n" + length;
+
+    try {
+      return precompressed.add(key, new LRUCache.ValueFactory<String, byte[]>() {
+	  public byte[] create(String key, long age)
+	    throws IOException {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream((int) length / 3 + 64);
+	    DeflaterOutputStream  dos = createStream("gzip", bos);
+	    InputStream           is  = new FileInputStream(file);
+
+	    try {
+	      IO.copyStream(is, dos);
+	    }
+	    finally {
+	      is.close();
+	      dos.close();
+	    }
+
+	    return bos.toByteArray();
+	  }
+	}, 0);
+    }
+    catch (IOException ex) {
+      throw ex;
+    }
+    catch (Exception ex) {
+      throw new IOException("Failed to compress " + file + ": " + ex.getMessage(), ex);
+    }
+  }
+
+  private DeflaterOutputStream createStream(String encoding, OutputStream out)
+    throws IOException {
+    if ("gzip".equals(encoding)) {
+      return new GZIPOutputStream(out, BUFFER_SIZE) {
+	{
+	  def.setLevel(level);
+	}
+      };
+    }
+    else {
+      DeflaterOutputStream dos = new DeflaterOutputStream(out, new java.util.zip.Deflater(level),
+							  BUFFER_SIZE) {
+	  @Override public void close()
+	    throws IOException {
+	    super.close();
+	    def.end(); // Not done automatically, since we supplied the Deflater
+	  }
+	};
+
+      return dos;
+    }
+  }
+
+  private static long getKnownLength(Response response)
+    throws IOException {
+    String content_length = response.getHeader("Content-Length");
+
+    if (content_length != null) {
+      try {
+	return Long.parseLong(content_length.trim());
+      }
+      catch (NumberFormatException ignored) {}
+    }
+
+    Object result = response.getResult();
+
+    if (response.isBuffered()) {
+      return response.getContentLength();
+    }
+    else if (result instanceof byte[]) {
+      return ((byte[]) result).length;
+    }
+    else if (result instanceof String) {
+      return ((String) result).length(); // Close enough
+    }
+    else if (result instanceof FileRegion) {
+      return ((FileRegion) result).getLength();
+    }
+    else if (result instanceof File) {
+      return ((File) result).length();
+    }
+    else {
+      return -1;
+    }
+  }
+
+  private static final String DEFAULT_TYPES =
+    "text/*, application/json, application/javascript, application/x-javascript, "
+    + "application/xml, application/*+xml, application/*+json, image/svg+xml";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private boolean enabled;
+  private long minSize;
+  private int level;
+  private long maxCachedFile;
+  private List<String> types = new ArrayList<String>();
+  private LRUCache<String, byte[]> precompressed;
+}
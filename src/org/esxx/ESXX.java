@@ -25,13 +25,15 @@ import java.net.URLConnection;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -40,12 +42,15 @@ import javax.activation.MimetypesFileTypeMap;
 import javax.mail.internet.ContentType;
 import org.esxx.cache.*;
 import org.esxx.jmx.WorkloadInfo;
+import org.esxx.js.JSDeferred;
 import org.esxx.saxon.*;
 import org.esxx.util.SingleThreadedExecutor;
 import org.esxx.util.ThreadSafeExecutor;
+import org.esxx.util.TimingWheel;
 import org.esxx.util.SyslogHandler;
 import org.esxx.util.TrivialFormatter;
 import org.esxx.util.URIResolver;
+import org.esxx.util.VirtualThreads;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.ContextFactory;
@@ -68,6 +73,12 @@ public class ESXX {
 
     public static int THREADS_PER_CORE = 8;
 
+    /** The number of buckets in the Workload deadline timing wheel */
+    public static int WORKLOAD_WHEEL_SIZE = 1024;
+
+    /** The default number of independently locked segments in each cache */
+    public static String DEFAULT_CACHE_SEGMENTS = "16";
+
     private static ESXX esxx;
 
     public static ESXX getInstance() {
@@ -120,25 +131,44 @@ public class ESXX {
 	throw new ESXXException("Illegal esxx.app.include_path value: " + ex.getMessage(), ex);
       }
 
+      plsSegments = Integer.parseInt(p.getProperty("esxx.cache.pls.segments",
+						   DEFAULT_CACHE_SEGMENTS));
+
+      // Byte budgets for esxx.pls, esxx.tls and all of an application's caches
+      plsMaxBytes = Long.parseLong(p.getProperty("esxx.cache.pls.max_bytes",
+						 Long.toString(Long.MAX_VALUE)));
+      tlsMaxBytes = Long.parseLong(p.getProperty("esxx.cache.tls.max_bytes",
+						 Long.toString(Long.MAX_VALUE)));
+      appCacheMaxBytes = Long.parseLong(p.getProperty("esxx.app.cache_max_bytes",
+						      Long.toString(Long.MAX_VALUE)));
+
+      filterCacheEntries = Integer.parseInt(p.getProperty("esxx.cache.filters.max_entries",
+							  "1024"));
+      filterCacheSegments = Integer.parseInt(p.getProperty("esxx.cache.filters.segments",
+							   DEFAULT_CACHE_SEGMENTS));
+
       applicationCache = new LRUCache<String, Application>(
 	Integer.parseInt(p.getProperty("esxx.cache.apps.max_entries", "1024")),
-	(long) (Double.parseDouble(p.getProperty("esxx.cache.apps.max_age", "3600")) * 1000));
+	(long) (Double.parseDouble(p.getProperty("esxx.cache.apps.max_age", "3600")) * 1000),
+	Integer.parseInt(p.getProperty("esxx.cache.apps.segments", DEFAULT_CACHE_SEGMENTS)));
 
       applicationCache.addListener(new ApplicationCacheListener());
 
       stylesheetCache = new LRUCache<String, Stylesheet>(
 	Integer.parseInt(p.getProperty("esxx.cache.xslt.max_entries", "1024")),
-	(long) (Double.parseDouble(p.getProperty("esxx.cache.xslt.max_age", "3600")) * 1000));
+	(long) (Double.parseDouble(p.getProperty("esxx.cache.xslt.max_age", "3600")) * 1000),
+	Integer.parseInt(p.getProperty("esxx.cache.xslt.segments", DEFAULT_CACHE_SEGMENTS)));
 
       stylesheetCache.addListener(new StylesheetCacheListener());
 
       schemaCache = new LRUCache<String, Schema>(
 	Integer.parseInt(p.getProperty("esxx.cache.schema.max_entries", "1024")),
-	(long) (Double.parseDouble(p.getProperty("esxx.cache.schema.max_age", "3600")) * 1000));
+	(long) (Double.parseDouble(p.getProperty("esxx.cache.schema.max_age", "3600")) * 1000),
+	Integer.parseInt(p.getProperty("esxx.cache.schema.segments", DEFAULT_CACHE_SEGMENTS)));
 
       schemaCache.addListener(new SchemaCacheListener());
 
-      parsers = new Parsers();
+      parsers = new Parsers(p);
 
       // Custom CGI-to-HTTP translations
       cgiToHTTPMap = new HashMap<String,String>();
@@ -152,49 +182,92 @@ public class ESXX {
       contextFactory = new ESXXContextFactory();
       ContextFactory.initGlobal(contextFactory);
 
-      // Make sure all threads we create ourselves have a valid Context
-      ThreadFactory tf = new ThreadFactory() {
-	  public Thread newThread(final Runnable r) {
-	    return new Thread("ESXX-Worker-" + cnt.incrementAndGet()) {
-	      @Override public void run() {
-		contextFactory.call(new ContextAction() {
-		    @Override public Object run(Context cx) {
-		      r.run();
-		      return null;
-		    }
-		  });
-	      }
-	    };
-	  }
+      int default_threads = THREADS_PER_CORE * Runtime.getRuntime().availableProcessors();
+      String worker_threads = p.getProperty("esxx.worker_threads",
+					    Integer.toString(default_threads));
+      ThreadFactory virtual_tf = null;
+
+      if (worker_threads.equals("virtual")) {
+	// One (pooled) virtual thread per Workload
+	virtual_tf = VirtualThreads.newThreadFactory("ESXX-Virtual-");
+
+	if (virtual_tf == null) {
+	  getLogger().logp(Level.WARNING, null, null,
+			   "Virtual threads are not supported by this JVM; "
+			   + "using an unbounded thread pool instead");
+	}
 
-	  private java.util.concurrent.atomic.AtomicInteger cnt = new java.util.concurrent.atomic.AtomicInteger();
-	};
+	worker_threads = "-1";
+      }
 
-      int default_threads = THREADS_PER_CORE * Runtime.getRuntime().availableProcessors();
-      int  worker_threads = Integer.parseInt(p.getProperty("esxx.worker_threads", Integer.toString(default_threads)));
+      ThreadFactory tf = createThreadFactory("ESXX-Worker-", virtual_tf);
 
-       if (worker_threads == -1) {
+      int max_threads = Integer.parseInt(worker_threads);
+
+       if (max_threads == -1) {
 	 // Use an unbounded thread pool
 	 executorService = new ThreadSafeExecutor(tf);
       }
-      else if (worker_threads == 0) {
+      else if (max_threads == 0) {
 	executorService = new SingleThreadedExecutor();
       }
       else {
-	executorService = new ThreadSafeExecutor(worker_threads, tf);
+	executorService = new ThreadSafeExecutor(max_threads, tf);
       }
 
-      workloadSet = new PriorityBlockingQueue<Workload>(16, new Comparator<Workload>() {
-	  public int compare(Workload w1, Workload w2) {
-	    return Long.signum(w1.getExpires() - w2.getExpires());
+      workloadSet = Collections.newSetFromMap(new ConcurrentHashMap<Workload, Boolean>());
+
+      // (A zero period would make scheduleAtFixedRate() throw)
+      long timeout_tick = Math.max(1, (long) (Double.parseDouble(p.getProperty("esxx.app.timeout_tick",
+									       "0.1"))
+					       * 1000));
+
+      workloadDeadlines = new TimingWheel<Workload>(timeout_tick, WORKLOAD_WHEEL_SIZE,
+						    new TimingWheel.Expirer<Workload>() {
+	  public void expired(Workload w) {
+	    getLogger().logp(Level.FINE, null, null, "Cancelling workload " + w);
+	    w.cancel();
+	    workloadSet.remove(w);
 	  }
 	});
 
       mxRegister("Workloads", null, new WorkloadJMXBean());
 
+      // Admission control (not used if single-threaded). By default,
+      // leave some worker threads for timers and forks when the thread
+      // pool is bounded.
+      int default_active = max_threads > 0 ? Math.max(1, max_threads * 3 / 4) : -1;
+      int max_active     = Integer.parseInt(p.getProperty("esxx.admission.max_active",
+							  Integer.toString(default_active)));
+      int app_max_active = Integer.parseInt(p.getProperty("esxx.admission.app_max_active",
+							  "-1"));
+
+      // Request phase timing
+      timingHeader = Boolean.parseBoolean(p.getProperty("esxx.timing.header", "false"));
+      timingLog    = Boolean.parseBoolean(p.getProperty("esxx.timing.log", "false"));
+      Workload.phaseTiming = timingHeader || timingLog;
+
+      // (Also used by application bulkheads)
+      retryAfter = (int) Math.ceil(Double.parseDouble(p.getProperty("esxx.admission.retry_after",
+								    "5")));
+
+      if (max_threads != 0 && (max_active != -1 || app_max_active != -1)) {
+	int max_queue = Integer.parseInt(p.getProperty("esxx.admission.max_queue", "1024"));
+	long queue_timeout = (long) (Double.parseDouble(p.getProperty("esxx.admission.queue_timeout",
+								      "10")) * 1000);
+
+	admissionControl = new AdmissionControl(max_active, max_queue, queue_timeout,
+						app_max_active);
+	mxRegister("Admission", null, admissionControl.getJMXBean());
+      }
+
+      compression = new Compression(p);
+      pubSub      = new PubSub(p, executorService, createThreadFactory("ESXX-PubSub-"));
+
       // Add periodic Workload cancellation (if not single-threaded)
-      if (worker_threads != 0) {
-	executorService.scheduleAtFixedRate(new WorkloadCancellator(), 1, 1, TimeUnit.SECONDS);
+      if (max_threads != 0) {
+	executorService.scheduleAtFixedRate(new WorkloadCancellator(),
+					    timeout_tick, timeout_tick, TimeUnit.MILLISECONDS);
       }
 
       // Add periodic check to expunge applications and xslt stylesheets
@@ -253,6 +326,79 @@ public class ESXX {
     }
 
 
+    /** Returns the number of segments to use for an Application's
+     *  esxx.pls cache.
+     *
+     *  @returns The value of the esxx.cache.pls.segments property.
+     */
+
+    public int getPLSSegments() {
+      return plsSegments;
+    }
+
+
+    /** Returns the maximum estimated size of an Application's
+     *  esxx.pls cache.
+     *
+     *  @returns The value of the esxx.cache.pls.max_bytes property.
+     */
+
+    public long getPLSMaxBytes() {
+      return plsMaxBytes;
+    }
+
+
+    /** Returns the maximum estimated size of each esxx.tls cache.
+     *
+     *  @returns The value of the esxx.cache.tls.max_bytes property.
+     */
+
+    public long getTLSMaxBytes() {
+      return tlsMaxBytes;
+    }
+
+
+    /** Returns the maximum estimated size of all of an
+     *  Application's esxx.pls and esxx.tls caches, taken together.
+     *
+     *  @returns The value of the esxx.app.cache_max_bytes property.
+     */
+
+    public long getAppCacheMaxBytes() {
+      return appCacheMaxBytes;
+    }
+
+
+    /** Returns the maximum number of filter chains, per
+     *  Application, to keep resolved.
+     *
+     *  @returns The value of the esxx.cache.filters.max_entries property.
+     */
+
+    public int getFilterCacheEntries() {
+      return filterCacheEntries;
+    }
+
+
+    /** Returns the number of segments to use for an Application's
+     *  filter chain cache.
+     *
+     *  @returns The value of the esxx.cache.filters.segments property.
+     */
+
+    public int getFilterCacheSegments() {
+      return filterCacheSegments;
+    }
+
+    public Compression getCompression() {
+      return compression;
+    }
+
+    public PubSub getPubSub() {
+      return pubSub;
+    }
+
+
     /** Returns the host object
      *
      *  @returns A host object (for instance, a Servlet).
@@ -292,6 +438,45 @@ public class ESXX {
       return executorService;
     }
 
+    /** Returns a ThreadFactory whose threads always have a valid
+     *  Context, so that per-thread state such as esxx.tls survives
+     *  from one job to the next.
+     *
+     *  @param prefix  The thread name prefix.
+     *
+     *  @return A ThreadFactory.
+     */
+
+    public ThreadFactory createThreadFactory(String prefix) {
+      return createThreadFactory(prefix, null);
+    }
+
+    private ThreadFactory createThreadFactory(final String prefix, final ThreadFactory base_tf) {
+      return new ThreadFactory() {
+	public Thread newThread(final Runnable r) {
+	  Runnable cr = new Runnable() {
+	      @Override public void run() {
+		contextFactory.call(new ContextAction() {
+		    @Override public Object run(Context cx) {
+		      r.run();
+		      return null;
+		    }
+		  });
+	      }
+	    };
+
+	  if (base_tf != null) {
+	    return base_tf.newThread(cr);
+	  }
+	  else {
+	    return new Thread(cr, prefix + cnt.incrementAndGet());
+	  }
+	}
+
+	private java.util.concurrent.atomic.AtomicInteger cnt = new java.util.concurrent.atomic.AtomicInteger();
+      };
+    }
+
     /** Adds a Request to the work queue.
      *
      *  Once the request has been executed, Request.finished will be
@@ -304,26 +489,131 @@ public class ESXX {
      */
 
     public Workload addRequest(final Request request, final ResponseHandler rh, int timeout) {
-      return addContextAction(null, new ContextAction() {
+      String   app_key  = null;
+      Bulkhead bulkhead = null;
+
+      if (request.getQuickResponse() == null && request.getScriptFilename() != null) {
+	app_key  = request.getScriptFilename().toString();
+	bulkhead = bulkheads.get(app_key);
+      }
+
+      // Applications with a bulkhead have their own admission control
+      final AdmissionControl ac = (bulkhead != null
+				   ? bulkhead.getAdmissionControl()
+				   : admissionControl);
+      final RequestTicket ticket = ac != null ? new RequestTicket(app_key) : null;
+
+      Workload workload = createWorkload(null, bulkhead != null ? bulkhead.getExecutor() : null,
+					 new ContextAction() {
 	  public Object run(Context cx) {
+	    Workload workload = (Workload) cx.getThreadLocal(Workload.class);
+
 	    try {
-	      Response response = request.getQuickResponse();
+	      Response response;
+
+	      if (ticket != null && ticket.isRejected()) {
+		response = ticket.getRejectResponse();
+	      }
+	      else {
+		response = request.getQuickResponse();
+
+		if (response == null) {
+		  Worker worker = new Worker(ESXX.this);
+
+		  response = worker.handleRequest(cx, request);
+
+		  if (response == null) {
+		    // The handler returned a Deferred. Release this
+		    // thread and respond once it has settled.
+		    completeLater(worker, rh, workload);
+		    return null;
+		  }
+		}
+	      }
 
-	      if (response == null) {
-		response = new Worker(ESXX.this).handleRequest(cx, request);
+	      if (timingHeader && workload != null) {
+		// (The write phase is not known yet, of course)
+		response.setHeader("Server-Timing", workload.getServerTiming());
 	      }
 
-	      return rh.handleResponse(response);
+	      Workload.Phase old_phase = Workload.enterPhase(Workload.Phase.WRITE);
+
+	      try {
+		return rh.handleResponse(response);
+	      }
+	      finally {
+		Workload.leavePhase(old_phase);
+	      }
 	    }
 	    catch (Throwable t) {
 	      return rh.handleError(t);
 	    }
+	    finally {
+	      if (ticket != null) {
+		ac.release(ticket);
+	      }
+
+	      if (timingLog && workload != null) {
+		getLogger().logp(Level.INFO, null, null,
+				 "timing request=\"" + request.getRequestMethod() + " "
+				 + request.getRequestURI() + "\" " + workload.getPhaseTimes());
+	      }
+	    }
 	  }
 	}, request.toString(), timeout);
+
+      if (ticket != null) {
+	ticket.workload = workload;
+	ticket.ac       = ac;
+	ac.submit(ticket, workload.getExpires());
+      }
+      else {
+	startWorkload(workload);
+      }
+
+      return workload;
+    }
+
+    public Workload addContextAction(Context old_cx, ContextAction ca,
+				     String name, int timeout) {
+      return addContextAction(old_cx, null, ca, name, timeout);
+    }
+
+    /** Adds a ContextAction to the work queue.
+     *
+     *  The workload is executed in the application's bulkhead, if it
+     *  has one. If app is null, the workload inherits the thread pool
+     *  of the workload that is executing in old_cx, if any.
+     */
+
+    public Workload addContextAction(Context old_cx, Application app, ContextAction ca,
+				     String name, int timeout) {
+      Bulkhead bulkhead = app != null ? app.getBulkhead() : null;
+      Workload old_work = old_cx != null ? (Workload) old_cx.getThreadLocal(Workload.class) : null;
+      Workload workload = createWorkload(old_work, bulkhead != null ? bulkhead.getExecutor() : null,
+					 ca, name, timeout);
+
+      startWorkload(workload);
+      return workload;
     }
 
-    public Workload addContextAction(Context old_cx, final ContextAction ca,
-				     final String name, int timeout) {
+    /** Adds a ContextAction that continues the work of another
+     *  workload, from a thread that is not executing any workload.
+     *
+     *  The new workload runs in the same thread pool as the parent
+     *  and never outlives it. This is how callbacks of asynchronous
+     *  operations get back into a request.
+     */
+
+    public Workload resumeWorkload(Workload parent, ContextAction ca, String name, int timeout) {
+      Workload workload = createWorkload(parent, null, ca, name, timeout);
+
+      startWorkload(workload);
+      return workload;
+    }
+
+    private Workload createWorkload(Workload old_work, Executor executor, final ContextAction ca,
+				    final String name, int timeout) {
       long expires;
 
       if (timeout == -1) {
@@ -336,21 +626,32 @@ public class ESXX {
 	expires = System.currentTimeMillis() + timeout;
       }
 
-      if (old_cx != null) {
-	Workload old_work = (Workload) old_cx.getThreadLocal(Workload.class);
-
-	if (old_work != null && old_work.getExpires() < expires) {
+      if (old_work != null) {
+	if (old_work.getExpires() < expires) {
 	  // If we're already executing a workload, never extend the timeout
 	  expires = old_work.getExpires();
 	}
+
+	if (executor == null) {
+	  // Forks stay in the same thread pool as their parent
+	  executor = old_work.executor;
+	}
       }
 
       final Workload workload = new Workload(name, expires);
 
+      workload.executor = executor != null ? executor : executorService;
+
+      if (old_work != null) {
+	// Forks and callbacks belong to the same request
+	workload.root = old_work.getRoot();
+      }
+
       workloadSet.add(workload);
+      workload.deadline = workloadDeadlines.schedule(workload, workload.getCancelTime());
 
       synchronized (workload) {
-	workload.future = executorService.submit(new Callable<Object>() {
+	workload.future = new FutureTask<Object>(new Callable<Object>() {
 	    public Object call()
 	      throws Exception {
 
@@ -376,7 +677,12 @@ public class ESXX {
 		      }
 
 		      workload.close();
+		      workload.closeEventStreams();
 		      workloadSet.remove(workload);
+
+		      if (workload.deadline != null) {
+			workload.deadline.cancel();
+		      }
 		      // thread.setName(old_name);
 		    }
 		  }
@@ -388,6 +694,22 @@ public class ESXX {
       return workload;
     }
 
+    private void startWorkload(Workload workload) {
+      try {
+	workload.executor.execute(workload.future);
+      }
+      catch (RejectedExecutionException ex) {
+	if (workload.executor == executorService) {
+	  throw ex;
+	}
+
+	// A busy or shut-down bulkhead, and we're not one of its
+	// threads (a callback or timer, probably). Someone is waiting
+	// for this, so let the main worker pool run it.
+	executorService.execute(workload.future);
+      }
+    }
+
     public static void checkTimeout(Context cx)
       throws ESXXException.TimeOut {
       Workload workload = (Workload) cx.getThreadLocal(Workload.class);
@@ -525,6 +847,60 @@ public class ESXX {
       }
     }
 
+    /** Utility method that canonicalizes the name of an HTTP header,
+     *  so that it matches what cgiToHTTP() would return for the
+     *  corresponding CGI variable.
+     *
+     *  @param name The name of an HTTP header, in any case.
+     *
+     *  @return  The name with every word capitalized, like "User-Agent".
+     */
+
+    public static String canonicalHTTPHeader(String name) {
+      if (name.equalsIgnoreCase("SOAPAction")) {
+	return "SOAPAction";
+      }
+
+      // Most clients already use canonical names, so check first
+      boolean cap = true;
+      int     i;
+
+      for (i = 0; i < name.length(); ++i) {
+	char c = name.charAt(i);
+
+	if (c == '-') {
+	  cap = true;
+	}
+	else if (c != (cap ? Character.toUpperCase(c) : Character.toLowerCase(c))) {
+	  break;
+	}
+	else {
+	  cap = false;
+	}
+      }
+
+      if (i == name.length()) {
+	return name;
+      }
+
+      char[] chars = name.toCharArray();
+
+      cap = true;
+      for (i = 0; i < chars.length; ++i) {
+	char c = chars[i];
+
+	if (c == '-') {
+	  cap = true;
+	}
+	else {
+	  chars[i] = cap ? Character.toUpperCase(c) : Character.toLowerCase(c);
+	  cap = false;
+	}
+      }
+
+      return new String(chars);
+    }
+
     /** Utility method that translates the name of an HTTP header into
      *  the CGI environment variable name.
      *
@@ -663,12 +1039,18 @@ public class ESXX {
     }
 
     public File createTempFile(Context cx)
+      throws IOException {
+      return createTempFile((Workload) cx.getThreadLocal(Workload.class));
+    }
+
+    /** Creates a temporary file that will be deleted when the workload
+     *  finishes (or when the JVM exits, if workload is null). */
+
+    public File createTempFile(Workload workload)
       throws IOException {
       File temp = File.createTempFile(getClass().getName(), null);
       temp.deleteOnExit();
 
-      Workload workload = (Workload) cx.getThreadLocal(Workload.class);
-
       if (workload != null) {
 	workload.addTempFile(temp);
       }
@@ -984,13 +1366,23 @@ public class ESXX {
       implements LRUCache.LRUListener<String, Application> {
 
       public void entryAdded(String key, Application app) {
+	if (app.getBulkhead() != null) {
+	  bulkheads.put(key, app.getBulkhead());
+	}
+
 	mxRegister("Applications", app.getFilename(), app.getJMXBean());
+	mxRegister("ApplicationLatencies", app.getFilename(), app.getLatencyJMXBean());
 	getLogger().logp(Level.CONFIG, null, null, app + " loaded.");
       }
 
       public void entryRemoved(String key, final Application app) {
 	getLogger().logp(Level.CONFIG, null, null, app + " unloading ...");
 
+	if (app.getBulkhead() != null) {
+	  // New requests will use the shared pool until the app is reloaded
+	  bulkheads.remove(key, app.getBulkhead());
+	}
+
 	// In this function, we're single-threaded (per application URI)
 	app.terminate(defaultTimeout);
 
@@ -1014,7 +1406,12 @@ public class ESXX {
 	  ex.printStackTrace();
 	}
 	finally {
+	  if (app.getBulkhead() != null) {
+	    app.getBulkhead().shutdown();
+	  }
+
 	  mxUnregister("Applications", app.getFilename());
+	  mxUnregister("ApplicationLatencies", app.getFilename());
 	  getLogger().logp(Level.CONFIG, null, null, app + " unloaded.");
 	}
       }
@@ -1030,11 +1427,13 @@ public class ESXX {
 
       public void entryAdded(String key, Stylesheet xslt) {
 	mxRegister("Stylesheets", xslt.getFilename(), xslt.getJMXBean());
+	mxRegister("StylesheetLatencies", xslt.getFilename(), xslt.getLatencyJMXBean());
 	getLogger().logp(Level.CONFIG, null, null, xslt + " loaded.");
       }
 
       public void entryRemoved(String key, Stylesheet xslt) {
 	mxUnregister("Stylesheets", xslt.getFilename());
+	mxUnregister("StylesheetLatencies", xslt.getFilename());
 	getLogger().logp(Level.CONFIG, null, null, xslt + " unloaded.");
       }
     }
@@ -1270,44 +1669,338 @@ public class ESXX {
     private class WorkloadCancellator
       implements Runnable {
       @Override public void run() {
-	getLogger().logp(Level.FINEST, null, null, "Checking for workloads to cancel");
+	// (Scheduled at a fixed rate, so we're never called concurrently)
+	long now = System.currentTimeMillis();
 
-	while (true) {
-	  Workload w = workloadSet.peek();
+	workloadDeadlines.advance(now);
 
-	  if (w == null) {
-	    break;
-	  }
+	if (admissionControl != null) {
+	  admissionControl.expire(now);
+	}
 
-	  if (w.shouldCancel()) {
-	    getLogger().logp(Level.FINE, null, null, "Cancelling workload " + w);
-	    w.cancel();
-	    workloadSet.poll();
-	  }
-	  else {
-	    // No need to look futher, since the workloads are
-	    // sorted by expiration time
-	    break;
-	  }
+	for (Bulkhead bulkhead : bulkheads.values()) {
+	  bulkhead.getAdmissionControl().expire(now);
 	}
+      }
+    }
+
+    private class RequestTicket
+      extends AdmissionControl.Ticket {
+      public RequestTicket(String app) {
+	super(app);
+      }
+
+      public Response getRejectResponse() {
+	Map<String, String> headers = new HashMap<String, String>();
+
+	headers.put("Retry-After", Integer.toString(retryAfter));
 
-	getLogger().logp(Level.FINEST, null, null, "Finished checking for workloads to cancel");
+	return new Response(503, "text/plain; charset=UTF-8",
+			    "503 Service Unavailable: " + getRejectReason() + "\n", headers);
+      }
+
+      @Override protected void admitted() {
+	try {
+	  workload.executor.execute(workload.future);
+	}
+	catch (RejectedExecutionException ex) {
+	  // The application's bulkhead is busy (with forks) or has been
+	  // shut down. Never run the request in the front-end's thread.
+	  ac.revoke(this, "Too many active requests");
+	}
       }
+
+      @Override protected void rejected(String reason) {
+	getLogger().logp(Level.FINE, null, null, "Rejecting workload " + workload + ": " + reason);
+
+	// Send the 503 response right away, without involving the
+	// thread pool
+	workload.future.run();
+      }
+
+      private Workload workload;
+      private AdmissionControl ac;
+    }
+
+    /** Sends the response of a request whose handler returned a
+     *  Deferred, once it has been settled or the request has timed
+     *  out, whichever comes first.
+     */
+
+    private void completeLater(final Worker worker, final ResponseHandler rh,
+			       final Workload parent) {
+      final Object[]      outcome = new Object[2];
+      final AtomicBoolean settled = new AtomicBoolean();
+
+      final Workload workload = createWorkload(parent, null, new ContextAction() {
+	  public Object run(Context cx) {
+	    Workload workload = (Workload) cx.getThreadLocal(Workload.class);
+
+	    try {
+	      Response response = worker.completeRequest(cx, (Boolean) outcome[0], outcome[1]);
+
+	      if (timingHeader && workload != null) {
+		response.setHeader("Server-Timing", workload.getServerTiming());
+	      }
+
+	      Workload.Phase old_phase = Workload.enterPhase(Workload.Phase.WRITE);
+
+	      try {
+		return rh.handleResponse(response);
+	      }
+	      finally {
+		Workload.leavePhase(old_phase);
+	      }
+	    }
+	    catch (Throwable t) {
+	      return rh.handleError(t);
+	    }
+	  }
+	}, parent.getName(), 0);
+
+      // Uploaded files and event streams must survive until the
+      // response has been sent
+      parent.transferTempFiles(workload);
+      parent.transferEventStreams(workload);
+
+      final ScheduledFuture<?> timer;
+
+      if (parent.getExpires() != Long.MAX_VALUE) {
+	timer = executorService.schedule(new Runnable() {
+	    public void run() {
+	      if (settled.compareAndSet(false, true)) {
+		outcome[0] = Boolean.FALSE;
+		outcome[1] = new ESXXException.TimeOut();
+		startWorkload(workload);
+	      }
+	    }
+	  }, parent.getExpires() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+      }
+      else {
+	timer = null;
+      }
+
+      worker.getPendingResult().addListener(new JSDeferred.Listener() {
+	  public void settled(boolean fulfilled, Object value) {
+	    if (settled.compareAndSet(false, true)) {
+	      if (timer != null) {
+		timer.cancel(false);
+	      }
+
+	      outcome[0] = fulfilled;
+	      outcome[1] = value;
+	      startWorkload(workload);
+	    }
+	  }
+	});
     }
 
     public static class Workload {
+      private static final long CANCEL_GRACE_TIME = 10000;
+
+      /** The phases of a request that can be timed. Time is
+       *  exclusive: when a phase is entered from another phase (SQL
+       *  from a handler, for instance), the outer phase is paused. */
+      public enum Phase {
+	QUEUE, APP, INIT, FILTER, HANDLER, ERROR, SQL, XSLT, WRITE;
+
+	public String getName() {
+	  return name().toLowerCase();
+	}
+      }
+
       public Workload(String name, long exp) {
 	future    = null;
 	this.name = name;
 	expires   = exp;
+	created   = System.nanoTime();
       }
 
       public synchronized void addTempFile(File file) {
 	tempFiles.add(file);
       }
 
+      /** Hands over this workload's temporary files to another
+       *  workload, which will delete them when it is closed instead. */
+      public synchronized void transferTempFiles(Workload to) {
+	for (File temp : tempFiles) {
+	  to.addTempFile(temp);
+	}
+	tempFiles.clear();
+      }
+
+      /** Registers an event stream that is closed unless it has been
+       *  opened by the time the request's response has been sent. */
+      public void addEventStream(PubSub.EventStream es) {
+	while (true) {
+	  Workload r = getRoot();
+
+	  synchronized (r) {
+	    if (r.root != r) {
+	      continue; // Just transferred
+	    }
+	    else if (r.eventStreamsClosed) {
+	      break; // Already sent
+	    }
+
+	    if (r.eventStreams == null) {
+	      r.eventStreams = new ArrayList<PubSub.EventStream>();
+	    }
+
+	    r.eventStreams.add(es);
+	    return;
+	  }
+	}
+
+	es.closeIfUnopened();
+      }
+
+      /** Makes another workload responsible for sending the response,
+       *  and thereby for this request's event streams. */
+      public void transferEventStreams(Workload to) {
+	Workload r = getRoot();
+
+	synchronized (to) {
+	  to.root = to;
+	}
+
+	synchronized (r) {
+	  r.root = to;
+
+	  if (r.eventStreams != null) {
+	    for (PubSub.EventStream es : r.eventStreams) {
+	      to.addEventStream(es);
+	    }
+
+	    r.eventStreams = null;
+	  }
+	}
+      }
+
+      /** Closes the event streams that have not been opened, if this
+       *  workload is responsible for sending the response. */
+      public void closeEventStreams() {
+	List<PubSub.EventStream> streams;
+
+	synchronized (this) {
+	  if (root != this || eventStreamsClosed) {
+	    return;
+	  }
+
+	  streams            = eventStreams;
+	  eventStreams       = null;
+	  eventStreamsClosed = true;
+	}
+
+	if (streams == null) {
+	  return;
+	}
+
+	for (PubSub.EventStream es : streams) {
+	  es.closeIfUnopened();
+	}
+      }
+
+      private Workload getRoot() {
+	Workload w = this;
+
+	while (true) {
+	  Workload r;
+
+	  synchronized (w) {
+	    r = w.root;
+	  }
+
+	  if (r == w) {
+	    return w;
+	  }
+
+	  w = r;
+	}
+      }
+
       public synchronized void open() {
 	thread = Thread.currentThread();
+
+	if (phaseTiming && phaseNanos[Phase.QUEUE.ordinal()] == 0) {
+	  phaseNanos[Phase.QUEUE.ordinal()] = System.nanoTime() - created;
+	}
+      }
+
+      /** Starts timing a phase of the current thread's workload.
+       *
+       *  @param phase  The phase to enter.
+       *
+       *  @return The phase that was active, which must be passed to
+       *  leavePhase().
+       */
+
+      public static Phase enterPhase(Phase phase) {
+	Workload workload = getCurrentWorkload();
+
+	return workload != null ? workload.switchPhase(phase) : null;
+      }
+
+      public static void leavePhase(Phase old_phase) {
+	Workload workload = getCurrentWorkload();
+
+	if (workload != null) {
+	  workload.switchPhase(old_phase);
+	}
+      }
+
+      private static Workload getCurrentWorkload() {
+	if (!phaseTiming) {
+	  return null;
+	}
+
+	Context cx = Context.getCurrentContext();
+
+	return cx != null ? (Workload) cx.getThreadLocal(Workload.class) : null;
+      }
+
+      private synchronized Phase switchPhase(Phase phase) {
+	long  now = System.nanoTime();
+	Phase old = currentPhase;
+
+	if (old != null) {
+	  phaseNanos[old.ordinal()] += now - phaseStart;
+	}
+
+	currentPhase = phase;
+	phaseStart   = now;
+	return old;
+      }
+
+      /** Returns the phase times as a Server-Timing header value. */
+      public synchronized String getServerTiming() {
+	StringBuilder sb = new StringBuilder();
+
+	for (Phase p : Phase.values()) {
+	  if (phaseNanos[p.ordinal()] != 0) {
+	    sb.append(p.getName()).append(";dur=")
+	      .append(formatMillis(phaseNanos[p.ordinal()])).append(", ");
+	  }
+	}
+
+	return sb.append("total;dur=").append(formatMillis(System.nanoTime() - created)).toString();
+      }
+
+      /** Returns the phase times as space-separated key=value pairs,
+       *  in milliseconds. */
+      public synchronized String getPhaseTimes() {
+	StringBuilder sb = new StringBuilder();
+
+	for (Phase p : Phase.values()) {
+	  sb.append(p.getName()).append('=')
+	    .append(formatMillis(phaseNanos[p.ordinal()])).append(' ');
+	}
+
+	return sb.append("total=").append(formatMillis(System.nanoTime() - created)).toString();
+      }
+
+      private static String formatMillis(long nanos) {
+	return String.format(java.util.Locale.US, "%.3f", nanos / 1e6);
       }
 
       public synchronized void close() {
@@ -1347,11 +2040,18 @@ public class ESXX {
       public boolean shouldCancel() {
 	// 10 seconds grace time. (Note that we cannot add to expires,
 	// since it may be set to Long.MAX_VALUE.)
-	return (System.currentTimeMillis() - 10000) > expires;
+	return (System.currentTimeMillis() - CANCEL_GRACE_TIME) > expires;
+      }
+
+      public long getCancelTime() {
+	return expires == Long.MAX_VALUE ? Long.MAX_VALUE : expires + CANCEL_GRACE_TIME;
       }
 
       public void cancel() {
 	future.cancel(true);
+
+	// The response will never be sent if we had not started yet
+	closeEventStreams();
       }
 
       @Override public String toString() {
@@ -1368,11 +2068,23 @@ public class ESXX {
 	}
       }
 
-      private Future<Object> future;
+      private FutureTask<Object> future;
+      private Executor executor;
+      private TimingWheel<Workload>.Timeout deadline;
       private Thread thread;
       private String name;
       private long expires;
       private Collection<File> tempFiles = new ArrayList<File>();
+      private Workload root = this; // Guarded by this
+      private List<PubSub.EventStream> eventStreams;
+      private boolean eventStreamsClosed;
+      private long created;
+      private Phase currentPhase;
+      private long phaseStart;
+      private long[] phaseNanos = new long[Phase.values().length];
+
+      // Set once, by the ESXX constructor
+      private static volatile boolean phaseTiming;
     }
 
 
@@ -1395,8 +2107,10 @@ public class ESXX {
 
 	for (Workload w : workloads) {
 	  synchronized (w) {
+	    Thread thread = w.getThread();
+
 	    infos.add(new WorkloadInfo(w.getName(), new Date(w.getExpires()),
-				       w.getThread().getName(),
+				       thread != null ? thread.getName() : null,
 				       w.isTimedOut(), w.isDone()));
 	  }
 	}
@@ -1469,6 +2183,12 @@ public class ESXX {
     private boolean addShutdownHook;
     private URI[] includePath;
 
+    private int plsSegments;
+    private int filterCacheEntries;
+    private int filterCacheSegments;
+    private long plsMaxBytes;
+    private long tlsMaxBytes;
+    private long appCacheMaxBytes;
     private LRUCache<String, Application> applicationCache;
     private LRUCache<String, Stylesheet> stylesheetCache;
     private LRUCache<String, Schema> schemaCache;
@@ -1484,8 +2204,16 @@ public class ESXX {
 
     private ContextFactory contextFactory;
     private ScheduledExecutorService executorService;
-    private PriorityBlockingQueue<Workload> workloadSet;
+    private Set<Workload> workloadSet;
+    private TimingWheel<Workload> workloadDeadlines;
     private WorkloadJMXBean workloadJMXBean;
+    private AdmissionControl admissionControl;
+    private Compression compression;
+    private PubSub pubSub;
+    private boolean timingHeader;
+    private boolean timingLog;
+    private ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    private int retryAfter;
     private Logger logger;
 
     private Thread shutdownHook;
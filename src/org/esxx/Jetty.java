@@ -24,25 +24,27 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.lang.management.ManagementFactory;
+import java.util.Properties;
 import org.eclipse.jetty.ajp.Ajp13SocketConnector;
 import org.eclipse.jetty.jmx.MBeanContainer;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.util.log.JavaUtilLog;
 import org.eclipse.jetty.util.log.Log;
-import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.esxx.request.AsyncServletRequest;
 
 public abstract class Jetty {
   public static void runJettyServer(int http_port, int ajp_port, URI fs_root_uri)
     throws Exception {
     ESXX esxx = ESXX.getInstance();
+    Properties p = esxx.getSettings();
 
     Log.setLog(new JavaUtilLog(esxx.getLogger().getName()));
 
-    int timeout = (int) (Double.parseDouble(esxx.getSettings()
-					    .getProperty("esxx.net.timeout", "60"))
+    int timeout = (int) (Double.parseDouble(p.getProperty("esxx.net.timeout", "60"))
 			 * 1000);
 
     Server server = new Server();
@@ -51,6 +53,19 @@ public abstract class Jetty {
       SelectChannelConnector http = new SelectChannelConnector();
       http.setPort(http_port);
       http.setMaxIdleTime(timeout);
+      configureConnector(http, p);
+
+      // (The request and response buffers are pooled per I/O thread by Jetty)
+      http.setRequestHeaderSize(getInt(p, "esxx.net.request_header_size",
+				       http.getRequestHeaderSize()));
+      http.setResponseHeaderSize(getInt(p, "esxx.net.response_header_size",
+					http.getResponseHeaderSize()));
+      http.setRequestBufferSize(getInt(p, "esxx.net.request_buffer_size",
+				       http.getRequestBufferSize()));
+      http.setResponseBufferSize(getInt(p, "esxx.net.response_buffer_size",
+					http.getResponseBufferSize()));
+      http.setUseDirectBuffers(Boolean.parseBoolean(p.getProperty("esxx.net.direct_buffers",
+								  Boolean.toString(http.getUseDirectBuffers()))));
       server.addConnector(http);
     }
 
@@ -58,6 +73,7 @@ public abstract class Jetty {
       Ajp13SocketConnector ajp = new Ajp13SocketConnector();
       ajp.setPort(ajp_port);
       ajp.setMaxIdleTime(timeout);
+      configureConnector(ajp, p);
       server.addConnector(ajp);
     }
 
@@ -66,7 +82,30 @@ public abstract class Jetty {
     server.addBean(cont);
     cont.addBean(Log.getLog());
 
-    server.setThreadPool(new ExecutorThreadPool(esxx.getExecutor()));
+    // Jetty gets its own I/O threads. They only parse requests and
+    // write responses; the JavaScript code is executed by the ESXX
+    // worker threads, since AsyncServletRequest suspends the request
+    // and hands it over to ESXX.addRequest().
+    //
+    // The AJP connector is blocking, however, and keeps one thread per
+    // open connection, idle or not. So reserve enough threads for the
+    // web server's AJP connection pool (esxx.net.ajp_connections,
+    // which should match the number of connections the web server may
+    // open), or the HTTP connector will be starved.
+    int cores = Runtime.getRuntime().availableProcessors();
+    int max_threads = Math.max(16, 4 * cores);
+
+    if (ajp_port != -1) {
+      max_threads += getInt(p, "esxx.net.ajp_connections", 256);
+    }
+
+    QueuedThreadPool io_pool = new QueuedThreadPool();
+    io_pool.setName("ESXX-IO");
+    io_pool.setMinThreads(getInt(p, "esxx.net.min_threads", 2));
+    io_pool.setMaxThreads(getInt(p, "esxx.net.max_threads", max_threads));
+    io_pool.setMaxQueued(getInt(p, "esxx.net.max_queued", io_pool.getMaxQueued()));
+
+    server.setThreadPool(io_pool);
     server.setStopAtShutdown(true);
 
     server.setHandler(new Handler(fs_root_uri));
@@ -75,6 +114,17 @@ public abstract class Jetty {
     server.join();
   }
 
+  private static void configureConnector(AbstractConnector conn, Properties p) {
+    // For SelectChannelConnector, this is also the number of selectors
+    conn.setAcceptors(getInt(p, "esxx.net.acceptors",
+			     Math.max(1, Runtime.getRuntime().availableProcessors() / 4)));
+    conn.setAcceptQueueSize(getInt(p, "esxx.net.accept_queue", conn.getAcceptQueueSize()));
+  }
+
+  private static int getInt(Properties p, String name, int def) {
+    return Integer.parseInt(p.getProperty(name, Integer.toString(def)));
+  }
+
   private static class Handler // Using a non-anonymous class makes the JMX name look better
     extends AbstractHandler {
 
@@ -29,7 +29,6 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.net.URI;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -37,18 +36,15 @@ import java.util.Properties;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.FileCacheImageInputStream;
-import javax.mail.Header;
-import javax.mail.Session;
 import javax.mail.internet.ContentDisposition;
 import javax.mail.internet.ContentType;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.util.SharedFileInputStream;
+import javax.mail.internet.MimeUtility;
 import nu.validator.htmlparser.common.*;
 import nu.validator.htmlparser.dom.*;
 import org.esxx.util.IO;
 import org.esxx.util.JS;
+import org.esxx.util.JSONReader;
+import org.esxx.util.MultipartReader;
 import org.esxx.util.StringUtil;
 import org.json.*;
 import org.mozilla.javascript.*;
@@ -57,10 +53,13 @@ import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 
 class Parsers {
-  public Parsers() {
+  public Parsers(Properties p) {
     Parser schema_parser = new SchemaParser();
 
-    parserMap.put("application/json",                    new JSONParser());
+    // "org.json" selects the old, non-streaming parser
+    boolean legacy_json = "org.json".equals(p.getProperty("esxx.json.parser", "streaming"));
+
+    parserMap.put("application/json",                    new JSONParser(legacy_json));
     parserMap.put("application/octet-stream",            new BinaryParser());
     parserMap.put("application/relax-ng-compact-syntax", schema_parser);
     parserMap.put("application/x-nrl+xml",               schema_parser);
@@ -304,46 +303,43 @@ class Parsers {
 			Collection<URI> external_uris,
 			PrintWriter err, Context cx, Scriptable scope)
       throws Exception {
+      String boundary = ct.getParameter("boundary");
+
+      if (boundary == null) {
+	throw new IOException("Failed to parse form data: No boundary specified");
+      }
+
       try {
-	ESXX esxx = ESXX.getInstance();
-	File temp = esxx.createTempFile(cx);
-
-	// Add required MIME header and stream data to a temporary file
-	FileOutputStream fos = new FileOutputStream(temp);
-	fos.write(("Content-Type: " + ct
-		   + "\r\n\r\n").getBytes());
-	IO.copyStream(is, fos);
-	fos.close();
-
-	Scriptable result = cx.newObject(scope);
-
-	// Parse request entity using SharedFileInputStream to avoid
-	// excessive memory usage.  TODO: Create a custom
-	// SharedFileInputStream that allows us to read the absolute
-	// file offset, and add support in FILEHandler to read URIs
-	// with offset and length parameters. This would avoid the
-	// disk-to-disk copying that happens when extracting the
-	// actual file parts.
-	Session session = Session.getInstance(System.getProperties());
-	MimeMessage message = new MimeMessage(session, new SharedFileInputStream(temp));
-
-	MimeMultipart mmp = (MimeMultipart) message.getContent();
-	for (int i = 0; i < mmp.getCount(); ++i) {
-	  MimeBodyPart mbp = (MimeBodyPart) mmp.getBodyPart(i);
-	  String[] disp = mbp.getHeader("Content-Disposition");
-
-	  if (disp.length == 0) {
+	ESXX            esxx   = ESXX.getInstance();
+	MultipartReader mr     = new MultipartReader(is, boundary);
+	Scriptable      result = cx.newObject(scope);
+
+	// Parse the request entity in a single pass. Each file part is
+	// written straight to its own temporary file, and all other
+	// parts are parsed directly from the stream.
+	for (int i = 0; mr.nextPart(); ++i) {
+	  String disp = mr.getHeader("Content-Disposition");
+
+	  if (disp == null) {
 	    // We don't handle parts with no Content-Disposition header
 	    continue;
 	  }
-	  
-	  String name     = new ContentDisposition(disp[0]).getParameter("name");
-	  String filename = mbp.getFileName();
+
+	  ContentDisposition cd = new ContentDisposition(disp);
+	  String name     = cd.getParameter("name");
+	  String filename = cd.getParameter("filename");
+	  String cte      = mr.getHeader("Content-Transfer-Encoding");
 	  Object value;
 
+	  InputStream part = mr.getPartInputStream();
+
+	  if (cte != null) {
+	    part = MimeUtility.decode(part, cte.trim());
+	  }
+
 	  if (filename == null) {
 	    // Not a file, so parse it
-	    String part_ct = mbp.getContentType();
+	    String part_ct = mr.getHeader("Content-Type");
 
 	    // Default content-type is text/plain for
 	    // multipart/form-data parts
@@ -351,26 +347,30 @@ class Parsers {
 	      part_ct = "text/plain";
 	    }
 
-	    value = esxx.parseStream(part_ct, mbp.getInputStream(), temp.toURI(),
+	    value = esxx.parseStream(part_ct, part, is_uri,
 				     null, err, cx, scope);
 	    value = Context.javaToJS(value, scope);
 	  }
 	  else {
 	    // Create a new temporary file and create a description as value.
-	    temp = esxx.createTempFile(cx);
-	    fos = new FileOutputStream(temp);
-	    IO.copyStream(mbp.getInputStream(), fos);
-	    fos.close();
-	    
+	    File temp = esxx.createTempFile(cx);
+	    FileOutputStream fos = new FileOutputStream(temp);
+
+	    try {
+	      IO.copyStream(part, fos);
+	    }
+	    finally {
+	      fos.close();
+	    }
+
 	    Scriptable descr = cx.newObject(scope);
 	    descr.put("uri",    descr, temp.toURI().toString());
 	    descr.put("name",   descr, filename);
 	    descr.put("length", descr, temp.length());
 
 	    Scriptable headers = cx.newObject(scope);
-	    for (Enumeration<?> e = mbp.getAllHeaders(); e.hasMoreElements();) {
-	      Header hdr = (Header) e.nextElement();
-	      headers.put(hdr.getName(), headers, hdr.getValue());
+	    for (String[] hdr : mr.getHeaders()) {
+	      headers.put(hdr[0], headers, hdr[1]);
 	    }
 	    descr.put("headers", descr, headers);
 
@@ -387,24 +387,40 @@ class Parsers {
 
 	return result;
       }
-      catch (ClassCastException ex) {
-	throw new IOException("Failed to parse form data: " + ex.getMessage(), ex);
-      }
       catch (javax.mail.MessagingException ex) {
 	throw new IOException("Failed to parse form data: " + ex.getMessage(), ex);
       }
     }
   }
 
-  /** A Parser that parses JSON and returns a JavaScript Array or Object. */
+  /** A Parser that parses JSON and returns a JS Object or Array.
+   *
+   *  The default parser streams the input and builds the JS objects
+   *  in a single pass. The legacy parser reads everything into a
+   *  String, parses it with org.json and then converts the result. */
+
   private static class JSONParser
     implements Parser {
+    public JSONParser(boolean legacy) {
+      this.legacy = legacy;
+    }
+
     public Object parse(ContentType ct, InputStream is, URI is_uri,
 			Collection<URI> external_uris,
 			PrintWriter err, Context cx, Scriptable scope)
       throws IOException {
       String cs = getParameter(ct, "charset", "UTF-8");
 
+      if (!legacy) {
+	Object result = new JSONReader(new InputStreamReader(is, cs), cx, scope).parse();
+
+	if (!(result instanceof Scriptable)) {
+	  throw new IOException("Not a JSON Array or Object");
+	}
+
+	return result;
+      }
+
       ByteArrayOutputStream bos = new ByteArrayOutputStream();
       IO.copyStream(is, bos);
 
@@ -466,6 +482,8 @@ class Parsers {
 
       return res;
     }
+
+    private boolean legacy;
   }
 
   /** A Parser that parses emails and returns an E4X XML Node. */
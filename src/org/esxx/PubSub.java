@@ -0,0 +1,542 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.internet.ContentType;
+import org.esxx.js.JSDeferred;
+
+/** A publish/subscribe hub for server push.
+ *
+ *  There are two kinds of subscribers: event streams, which send
+ *  every message as a text/event-stream (Server-Sent Events) frame
+ *  until the client goes away, and pollers, which resolve a Deferred
+ *  with the next message (long polling).
+ *
+ *  There is a single hub per server, so topic names must be unique
+ *  across applications; the esxx object prefixes them with the
+ *  application's filename.
+ *
+ *  Neither of them holds a thread or a Context while idle. Frames
+ *  are queued per event stream and written by a small pool of writer
+ *  threads (esxx.pubsub.writer_threads), never by the publisher.
+ *
+ *  The writes themselves block, so a client that stops reading ties
+ *  up a writer thread, and thereby delays other event streams, until
+ *  it's disconnected. That happens when a write has been blocked for
+ *  esxx.pubsub.write_timeout seconds, or when more than
+ *  esxx.pubsub.max_queued bytes are waiting to be sent to it.
+ */
+
+public class PubSub {
+  public PubSub(Properties p, ScheduledExecutorService executor, ThreadFactory tf) {
+    this.executor = executor;
+
+    maxQueued = Integer.parseInt(p.getProperty("esxx.pubsub.max_queued", "262144"));
+
+    int cores   = Runtime.getRuntime().availableProcessors();
+    int writers = Integer.parseInt(p.getProperty("esxx.pubsub.writer_threads",
+						 Integer.toString(Math.max(4, 2 * cores))));
+
+    // A fixed number of threads and an unbounded queue, since each
+    // event stream is queued at most once
+    writer = new ThreadPoolExecutor(writers, writers, 60L, TimeUnit.SECONDS,
+				    new LinkedBlockingQueue<Runnable>(), tf);
+    writer.allowCoreThreadTimeOut(true);
+
+    writeTimeout = (long) (Double.parseDouble(p.getProperty("esxx.pubsub.write_timeout", "10"))
+			   * 1000);
+
+    if (writeTimeout > 0) {
+      executor.scheduleWithFixedDelay(new Runnable() {
+	  public void run() {
+	    long now = System.currentTimeMillis();
+
+	    for (EventStream es : writingStreams) {
+	      es.abortIfStalled(now);
+	    }
+	  }
+	}, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    long heartbeat = (long) (Double.parseDouble(p.getProperty("esxx.pubsub.heartbeat", "15"))
+			     * 1000);
+
+    if (heartbeat > 0) {
+      // Keeps proxies from closing idle streams and detects clients
+      // that have gone away
+      executor.scheduleWithFixedDelay(new Runnable() {
+	  public void run() {
+	    for (EventStream es : eventStreams) {
+	      es.enqueue(HEARTBEAT);
+	    }
+	  }
+	}, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Publishes a message.
+   *
+   *  @param topic  The topic to publish to.
+   *  @param event  The SSE event type, or null for plain messages.
+   *  @param data   The message. Strings are sent as-is, other
+   *                objects are serialized as by Response.
+   *
+   *  @return The number of subscribers that received the message.
+   */
+
+  public int publish(String topic, String event, Object data) {
+    Set<Subscriber> subscribers = topics.get(topic);
+
+    if (subscribers == null) {
+      return 0;
+    }
+
+    Message message = new Message(nextID.incrementAndGet(), event, data);
+    int     count   = 0;
+
+    for (Subscriber s : subscribers) {
+      if (s.deliver(message)) {
+	++count;
+      }
+    }
+
+    return count;
+  }
+
+  /** Creates an event stream that subscribes to one or more topics.
+   *
+   *  Messages are queued until the stream has been opened by the
+   *  request handler that sends the response. The caller should
+   *  register it with the request's workload, which closes it if the
+   *  response turns out to be something else.
+   */
+
+  public EventStream createEventStream(String... topic_names) {
+    EventStream es = new EventStream(topic_names);
+
+    eventStreams.add(es);
+    subscribe(es);
+    return es;
+  }
+
+  /** Resolves a Deferred with the data of the next message
+   *  published to a topic.
+   *
+   *  @param topic       The topic.
+   *  @param deferred    The Deferred to resolve.
+   *  @param timeout_ms  If no message has arrived within this time,
+   *                     the Deferred is resolved with null. -1 means
+   *                     no timeout.
+   */
+
+  public void poll(String topic, JSDeferred deferred, long timeout_ms) {
+    final Poller poller = new Poller(topic, deferred);
+
+    subscribe(poller);
+
+    if (timeout_ms >= 0) {
+      poller.timer = executor.schedule(new Runnable() {
+	  public void run() {
+	    poller.settle(null);
+	  }
+	}, timeout_ms, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public int getSubscriberCount(String topic) {
+    Set<Subscriber> subscribers = topics.get(topic);
+
+    return subscribers != null ? subscribers.size() : 0;
+  }
+
+  private void subscribe(Subscriber s) {
+    // Publishers never lock; (un)subscribing is rare in comparison
+    synchronized (topics) {
+      for (String topic : s.topicNames) {
+	Set<Subscriber> subscribers = topics.get(topic);
+
+	if (subscribers == null) {
+	  subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+	  topics.put(topic, subscribers);
+	}
+
+	subscribers.add(s);
+      }
+    }
+  }
+
+  private void unsubscribe(Subscriber s) {
+    synchronized (topics) {
+      for (String topic : s.topicNames) {
+	Set<Subscriber> subscribers = topics.get(topic);
+
+	if (subscribers != null) {
+	  subscribers.remove(s);
+
+	  if (subscribers.isEmpty()) {
+	    topics.remove(topic);
+	  }
+	}
+      }
+    }
+  }
+
+  private static class Message {
+    public Message(long id, String event, Object data) {
+      this.id    = id;
+      this.event = event;
+      this.data  = data;
+    }
+
+    /** Returns the message as an SSE frame. Formatted at most once,
+     *  by the publishing thread. */
+
+    public synchronized byte[] getFrame() {
+      if (frame == null) {
+	try {
+	  ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+	  Response.writeObject(data, new ContentType("text/plain; charset=UTF-8"), bos);
+
+	  StringBuilder sb = new StringBuilder();
+
+	  sb.append("id: ").append(id).append('\n');
+
+	  if (event != null) {
+	    sb.append("event: ").append(event).append('\n');
+	  }
+
+	  for (String line : bos.toString("UTF-8").split("\r\n|\r|\n", -1)) {
+	    sb.append("data: ").append(line).append('\n');
+	  }
+
+	  frame = sb.append('\n').toString().getBytes("UTF-8");
+	}
+	catch (Exception ex) {
+	  throw new ESXXException("Failed to serialize message: " + ex.getMessage(), ex);
+	}
+      }
+
+      return frame;
+    }
+
+    private long id;
+    private String event;
+    private Object data;
+    private byte[] frame;
+  }
+
+  private static abstract class Subscriber {
+    protected Subscriber(String... topic_names) {
+      topicNames = topic_names;
+    }
+
+    /** Delivers a message. Must never block.
+     *
+     *  @return true if the message was accepted.
+     */
+
+    public abstract boolean deliver(Message message);
+
+    protected String[] topicNames;
+  }
+
+  private class Poller
+    extends Subscriber {
+    public Poller(String topic, JSDeferred deferred) {
+      super(topic);
+      this.deferred = deferred;
+    }
+
+    @Override public boolean deliver(Message message) {
+      return settle(message.data);
+    }
+
+    public boolean settle(Object value) {
+      if (!settled.compareAndSet(false, true)) {
+	return false;
+      }
+
+      unsubscribe(this);
+
+      if (timer != null) {
+	timer.cancel(false);
+      }
+
+      deferred.resolve(value);
+      return true;
+    }
+
+    private JSDeferred deferred;
+    private AtomicBoolean settled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> timer;
+  }
+
+  /** A text/event-stream response body.
+   *
+   *  The request handler writes the response headers and then hands
+   *  over the output stream with open(). The request is finished
+   *  when the stream is closed, either by close() or because the
+   *  client could not be written to.
+   */
+
+  public class EventStream
+    extends Subscriber
+    implements Runnable {
+    private EventStream(String[] topic_names) {
+      super(topic_names);
+    }
+
+    /** Starts sending messages.
+     *
+     *  @param out       The output stream, after the response headers.
+     *  @param on_close  Called (once) when the stream has been closed.
+     *  @param on_abort  Called (at most once, from another thread) if
+     *                   a write has blocked for too long. It should
+     *                   make the write fail, usually by closing the
+     *                   connection. May be null, since the writer
+     *                   thread is interrupted as well.
+     */
+
+    public void open(OutputStream out, Runnable on_close, Runnable on_abort) {
+      boolean run_now;
+
+      synchronized (this) {
+	if (this.out != null) {
+	  throw new IllegalStateException("EventStream already opened");
+	}
+
+	this.out     = out;
+	this.onClose = on_close;
+	this.onAbort = on_abort;
+
+	run_now = closed;
+
+	if (!closed && !queue.isEmpty() && !draining) {
+	  draining = true;
+	  writer.execute(this);
+	}
+      }
+
+      if (run_now) {
+	// Closed before it was even opened
+	finish();
+      }
+    }
+
+    public void close() {
+      boolean finish;
+
+      synchronized (this) {
+	if (closed) {
+	  return;
+	}
+
+	closed = true;
+	queue.clear();
+	queued = 0;
+
+	// If a writer is active, it will finish the stream
+	finish = !draining;
+      }
+
+      unsubscribe(this);
+      eventStreams.remove(this);
+
+      if (finish) {
+	finish();
+      }
+    }
+
+    /** Closes the stream if it has not been opened. Called when the
+     *  request's response has been sent, since it was not a
+     *  response with this stream. */
+
+    public void closeIfUnopened() {
+      synchronized (this) {
+	if (out != null) {
+	  return;
+	}
+      }
+
+      close();
+    }
+
+    @Override public boolean deliver(Message message) {
+      return enqueue(message.getFrame());
+    }
+
+    boolean enqueue(byte[] frame) {
+      synchronized (this) {
+	if (closed) {
+	  return false;
+	}
+
+	if (queued + frame.length <= maxQueued) {
+	  queue.add(frame);
+	  queued += frame.length;
+
+	  if (out != null && !draining) {
+	    draining = true;
+	    writer.execute(this);
+	  }
+
+	  return true;
+	}
+      }
+
+      // The client has fallen too far behind
+      close();
+      return false;
+    }
+
+    /** Writes queued frames. Only one writer runs at a time. */
+
+    public void run() {
+      while (true) {
+	List<byte[]> frames;
+
+	synchronized (this) {
+	  if (closed) {
+	    draining = false;
+	    break;
+	  }
+	  else if (queue.isEmpty()) {
+	    draining = false;
+	    return;
+	  }
+
+	  frames = new ArrayList<byte[]>(queue);
+	  queue.clear();
+	  queued = 0;
+
+	  writerThread = Thread.currentThread();
+	  writeStarted = System.currentTimeMillis();
+	}
+
+	writingStreams.add(this);
+
+	try {
+	  for (byte[] frame : frames) {
+	    out.write(frame);
+	  }
+
+	  out.flush();
+	}
+	catch (IOException ex) {
+	  // Nobody is listening anymore (or we gave up waiting)
+	  close();
+	}
+	finally {
+	  writingStreams.remove(this);
+
+	  synchronized (this) {
+	    writerThread = null;
+
+	    // Don't let a late abort interrupt the next task
+	    Thread.interrupted();
+	  }
+	}
+      }
+
+      finish();
+    }
+
+    /** Disconnects the client if a write has been blocked since
+     *  before the write timeout. */
+
+    void abortIfStalled(long now) {
+      Runnable r;
+
+      synchronized (this) {
+	if (writerThread == null || now - writeStarted < writeTimeout) {
+	  return;
+	}
+
+	r       = onAbort;
+	onAbort = null;
+
+	writerThread.interrupt();
+      }
+
+      close();
+
+      if (r != null) {
+	try {
+	  r.run();
+	}
+	catch (RuntimeException ignored) {}
+      }
+    }
+
+    private void finish() {
+      Runnable r;
+
+      synchronized (this) {
+	r       = onClose;
+	onClose = null;
+      }
+
+      if (r != null) {
+	r.run();
+      }
+    }
+
+    private OutputStream out;
+    private Runnable onClose;
+    private Runnable onAbort;
+    private Thread writerThread;
+    private long writeStarted;
+    private List<byte[]> queue = new ArrayList<byte[]>();
+    private int queued;
+    private boolean draining;
+    private boolean closed;
+  }
+
+  private static final byte[] HEARTBEAT = { ':', '\n', '\n' };
+
+  private final ScheduledExecutorService executor;
+  private final ThreadPoolExecutor writer;
+  private final int maxQueued;
+  private final long writeTimeout;
+  private final AtomicLong nextID = new AtomicLong();
+  private final ConcurrentHashMap<String, Set<Subscriber>> topics =
+    new ConcurrentHashMap<String, Set<Subscriber>>();
+  private final Set<EventStream> eventStreams =
+    Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
+  private final Set<EventStream> writingStreams =
+    Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
+}
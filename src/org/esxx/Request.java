@@ -20,7 +20,10 @@ package org.esxx;
 
 import java.io.*;
 import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.logging.*;
 import org.esxx.util.TrivialFormatter;
 import org.mozilla.javascript.Context;
@@ -86,10 +89,61 @@ public abstract class Request {
       return errorWriter;
     }
 
-    public Properties getProperties() {
+    /** Returns the request's HTTP headers.
+     *
+     *  Header names are canonicalized (see ESXX.canonicalHTTPHeader()),
+     *  and lookups are case-insensitive.
+     *
+     *  @return An unmodifiable Map from header name to value.
+     */
+
+    public Map<String, String> getHeaders() {
+      return headersView;
+    }
+
+    /** Returns an HTTP header.
+     *
+     *  @param name  The header name (case-insensitive).
+     *
+     *  @return The header value, or null if not present.
+     */
+
+    public String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    /** Returns the CGI environment of this request. It's created on
+     *  first access, if the front-end did not provide one.
+     *
+     *  @return A Properties object with CGI variables.
+     */
+
+    public synchronized Properties getProperties() {
+      if (cgiEnvironment == null) {
+	cgiEnvironment = createProperties();
+      }
+
       return cgiEnvironment;
     }
 
+    /** Creates the CGI environment on demand. */
+
+    protected Properties createProperties() {
+      return new Properties();
+    }
+
+    /** Adds an HTTP header. Front-ends should call this method for
+     *  all request headers, before the request is handed over to ESXX.
+     *  If a header is added more than once, the last value wins.
+     *
+     *  @param name   The header name, in any case.
+     *  @param value  The header value.
+     */
+
+    protected void addHeader(String name, String value) {
+      headers.put(ESXX.canonicalHTTPHeader(name), value.trim());
+    }
+
     public Response getQuickResponse() {
       return quickResponse;
     }
@@ -167,4 +221,7 @@ public abstract class Request {
     private URI workingDirectory;
     private Properties cgiEnvironment;
     private Response quickResponse;
+    private TreeMap<String, String> headers
+      = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    private Map<String, String> headersView = Collections.unmodifiableMap(headers);
 }
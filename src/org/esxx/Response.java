@@ -23,6 +23,7 @@ import java.awt.image.RenderedImage;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -30,11 +31,12 @@ import java.util.TreeMap;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriter;
 import javax.mail.internet.ContentType;
+import org.esxx.util.FileRegion;
 import org.esxx.util.IO;
 import org.esxx.util.JS;
+import org.esxx.util.JSONWriter;
 import org.esxx.util.KeyValueWrapper;
 import org.esxx.util.StringUtil;
-import org.json.*;
 import org.mozilla.javascript.*;
 import org.w3c.dom.Node;
 
@@ -114,6 +116,61 @@ public class Response  {
     return httpHeaders;
   }
 
+  public void setHeader(String name, String value) {
+    if (httpHeaders == null) {
+      httpHeaders = new HashMap<String, String>();
+    }
+
+    httpHeaders.put(name, value);
+  }
+
+  /** Returns a header value, matching the name case-insensitively. */
+
+  public String getHeader(String name) {
+    if (httpHeaders != null) {
+      for (Map.Entry<String, String> e : httpHeaders.entrySet()) {
+	if (e.getKey().equalsIgnoreCase(name)) {
+	  return e.getValue();
+	}
+      }
+    }
+
+    return null;
+  }
+
+  /** Removes a header, matching the name case-insensitively. */
+
+  public void removeHeader(String name) {
+    if (httpHeaders != null) {
+      for (Iterator<String> i = httpHeaders.keySet().iterator(); i.hasNext(); ) {
+	if (i.next().equalsIgnoreCase(name)) {
+	  i.remove();
+	}
+      }
+    }
+  }
+
+  /** Adds a token to a comma-separated header, such as Vary, unless
+   *  it's already present. */
+
+  public void addHeaderValue(String name, String token) {
+    String value = getHeader(name);
+
+    if (value == null) {
+      setHeader(name, token);
+      return;
+    }
+
+    for (String t : value.split(",")) {
+      if (t.trim().equalsIgnoreCase(token) || t.trim().equals("*")) {
+	return;
+      }
+    }
+
+    removeHeader(name);
+    setHeader(name, value + ", " + token);
+  }
+
 
   public void enumerateHeaders(HeaderEnumerator he) {
     if (httpHeaders != null) {
@@ -143,6 +200,19 @@ public class Response  {
     // Unwrap wrapped objects
     object = JS.toJavaObject(object);
 
+    if (object instanceof PubSub.EventStream) {
+      // Only web requests know how to keep the response open
+      ((PubSub.EventStream) object).close();
+      throw new ESXXException("Event streams cannot be sent to this kind of client");
+    }
+
+    // Generators, iterators and writer callbacks produce the result
+    // while it's being written
+    if (isStreamingResult(object)) {
+      writeStream(object, ct, out);
+      return;
+    }
+
     // Convert complex types to primitive types
     if (object instanceof Node) {
       ESXX esxx = ESXX.getInstance();
@@ -193,7 +263,8 @@ public class Response  {
 	object = jsToCSV(ct, (Scriptable) object);
       }
       else {
-	object = jsToJSON(object).toString();
+	writeJSON(object, ct, out);
+	return;
       }
     }
     else if (object instanceof byte[]) {
@@ -222,6 +293,9 @@ public class Response  {
 
       wbc.close();
     }
+    else if (object instanceof FileRegion) {
+      ((FileRegion) object).writeTo(out);
+    }
     else if (object instanceof InputStream) {
       IO.copyStream((InputStream) object, out);
     }
@@ -261,6 +335,7 @@ public class Response  {
     if (contentType == null) {
       // Set default content-type, if missing
       if (resultObject instanceof InputStream ||
+	  resultObject instanceof FileRegion ||
 	  resultObject instanceof ByteArrayOutputStream ||
 	  resultObject instanceof ByteBuffer ||
 	  resultObject instanceof byte[]) {
@@ -276,6 +351,12 @@ public class Response  {
       else if (resultObject instanceof RenderedImage) {
 	return "image/png";
       }
+      else if (isStreamingResult(resultObject)) {
+	return "text/plain; charset=UTF-8";
+      }
+      else if (resultObject instanceof PubSub.EventStream) {
+	return "text/event-stream; charset=UTF-8";
+      }
       else if (resultObject instanceof Node ||
 	       resultObject instanceof org.mozilla.javascript.xml.XMLObject) {
 	return "application/xml";
@@ -291,41 +372,177 @@ public class Response  {
     return contentType;
   }
 
-  private static Object jsToJSON(Object object) {
-    try {
-      if (object instanceof NativeArray) {
-	Object[] array = Context.getCurrentContext().getElements((Scriptable) object);
+  /** Returns true if an object is a JS generator or iterator, a Java
+   *  Iterator, or a writer callback function.
+   *
+   *  Such results are written incrementally, as the chunks are
+   *  produced, and the output is flushed after each chunk (or when
+   *  the callback calls flush()).
+   */
+
+  public static boolean isStreamingResult(Object object) {
+    return (object instanceof NativeGenerator ||
+	    object instanceof NativeIterator ||
+	    object instanceof Iterator<?> ||
+	    (object instanceof Function && !(object instanceof Wrapper)));
+  }
+
+  /** The object passed to writer callbacks. */
+
+  public static class ChunkWriter {
+    ChunkWriter(ContentType ct, OutputStream out) {
+      this.ct  = ct;
+      this.out = out;
+    }
+
+    public void write(Object chunk)
+      throws IOException {
+      writeChunk(chunk, ct, out);
+    }
 
-	for (int i = 0; i < array.length; ++i) {
-	  array[i] = jsToJSON(array[i]);
+    public void flush()
+      throws IOException {
+      out.flush();
+    }
+
+    private ContentType ct;
+    private OutputStream out;
+  }
+
+  private static void writeStream(Object object, ContentType ct, OutputStream out)
+    throws IOException {
+    Context cx = Context.getCurrentContext();
+
+    // Chunks must not be able to close the real output stream
+    OutputStream chunk_out = new FilterOutputStream(out) {
+	@Override public void write(byte[] b, int off, int len)
+	  throws IOException {
+	  out.write(b, off, len);
 	}
 
-	object = new JSONArray(array);
-      }
-      else if (object instanceof Wrapper) {
-	object = jsToJSON(((Wrapper) object).unwrap());
+	@Override public void close()
+	  throws IOException {
+	  flush();
+	}
+      };
+
+    if (object instanceof Iterator<?>) {
+      Iterator<?> i = (Iterator<?>) object;
+
+      while (i.hasNext()) {
+	writeChunk(i.next(), ct, chunk_out);
+	chunk_out.flush();
       }
-      else if (object instanceof Scriptable) {
-	Scriptable jsobject = (Scriptable) object;
+    }
+    else if (cx == null) {
+      throw new IllegalStateException("JavaScript results must be written from a JS thread");
+    }
+    else if (object instanceof Function) {
+      Function   func  = (Function) object;
+      Scriptable scope = ScriptableObject.getTopLevelScope(func);
+
+      func.call(cx, scope, scope, new Object[] {
+	  Context.javaToJS(new ChunkWriter(ct, chunk_out), scope) });
+    }
+    else {
+      Scriptable iter  = (Scriptable) object;
+      Scriptable scope = ScriptableObject.getTopLevelScope(iter);
+      boolean    done  = false;
+
+      try {
+	Object next = ScriptableObject.getProperty(iter, "next");
+
+	if (!(next instanceof Function)) {
+	  throw new ESXXException("Iterator has no next() method");
+	}
+
+	while (true) {
+	  Object chunk;
 
-	object = new JSONObject();
+	  try {
+	    chunk = ((Function) next).call(cx, scope, iter, Context.emptyArgs);
+	  }
+	  catch (JavaScriptException ex) {
+	    if (ex.getValue() instanceof Scriptable &&
+		"StopIteration".equals(((Scriptable) ex.getValue()).getClassName())) {
+	      break;
+	    }
 
-	for (Object k : jsobject.getIds()) {
-	  if (k instanceof String) {
-	    String key = (String) k;
-	    ((JSONObject) object).put(key, jsToJSON(jsobject.get(key, jsobject)));
+	    throw ex;
 	  }
+
+	  writeChunk(chunk, ct, chunk_out);
+	  chunk_out.flush();
 	}
+
+	done = true;
       }
-      else {
-	object = Context.jsToJava(object, Object.class);
+      finally {
+	if (!done) {
+	  // Let the generator run its finally blocks
+	  Object close = ScriptableObject.getProperty(iter, "close");
+
+	  if (close instanceof Function) {
+	    try { ((Function) close).call(cx, scope, iter, Context.emptyArgs); }
+	    catch (Exception ignored) {}
+	  }
+	}
       }
+    }
 
-      return object;
+    chunk_out.flush();
+  }
+
+  private static void writeChunk(Object chunk, ContentType ct, OutputStream out)
+    throws IOException {
+    if (chunk == null || chunk == Context.getUndefinedValue()) {
+      return;
+    }
+
+    if (chunk instanceof Number || chunk instanceof Boolean || chunk instanceof CharSequence) {
+      chunk = Context.toString(chunk);
+    }
+
+    writeObject(chunk, ct, out);
+  }
+
+  /** Serializes a JS object as JSON, straight to the output stream.
+   *
+   *  UTF-8 and ASCII-compatible charsets are written directly (the
+   *  latter with non-ASCII characters escaped). The x-indent
+   *  parameter enables pretty printing.
+   */
+
+  private static void writeJSON(Object object, ContentType ct, OutputStream out)
+    throws IOException {
+    String  cs     = Parsers.getParameter(ct, "charset", "UTF-8");
+    String  name   = Charset.forName(cs).name().toUpperCase();
+    int     indent = 0;
+
+    try {
+      indent = Integer.parseInt(Parsers.getParameter(ct, "x-indent", "0"));
+    }
+    catch (NumberFormatException ex) {
+      throw new IOException("Invalid x-indent parameter: " + ex.getMessage(), ex);
+    }
+
+    if (name.contains("UTF-16") || name.contains("UTF-32")) {
+      // Not ASCII-compatible; transcode the escaped ASCII output
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      JSONWriter             jw = new JSONWriter(bos, indent, true);
+
+      jw.write(object);
+      jw.flush();
+
+      Writer ow = new OutputStreamWriter(out, cs);
+      ow.write(bos.toString("US-ASCII"));
+      ow.flush();
     }
-    catch (JSONException ex) {
-      throw new ESXXException("Failed to convert JavaScript object to JSON: " + ex.getMessage(),
-			      ex);
+    else {
+      JSONWriter jw = new JSONWriter(out, indent, !name.equals("UTF-8"));
+
+      jw.write(object);
+      jw.flush();
     }
   }
 
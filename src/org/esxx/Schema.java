@@ -33,6 +33,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import org.esxx.util.URIResolver;
+import org.esxx.util.UsageCounter;
 import org.w3c.dom.Node;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
@@ -111,13 +112,8 @@ public class Schema
     return uri.toString();
   }
 
-  @Override /* Cached */ public synchronized void logUsage(long start_time) {
-    ++invocations;
-    lastAccessed  = System.currentTimeMillis();
-
-    if (start_time != 0) {
-      executionTime += (lastAccessed - start_time);
-    }
+  @Override /* Cached */ public void logUsage(long start_time) {
+    usage.logUsage(start_time);
   }
 
   @Override /* Cached */  public Collection<URI> getExternalURIs() {
@@ -183,10 +179,7 @@ public class Schema
     }
 
     @Override public org.esxx.jmx.ApplicationStats getStatistics() {
-      synchronized (Schema.this) {
-  	return new org.esxx.jmx.ApplicationStats(invocations, executionTime, 
-  						 started, new Date(lastAccessed));
-      }
+      return usage.getStatistics(started);
     }
   }
 
@@ -197,8 +190,6 @@ public class Schema
   private PropertyMap propertyMap;
   private HashSet<URI> externalURIs = new HashSet<URI>();
 
-  private long invocations;
-  private long executionTime;
+  private UsageCounter usage = new UsageCounter();
   private Date started;
-  private long lastAccessed;
 }
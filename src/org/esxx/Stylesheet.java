@@ -22,8 +22,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -35,6 +37,8 @@ import org.esxx.ESXX;
 import org.esxx.js.JSURI;
 import org.esxx.saxon.ESXXExpression;
 import org.esxx.util.URIResolver;
+import org.esxx.util.LatencyHistogram;
+import org.esxx.util.UsageCounter;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Scriptable;
 import org.w3c.dom.Document;
@@ -136,13 +140,8 @@ public class Stylesheet
     return xslt;
   }
 
-  @Override /* Cached */ public synchronized void logUsage(long start_time) {
-    ++invocations;
-    lastAccessed  = System.currentTimeMillis();
-
-    if (start_time != 0) {
-      executionTime += (lastAccessed - start_time);
-    }
+  @Override /* Cached */ public void logUsage(long start_time) {
+    usage.logUsage(start_time);
   }
 
 
@@ -155,6 +154,14 @@ public class Stylesheet
     return "[" + this.getClass().getName() + ": " + uri + "]";
   }
 
+  public synchronized LatencyJMXBean getLatencyJMXBean() {
+    if (latencyJMXBean == null) {
+      latencyJMXBean = new LatencyJMXBean();
+    }
+
+    return latencyJMXBean;
+  }
+
   @Override /* Cached */  public synchronized JMXBean getJMXBean() {
     if (jmxBean == null) {
       jmxBean = new JMXBean();
@@ -182,23 +189,42 @@ public class Stylesheet
     }
 
     @Override public org.esxx.jmx.ApplicationStats getStatistics() {
-      synchronized (Stylesheet.this) {
-	return new org.esxx.jmx.ApplicationStats(invocations, executionTime, 
-						 started, new Date(lastAccessed));
-      }
+      return usage.getStatistics(started);
+    }
+  }
+
+  private class LatencyJMXBean
+    extends javax.management.StandardEmitterMBean
+    implements org.esxx.jmx.LatencyMXBean {
+
+    public LatencyJMXBean() {
+      super(org.esxx.jmx.LatencyMXBean.class, true,
+	    new javax.management.NotificationBroadcasterSupport());
+    }
+
+    @Override public String getFilename() {
+      return Stylesheet.this.getFilename();
+    }
+
+    @Override public List<org.esxx.jmx.LatencyStats> getLatencies() {
+      return Collections.singletonList(latency.getStatistics("xslt " + getFilename()));
+    }
+
+    @Override public void resetLatencies() {
+      latency.reset();
     }
   }
 
   private ESXX esxx;
   private JMXBean jmxBean;
+  private LatencyJMXBean latencyJMXBean;
   private URI uri;
   private XsltExecutable xslt;
   private HashSet<URI> externalURIs = new HashSet<URI>();
 
-  private long invocations;
-  private long executionTime;
+  private UsageCounter usage = new UsageCounter();
+  private LatencyHistogram latency = new LatencyHistogram();
   private Date started;
-  private long lastAccessed;
 
   public static void transform(Context cx, Scriptable scope,
 			       Stylesheet xslt, Map<QName, Object> params,
@@ -206,7 +232,9 @@ public class Stylesheet
 			       Destination dest) 
     throws SaxonApiException {
     long start_time  = System.currentTimeMillis();
+    long start_nanos = System.nanoTime();
     Object old_scope = cx.getThreadLocal(ESXXExpression.class);
+    ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.XSLT);
 
     try {
       XsltExecutable  xe = xslt.getExecutable();
@@ -272,6 +300,8 @@ public class Stylesheet
     finally {
       cx.putThreadLocal(ESXXExpression.class, old_scope);
       xslt.logUsage(start_time);
+      xslt.latency.recordSince(start_nanos);
+      ESXX.Workload.leavePhase(old_phase);
     }
   }
 
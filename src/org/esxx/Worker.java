@@ -38,10 +38,28 @@ class Worker {
     this.esxx = esxx;
   }
 
+  /** Executes a request.
+   *
+   *  @return The Response, or null if the handler returned a
+   *  Deferred (or any other object with a then() method). In that
+   *  case, the request is still executing and getPendingResult()
+   *  must be used to call completeRequest() once it has settled.
+   */
+
   public Response handleRequest(Context cx, Request request)
     throws Exception {
     long start_time = System.currentTimeMillis();
-    Application app = esxx.getCachedApplication(cx, request);
+    ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.APP);
+    Application app;
+
+    try {
+      app = esxx.getCachedApplication(cx, request);
+    }
+    finally {
+      ESXX.Workload.leavePhase(old_phase);
+    }
+
+    boolean pending = false;
 
     try {
       //     if (app.isDebuggerActivated()) {
@@ -56,7 +74,14 @@ class Worker {
       JSResponse result = null;
 
       try {
-	result = app.executeInitOnce(cx, jsreq);
+	old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.INIT);
+
+	try {
+	  result = app.executeInitOnce(cx, jsreq);
+	}
+	finally {
+	  ESXX.Workload.leavePhase(old_phase);
+	}
 
 	if (app.hasHandlers()) {
 	  // Execute the SOAP or HTTP handler (if available)
@@ -87,34 +112,106 @@ class Worker {
 	result = app.executeErrorHandler(cx, jsreq, ex);
       }
 
-      Response response = result.getResponse();
+      Object data = result.jsGet_data();
 
-      response.unwrapResult();
+      if (app.hasHandlers() && JSDeferred.isThenable(data)) {
+	// The handler has not finished yet. Keep the application
+	// entered until the result has settled.
+	this.request         = request;
+	this.app             = app;
+	this.jsreq           = jsreq;
+	this.pendingResponse = result;
+	this.pendingResult   = JSDeferred.toDeferred(cx, app.getJSGlobal(), data);
+	this.startTime       = start_time;
 
-      if (response.getResult() instanceof Node) {
-	try {
-	  handleTransformation(cx, request, response, result, app);
-	}
-	catch (Exception ex) {
-	  // Invoke error handler on XSLT errors as well
-	  response = app.executeErrorHandler(cx, jsreq, ex).getResponse();
+	pending = true;
+	return null;
+      }
+
+      return finishResponse(cx, request, app, jsreq, result);
+    }
+    finally {
+      if (!pending) {
+	esxx.releaseApplication(app, start_time);
+      }
+    }
+  }
+
+  public JSDeferred getPendingResult() {
+    return pendingResult;
+  }
+
+  /** Completes a request whose handler returned a Deferred.
+   *
+   *  If the Deferred was fulfilled with a Response or an Array, it
+   *  replaces the handler's response. Any other value becomes the
+   *  response body. If it was rejected, the error handler is invoked.
+   *
+   *  @param cx         The current Context.
+   *  @param fulfilled  true if the Deferred was fulfilled.
+   *  @param value      The value or rejection reason.
+   *
+   *  @return The final Response.
+   */
 
-	  response.unwrapResult();
+  public Response completeRequest(Context cx, boolean fulfilled, Object value)
+    throws Exception {
+    try {
+      JSResponse result = pendingResponse;
 
-	  if (response.getResult() instanceof Node) {
-	    handleTransformation(cx, request, response, result, app);
+      try {
+	if (!fulfilled) {
+	  if (value instanceof Exception) {
+	    throw (Exception) value;
+	  }
+	  else {
+	    throw new JavaScriptException(value, "<deferred>", 0);
 	  }
 	}
+	else if (value instanceof JSResponse || value instanceof NativeArray) {
+	  result = app.wrapResult(cx, value);
+	}
+	else {
+	  result.jsSet_data(value);
+	}
+      }
+      catch (Exception ex) {
+	result = app.executeErrorHandler(cx, jsreq, ex);
       }
 
-      // Return response
-      return response;
+      return finishResponse(cx, request, app, jsreq, result);
     }
     finally {
-      esxx.releaseApplication(app, start_time);
+      esxx.releaseApplication(app, startTime);
     }
   }
 
+  private Response finishResponse(Context cx, Request request, Application app,
+				  JSRequest jsreq, JSResponse result)
+    throws Exception {
+    Response response = result.getResponse();
+
+    response.unwrapResult();
+
+    if (response.getResult() instanceof Node) {
+      try {
+	handleTransformation(cx, request, response, result, app);
+      }
+      catch (Exception ex) {
+	// Invoke error handler on XSLT errors as well
+	response = app.executeErrorHandler(cx, jsreq, ex).getResponse();
+
+	response.unwrapResult();
+
+	if (response.getResult() instanceof Node) {
+	  handleTransformation(cx, request, response, result, app);
+	}
+      }
+    }
+
+    return response;
+  }
+
   private static String getDebugLogForComment(Request request) {
     return "Start ESXX Request Log\n"
       + request.getLogAsString().replaceAll("--", "\u2012\u2012")
@@ -162,4 +259,12 @@ class Worker {
   }
 
   private ESXX esxx;
+
+  // Only set while a request is pending
+  private Request request;
+  private Application app;
+  private JSRequest jsreq;
+  private JSResponse pendingResponse;
+  private JSDeferred pendingResult;
+  private long startTime;
 }
@@ -18,10 +18,14 @@
 
 package org.esxx.cache;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class LRUCache<K, V> {
 
@@ -39,11 +43,59 @@ public class LRUCache<K, V> {
     public void entryRemoved(K key, V value);
   }
 
+  public interface Weigher<K, V> {
+    public long weigh(K key, V value);
+  }
+
+  /** Creates a strict LRU cache, protected by a single lock.
+   *
+   *  @param max_entries  The maximum number of entries in the cache.
+   *  @param max_age      The default maximum age, in milliseconds.
+   */
+
   public LRUCache(int max_entries, long max_age) {
-    map = new LRUMap();
+    this(max_entries, max_age, 1);
+  }
+
+
+  /** Creates an LRU cache that is split into a number of
+   *  independently locked segments.
+   *
+   *  Each key is hashed to one segment, and each segment keeps its
+   *  own LRU list and its own share of max_entries. Eviction is thus
+   *  only approximately LRU for the cache as a whole, but lookups of
+   *  different keys will rarely contend for the same lock.
+   *
+   *  The ValueFactory guarantee is unaffected: a value is created
+   *  at most once per key, no matter how many threads that ask for
+   *  it concurrently.
+   *
+   *  @param max_entries  The maximum number of entries in the cache.
+   *  @param max_age      The default maximum age, in milliseconds.
+   *  @param concurrency  The number of segments (rounded up to a
+   *                      power of two).
+   */
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public LRUCache(int max_entries, long max_age, int concurrency) {
+    int segments = 1;
+
+    while (segments < concurrency && segments < MAX_SEGMENTS) {
+      segments <<= 1;
+    }
+
+    // Round up, so the total capacity is never less than max_entries
+    int segment_entries = (int) Math.min(Integer.MAX_VALUE,
+					 ((long) max_entries + segments - 1) / segments);
+
+    maps        = new LRUCache.LRUMap[segments];
+    segmentMask = segments - 1;
 
-    maxEntries = max_entries;
-    maxAge     = max_age;
+    for (int i = 0; i < segments; ++i) {
+      maps[i] = new LRUMap(segment_entries);
+    }
+
+    maxAge = max_age;
   }
 
 
@@ -55,6 +107,7 @@ public class LRUCache<K, V> {
    */
 
   public V get(K key) {
+    LRUMap map = getMap(key);
     LRUEntry entry;
 
     synchronized (map) {
@@ -119,29 +172,36 @@ public class LRUCache<K, V> {
       age = maxAge;
     }
 
-    while (true) { // Repeat until successful
-      LRUEntry entry = getEntry(key);
+    try {
+      while (true) { // Repeat until successful
+	LRUEntry entry = getEntry(key);
 
-      synchronized (entry) {
-	if (!entry.isDeleted()) {
-	  long now = System.currentTimeMillis();
+	synchronized (entry) {
+	  if (!entry.isDeleted()) {
+	    long now = System.currentTimeMillis();
+
+	    if (entry.value ==  null) {
+	      entry.maxAge  = age;
+	      entry.created = now;
+	      entry.updateExpires(now);
+	      entry.value   = factory.create(key, entry.expires);
+	      entry.setWeight(weigh(key, entry.value));
+	      fireAddedEvent(key, entry.value);
+	    }
+	    else {
+	      entry.updateExpires(now);
+	    }
 
-	  if (entry.value ==  null) {
-	    entry.maxAge  = age;
-	    entry.created = now;
-	    entry.updateExpires(now);
-	    entry.value   = factory.create(key, entry.expires);
-	    fireAddedEvent(key, entry.value);
+	    return entry.value;
 	  }
-	  else {
-	    entry.updateExpires(now);
-	  }
-	
-	  return entry.value;
 	}
-      }
 
-      Thread.yield();
+	Thread.yield();
+      }
+    }
+    finally {
+      // (Must be called without holding the entry lock)
+      trimToWeight(key);
     }
   }
 
@@ -191,30 +251,37 @@ public class LRUCache<K, V> {
       age = maxAge;
     }
 
-    while (true) { // Repeat until successful
-      LRUEntry entry = getEntry(key);
+    try {
+      while (true) { // Repeat until successful
+	LRUEntry entry = getEntry(key);
 
-      synchronized (entry) {
-	if (!entry.isDeleted()) {
-	  V old_value = entry.value;
+	synchronized (entry) {
+	  if (!entry.isDeleted()) {
+	    V old_value = entry.value;
 
-	  if (old_value != null) {
-	    fireRemovedEvent(key, old_value);
-	  }
+	    if (old_value != null) {
+	      fireRemovedEvent(key, old_value);
+	    }
 
-	  long now = System.currentTimeMillis();
+	    long now = System.currentTimeMillis();
 
-	  entry.maxAge  = age;
-	  entry.created = now;
-	  entry.updateExpires(now);
-	  entry.value   = factory.create(key, entry.expires);
-	  fireAddedEvent(key, entry.value);
+	    entry.maxAge  = age;
+	    entry.created = now;
+	    entry.updateExpires(now);
+	    entry.value   = factory.create(key, entry.expires);
+	    entry.setWeight(weigh(key, entry.value));
+	    fireAddedEvent(key, entry.value);
 
-	  return old_value;
+	    return old_value;
+	  }
 	}
-      }
 
-      Thread.yield();
+	Thread.yield();
+      }
+    }
+    finally {
+      // (Must be called without holding the entry lock)
+      trimToWeight(key);
     }
   }
 
@@ -263,32 +330,39 @@ public class LRUCache<K, V> {
       age = maxAge;
     }
     
-    while (true) { // Repeat until successful
-      LRUEntry entry = getEntry(key);
-
-      synchronized (entry) {
-	if (!entry.isDeleted()) {
-	  V old_value = entry.value;
-	  long now = System.currentTimeMillis();
+    try {
+      while (true) { // Repeat until successful
+	LRUEntry entry = getEntry(key);
 
-	  if (old_value != null) {
-	    fireRemovedEvent(key, old_value);
+	synchronized (entry) {
+	  if (!entry.isDeleted()) {
+	    V old_value = entry.value;
+	    long now = System.currentTimeMillis();
+
+	    if (old_value != null) {
+	      fireRemovedEvent(key, old_value);
+
+	      entry.maxAge  = age;
+	      entry.created = now;
+	      entry.updateExpires(now);
+	      entry.value   = factory.create(key, entry.expires);
+	      entry.setWeight(weigh(key, entry.value));
+	      fireAddedEvent(key, entry.value);
+	    }
+	    else {
+	      entry.updateExpires(now);
+	    }
 
-	    entry.maxAge  = age;
-	    entry.created = now;
-	    entry.updateExpires(now);
-	    entry.value   = factory.create(key, entry.expires);
-	    fireAddedEvent(key, entry.value);
-	  }
-	  else {
-	    entry.updateExpires(now);
+	    return old_value;
 	  }
-
-	  return old_value;
 	}
+
+	Thread.yield();
       }
-      
-      Thread.yield();
+    }
+    finally {
+      // (Must be called without holding the entry lock)
+      trimToWeight(key);
     }
   }
 
@@ -301,6 +375,7 @@ public class LRUCache<K, V> {
    */
 
   public V remove(K key) {
+    LRUMap map = getMap(key);
     LRUEntry entry = getEntry(key);
     V old_value;
 
@@ -331,26 +406,28 @@ public class LRUCache<K, V> {
 
   /** Removes all entries from the cache.
    * 
-   *  This operation locks the whole map!
+   *  This operation locks each segment in turn!
    */
 
   public void clear() {
-    synchronized (map) {
-      for (Map.Entry<K, LRUEntry> e : map.entrySet()) {
-	LRUEntry entry = e.getValue();
+    for (LRUMap map : maps) {
+      synchronized (map) {
+	for (Map.Entry<K, LRUEntry> e : map.entrySet()) {
+	  LRUEntry entry = e.getValue();
 
-	synchronized (entry) {
-	  // NOTE: Lock order: first map, then entry
+	  synchronized (entry) {
+	    // NOTE: Lock order: first map, then entry
 
-	  if (entry.value != null) {
-	    fireRemovedEvent(e.getKey(), entry.value);
-	  }
+	    if (entry.value != null) {
+	      fireRemovedEvent(e.getKey(), entry.value);
+	    }
 
-	  entry.markAsDeleted();
+	    entry.markAsDeleted();
+	  }
 	}
-      }
 
-      map.clear();
+	map.clear();
+      }
     }
   }
 
@@ -362,6 +439,12 @@ public class LRUCache<K, V> {
    */
 
   public void filterEntries(EntryFilter<K, V> filter) {
+    for (LRUMap map : maps) {
+      filterEntries(map, filter);
+    }
+  }
+
+  private void filterEntries(LRUMap map, EntryFilter<K, V> filter) {
     LinkedList<Map.Entry<K, LRUEntry>> entries;
 
     synchronized (map) {
@@ -399,31 +482,55 @@ public class LRUCache<K, V> {
     }
   }
 
-  public void addListener(LRUListener<K, V> l) {
-    synchronized (entryListeners) {
-      entryListeners.add(l);
+  /** Makes the cache weight-bounded, in addition to being bounded by
+   *  the number of entries and their age.
+   *
+   *  Each value is weighed once, when it is inserted. Whenever the
+   *  total weight exceeds the limit, the least recently used entries
+   *  are evicted (and reported to the LRUListeners as usual) until
+   *  the cache fits again.
+   *
+   *  If a shared WeightBudget is exceeded, entries are evicted from
+   *  all caches that share it, not only from the one that grew.
+   *
+   *  This method should be called before any entries are added.
+   *
+   *  @param weigher     The Weigher used to weigh new entries.
+   *  @param max_weight  The maximum total weight of the cache.
+   *  @param budget      A WeightBudget that may be shared with other
+   *                     caches. May be null.
+   */
+
+  public void setWeigher(Weigher<? super K, ? super V> weigher, long max_weight,
+			 WeightBudget budget) {
+    this.cacheBudget  = new WeightBudget(max_weight);
+    this.sharedBudget = budget;
+    this.weigher      = weigher;
+
+    if (budget != null) {
+      budget.register(this);
     }
   }
 
+  public void addListener(LRUListener<K, V> l) {
+    entryListeners.add(l);
+  }
+
   public void removeListener(LRUListener<K, V> l) {
-    synchronized (entryListeners) {
-      entryListeners.remove(l);
-    }
+    entryListeners.remove(l);
   }
 
   public void fireAddedEvent(K key, V value) {
-    synchronized (entryListeners) {
-      for (LRUListener<K, V> l : entryListeners) {
-	l.entryAdded(key, value);
-      }
+    // (Listeners are called without any global lock, since they may
+    // be slow -- an Application's exit handler, for instance.)
+    for (LRUListener<K, V> l : entryListeners) {
+      l.entryAdded(key, value);
     }
   }
 
   public void fireRemovedEvent(K key, V value) {
-    synchronized (entryListeners) {
-      for (LRUListener<K, V> l : entryListeners) {
-	l.entryRemoved(key, value);
-      }
+    for (LRUListener<K, V> l : entryListeners) {
+      l.entryRemoved(key, value);
     }
   }
 
@@ -436,11 +543,13 @@ public class LRUCache<K, V> {
    */
 
   private LRUEntry getEntry(K key) {
+    LRUMap map = getMap(key);
+
     synchronized (map) {
       LRUEntry entry = map.get(key);
 
       if (entry == null) {
-	entry = new LRUEntry();
+	entry = new LRUEntry(map);
 	map.put(key, entry);
       }
 
@@ -449,12 +558,93 @@ public class LRUCache<K, V> {
   }
 
 
+  /** Returns the segment a key belongs to.
+   *
+   *  @param key  The key.
+   *
+   *  @return An LRUMap
+   */
+
+  private LRUMap getMap(K key) {
+    return maps[getSegment(key)];
+  }
+
+  private int getSegment(K key) {
+    if (segmentMask == 0) {
+      return 0;
+    }
+
+    // Spread the hash bits, since String.hashCode() is weak in the low bits
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+
+    return h & segmentMask;
+  }
+
+
+  private long weigh(K key, V value) {
+    return weigher == null ? 0 : weigher.weigh(key, value);
+  }
+
+
+  /** Evicts entries until both this cache and the shared budget are
+   *  within their weight limits.
+   *
+   *  @param key  The key that was just inserted or modified.
+   */
+
+  private void trimToWeight(K key) {
+    if (weigher == null) {
+      return;
+    }
+
+    // The new entry is the most recently used one in its segment, so
+    // visit that segment last
+    int segment = getSegment(key);
+
+    trimToWeight(cacheBudget, segment);
+
+    if (sharedBudget != null) {
+      sharedBudget.trim(this, segment);
+    }
+  }
+
+  /** Evicts entries from all segments of this cache until the budget
+   *  is no longer exceeded, or until the cache is empty.
+   *
+   *  @param budget  The WeightBudget to satisfy.
+   *  @param last    The segment to visit last, or -1.
+   */
+
+  void trimToWeight(WeightBudget budget, int last) {
+    List<Map.Entry<K, V>> evicted = new ArrayList<Map.Entry<K, V>>();
+
+    for (int i = 0; i < maps.length && budget.isExceeded(); ++i) {
+      if (i != last) {
+	maps[i].trimToWeight(budget, evicted);
+      }
+    }
+
+    if (last >= 0) {
+      maps[last].trimToWeight(budget, evicted);
+    }
+
+    // Listeners may run arbitrary code (like JS destructors), so
+    // they are never called with a segment locked
+    for (Map.Entry<K, V> e : evicted) {
+      fireRemovedEvent(e.getKey(), e.getValue());
+    }
+  }
+
+
   private class LRUMap
     extends LinkedHashMap<K, LRUEntry> {
     private static final long serialVersionUID = 8027701661709058455L;
 
-    public LRUMap() {
+    public LRUMap(int max_entries) {
       super (128, 0.75f, true);
+      maxEntries = max_entries;
     }
 
     private boolean isFull(LRUEntry eldest, long now) {
@@ -502,10 +692,46 @@ public class LRUCache<K, V> {
       // Tell implementation not to auto-modify the hash table
       return false;
     }
+
+    /** Evicts entries until the budget is no longer exceeded. The
+     *  evicted entries are added to a list, and the caller must fire
+     *  the removal events. */
+
+    public synchronized void trimToWeight(WeightBudget budget, List<Map.Entry<K, V>> evicted) {
+      Iterator<Map.Entry<K, LRUEntry>> i = entrySet().iterator();
+
+      while (budget.isExceeded() && i.hasNext()) {
+	Map.Entry<K, LRUEntry> e = i.next();
+	LRUEntry entry = e.getValue();
+
+	if (entry.weight == 0) {
+	  // Being created (and locked) by someone else, or weightless
+	  continue;
+	}
+
+	synchronized (entry) {
+	  // NOTE: Lock order: first map, then entry
+
+	  if (entry.value != null) {
+	    evicted.add(new AbstractMap.SimpleEntry<K, V>(e.getKey(), entry.value));
+	  }
+
+	  entry.markAsDeleted();
+	  i.remove();
+	}
+      }
+    }
+
+    private int maxEntries;
   }
 
   class LRUEntry {
+    public LRUEntry(LRUMap map) {
+      this.map = map;
+    }
+
     public void markAsDeleted() {
+      setWeight(0);
       maxAge  = Long.MIN_VALUE;
       expires = Long.MIN_VALUE;
       created = Long.MIN_VALUE;
@@ -520,18 +746,40 @@ public class LRUCache<K, V> {
       expires = maxAge == 0 ? Long.MAX_VALUE : now + maxAge;
     }
 
+    public void setWeight(long new_weight) {
+      long delta = new_weight - weight;
+
+      if (delta != 0) {
+	weight = new_weight;
+	cacheBudget.add(delta);
+
+	if (sharedBudget != null) {
+	  sharedBudget.add(delta);
+	}
+      }
+    }
+
+    final LRUMap map;
+    volatile long weight;
     long expires;
     long created;
     long maxAge;
     V value;
   }
 
-  private final LRUMap map;
+  private static final int MAX_SEGMENTS = 256;
+
+  private final LRUMap[] maps;
+  private final int segmentMask;
 
-  private int maxEntries;
   private long maxAge;
 
-  private final LinkedList<LRUListener<K, V>> entryListeners = new LinkedList<LRUListener<K, V>>();
+  private Weigher<? super K, ? super V> weigher;
+  private WeightBudget cacheBudget = new WeightBudget(Long.MAX_VALUE);
+  private WeightBudget sharedBudget;
+
+  private final List<LRUListener<K, V>> entryListeners
+    = new CopyOnWriteArrayList<LRUListener<K, V>>();
 
   static final long serialVersionUID = 8565024717836226408L;
 }
@@ -0,0 +1,96 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A weight limit and a running total, which may be shared by
+ *  several LRUCache instances.
+ *
+ *  When the limit is exceeded, entries are evicted from the member
+ *  caches in turn, so that one busy cache cannot push the others'
+ *  entries out while keeping all of its own.
+ */
+
+public class WeightBudget {
+  public WeightBudget(long max_weight) {
+    maxWeight = max_weight;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public long getWeight() {
+    return weight.get();
+  }
+
+  public boolean isExceeded() {
+    return weight.get() > maxWeight;
+  }
+
+  void add(long delta) {
+    weight.addAndGet(delta);
+  }
+
+  void register(LRUCache<?, ?> cache) {
+    members.add(new WeakReference<LRUCache<?, ?>>(cache));
+  }
+
+  /** Evicts entries from the member caches until the budget is no
+   *  longer exceeded. Each call starts with the cache after the one
+   *  the previous call started with.
+   *
+   *  @param origin          The cache that caused the budget to be exceeded.
+   *  @param origin_segment  The segment of origin to visit last.
+   */
+
+  void trim(LRUCache<?, ?> origin, int origin_segment) {
+    if (!isExceeded()) {
+      return;
+    }
+
+    Object[] caches = members.toArray();
+    int      start  = next.getAndIncrement() & Integer.MAX_VALUE;
+
+    for (int i = 0; i < caches.length && isExceeded(); ++i) {
+      @SuppressWarnings("unchecked")
+      WeakReference<LRUCache<?, ?>> ref =
+	(WeakReference<LRUCache<?, ?>>) caches[(start + i) % caches.length];
+      LRUCache<?, ?> cache = ref.get();
+
+      if (cache == null) {
+	// The cache has been garbage collected
+	members.remove(ref);
+      }
+      else {
+	cache.trimToWeight(this, cache == origin ? origin_segment : -1);
+      }
+    }
+  }
+
+  private final long maxWeight;
+  private final AtomicLong weight = new AtomicLong();
+  private final AtomicInteger next = new AtomicInteger();
+  private final CopyOnWriteArrayList<WeakReference<LRUCache<?, ?>>> members =
+    new CopyOnWriteArrayList<WeakReference<LRUCache<?, ?>>>();
+}
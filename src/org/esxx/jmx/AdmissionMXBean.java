@@ -0,0 +1,35 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.jmx;
+
+public interface AdmissionMXBean {
+  public int getMaxActiveRequests();
+  public int getMaxQueuedRequests();
+  public int getMaxActiveRequestsPerApplication();
+
+  public int getActiveRequests();
+  public int getQueuedRequests();
+  public int getPeakQueuedRequests();
+
+  public long getAdmittedRequests();
+  public long getRejectedRequests();
+  public long getExpiredRequests();
+
+  public void resetStatistics();
+}
@@ -26,5 +26,6 @@ public interface ApplicationMXBean {
   public String getAppFilename();
 
   public ApplicationStats getStatistics();
+  public BulkheadStats getBulkheadStatistics();
   public void unloadApplication();
 }
@@ -0,0 +1,91 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.jmx;
+
+public class BulkheadStats {
+  @java.beans.ConstructorProperties({"maxThreads", "maxQueued", "threads",
+				     "activeRequests", "queuedRequests", "peakQueuedRequests",
+				     "admittedRequests", "rejectedRequests", "expiredRequests"})
+  public BulkheadStats(int maxThreads, int maxQueued, int threads,
+		       int activeRequests, int queuedRequests, int peakQueuedRequests,
+		       long admittedRequests, long rejectedRequests, long expiredRequests) {
+    this.maxThreads         = maxThreads;
+    this.maxQueued          = maxQueued;
+    this.threads            = threads;
+    this.activeRequests     = activeRequests;
+    this.queuedRequests     = queuedRequests;
+    this.peakQueuedRequests = peakQueuedRequests;
+    this.admittedRequests   = admittedRequests;
+    this.rejectedRequests   = rejectedRequests;
+    this.expiredRequests    = expiredRequests;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  @Units("requests")
+  public int getActiveRequests() {
+    return activeRequests;
+  }
+
+  @Units("requests")
+  public int getQueuedRequests() {
+    return queuedRequests;
+  }
+
+  @Units("requests")
+  public int getPeakQueuedRequests() {
+    return peakQueuedRequests;
+  }
+
+  @Units("requests")
+  public long getAdmittedRequests() {
+    return admittedRequests;
+  }
+
+  @Units("requests")
+  public long getRejectedRequests() {
+    return rejectedRequests;
+  }
+
+  @Units("requests")
+  public long getExpiredRequests() {
+    return expiredRequests;
+  }
+
+  private int maxThreads;
+  private int maxQueued;
+  private int threads;
+  private int activeRequests;
+  private int queuedRequests;
+  private int peakQueuedRequests;
+  private long admittedRequests;
+  private long rejectedRequests;
+  private long expiredRequests;
+}
@@ -0,0 +1,71 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.jmx;
+
+public class LatencyStats {
+  @java.beans.ConstructorProperties({"name", "count", "mean", "p50", "p95", "p99", "max"})
+  public LatencyStats(String name, long count, long mean,
+		      long p50, long p95, long p99, long max) {
+    this.name  = name;
+    this.count = count;
+    this.mean  = mean;
+    this.p50   = p50;
+    this.p95   = p95;
+    this.p99   = p99;
+    this.max   = max;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Units("invocations")
+  public long getCount() {
+    return count;
+  }
+
+  @Units("wall clock microseconds") public long getMean() {
+    return mean;
+  }
+
+  @Units("wall clock microseconds") public long getP50() {
+    return p50;
+  }
+
+  @Units("wall clock microseconds") public long getP95() {
+    return p95;
+  }
+
+  @Units("wall clock microseconds") public long getP99() {
+    return p99;
+  }
+
+  @Units("wall clock microseconds") public long getMax() {
+    return max;
+  }
+
+  private String name;
+  private long count;
+  private long mean;
+  private long p50;
+  private long p95;
+  private long p99;
+  private long max;
+}
@@ -0,0 +1,326 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.js;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.esxx.ESXX;
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.xml.XMLObject;
+
+/** A placeholder for a value that is not available yet.
+ *
+ *  A Deferred is resolved or rejected exactly once. Functions that
+ *  are registered with then() are invoked in a new workload when
+ *  that happens, and then() returns a new Deferred for the
+ *  function's result, so Deferreds can be chained like Promises.
+ *
+ *  A request handler may return a Deferred (or a Response whose data
+ *  is a Deferred) to release its thread while it waits for I/O. The
+ *  response is sent once the Deferred has settled.
+ */
+
+public class JSDeferred
+  extends ScriptableObject {
+  private static final long serialVersionUID = -1462834706395318519L;
+
+  public interface Listener {
+    /** Called once, when the Deferred has been resolved or rejected. */
+    public void settled(boolean fulfilled, Object value);
+  }
+
+  public JSDeferred() {
+    super();
+  }
+
+  @Override public String getClassName() {
+    return "Deferred";
+  }
+
+  public static Object jsConstructor(Context cx,
+				     java.lang.Object[] args,
+				     Function ctorObj,
+				     boolean inNewExpr) {
+    JSDeferred deferred = new JSDeferred();
+
+    if (args.length > 0 && args[0] instanceof Function) {
+      // new ESXX.Deferred(function(resolve, reject) { ... })
+      Function   func  = (Function) args[0];
+      Scriptable scope = func.getParentScope();
+
+      deferred.resolveWith(cx, func, new Object[] {
+	  new Settler(deferred, true, false, scope),
+	  new Settler(deferred, false, false, scope) });
+    }
+
+    return deferred;
+  }
+
+  /** Returns true if an object is a Deferred or any other object
+   *  with a then() method. */
+
+  public static boolean isThenable(Object o) {
+    return (o instanceof JSDeferred ||
+	    (o instanceof Scriptable && !(o instanceof XMLObject) &&
+	     ScriptableObject.getProperty((Scriptable) o, "then") instanceof Function));
+  }
+
+  /** Converts a thenable object into a Deferred.
+   *
+   *  @param cx        The current Context.
+   *  @param scope     The scope to create the Deferred in.
+   *  @param thenable  An object for which isThenable() returns true.
+   *
+   *  @return A Deferred that settles when the thenable settles.
+   */
+
+  public static JSDeferred toDeferred(Context cx, Scriptable scope, Object thenable) {
+    if (thenable instanceof JSDeferred) {
+      return (JSDeferred) thenable;
+    }
+
+    JSDeferred deferred = (JSDeferred) JSESXX.newObject(cx, scope, "Deferred", Context.emptyArgs);
+    deferred.resolve(thenable);
+    return deferred;
+  }
+
+  /** Resolves this Deferred. If the value is itself thenable, this
+   *  Deferred will follow it instead. */
+
+  public void resolve(Object value) {
+    if (lock()) {
+      follow(true, value);
+    }
+  }
+
+  public void reject(Object reason) {
+    if (lock()) {
+      follow(false, reason);
+    }
+  }
+
+  /** Registers a Listener. If this Deferred has already settled, the
+   *  Listener is invoked immediately, from the calling thread. */
+
+  public void addListener(Listener listener) {
+    boolean fulfilled;
+    Object  value;
+
+    synchronized (this) {
+      if (state == PENDING) {
+	if (listeners == null) {
+	  listeners = new ArrayList<Listener>();
+	}
+
+	listeners.add(listener);
+	return;
+      }
+
+      fulfilled = state == FULFILLED;
+      value     = result;
+    }
+
+    listener.settled(fulfilled, value);
+  }
+
+  /** Calls a function and resolves this Deferred with its return
+   *  value, or rejects it with the exception it throws. */
+
+  void resolveWith(Context cx, Function func, Object[] args) {
+    Scriptable scope = func.getParentScope();
+
+    try {
+      resolve(func.call(cx, scope, scope, args));
+    }
+    catch (JavaScriptException ex) {
+      reject(ex.getValue());
+    }
+    catch (RuntimeException ex) {
+      reject(ex);
+    }
+  }
+
+  public synchronized String jsGet_state() {
+    return state == PENDING ? "pending" : state == FULFILLED ? "fulfilled" : "rejected";
+  }
+
+  public void jsFunction_resolve(Object value) {
+    resolve(value);
+  }
+
+  public void jsFunction_reject(Object reason) {
+    reject(reason);
+  }
+
+  public static Object jsFunction_then(Context cx, Scriptable thisObj,
+				       Object[] args, Function funcObj) {
+    final JSDeferred next = (JSDeferred) JSESXX.newObject(cx, funcObj, "Deferred",
+							  Context.emptyArgs);
+    final Function on_fulfilled = (args.length > 0 && args[0] instanceof Function
+				   ? (Function) args[0] : null);
+    final Function on_rejected  = (args.length > 1 && args[1] instanceof Function
+				   ? (Function) args[1] : null);
+
+    // Callbacks run in the thread pool of (and never outlive) the
+    // workload that registered them
+    final ESXX.Workload parent = (ESXX.Workload) cx.getThreadLocal(ESXX.Workload.class);
+
+    ((JSDeferred) thisObj).addListener(new Listener() {
+	public void settled(boolean fulfilled, final Object value) {
+	  final Function func = fulfilled ? on_fulfilled : on_rejected;
+
+	  if (func == null) {
+	    // Pass the outcome on to the next Deferred in the chain
+	    if (next.lock()) {
+	      next.complete(fulfilled, value);
+	    }
+	    return;
+	  }
+
+	  ESXX.getInstance().resumeWorkload(parent, new ContextAction() {
+	      public Object run(Context cx) {
+		Object arg = Context.javaToJS(value, func.getParentScope());
+
+		next.resolveWith(cx, func, new Object[] { arg });
+		return null;
+	      }
+	    }, "Deferred callback", 0);
+	}
+      });
+
+    return next;
+  }
+
+  @Override public String toString() {
+    return "[object Deferred (" + jsGet_state() + ")]";
+  }
+
+  private synchronized boolean lock() {
+    if (locked) {
+      return false;
+    }
+
+    locked = true;
+    return true;
+  }
+
+  private void follow(boolean fulfilled, Object value) {
+    if (!fulfilled) {
+      complete(false, value);
+    }
+    else if (value == this) {
+      complete(false, ScriptRuntime.typeError("A Deferred cannot be resolved with itself"));
+    }
+    else if (value instanceof JSDeferred) {
+      ((JSDeferred) value).addListener(new Listener() {
+	  public void settled(boolean fulfilled, Object value) {
+	    complete(fulfilled, value);
+	  }
+	});
+    }
+    else if (isThenable(value) && Context.getCurrentContext() != null) {
+      Context    cx    = Context.getCurrentContext();
+      Scriptable obj   = (Scriptable) value;
+      Scriptable scope = ScriptableObject.getTopLevelScope(obj);
+
+      try {
+	ScriptableObject.callMethod(cx, obj, "then", new Object[] {
+	    new Settler(this, true, true, scope),
+	    new Settler(this, false, true, scope) });
+      }
+      catch (JavaScriptException ex) {
+	complete(false, ex.getValue());
+      }
+      catch (RuntimeException ex) {
+	complete(false, ex);
+      }
+    }
+    else {
+      complete(true, value);
+    }
+  }
+
+  private void complete(boolean fulfilled, Object value) {
+    List<Listener> to_notify;
+
+    synchronized (this) {
+      if (state != PENDING) {
+	return;
+      }
+
+      state     = fulfilled ? FULFILLED : REJECTED;
+      result    = value;
+      to_notify = listeners;
+      listeners = null;
+    }
+
+    // Invoke listeners without holding any locks
+    if (to_notify != null) {
+      for (Listener l : to_notify) {
+	l.settled(fulfilled, value);
+      }
+    }
+  }
+
+  /** The resolve and reject functions handed out to JavaScript code. */
+
+  private static class Settler
+    extends BaseFunction {
+    private static final long serialVersionUID = 5036311874590612357L;
+
+    public Settler(JSDeferred deferred, boolean fulfill, boolean adopting, Scriptable scope) {
+      this.deferred = deferred;
+      this.fulfill  = fulfill;
+      this.adopting = adopting;
+
+      ScriptRuntime.setFunctionProtoAndParent(this, scope);
+    }
+
+    @Override public Object call(Context cx, Scriptable scope, Scriptable thisObj,
+				 Object[] args) {
+      Object value = args.length > 0 ? args[0] : Context.getUndefinedValue();
+
+      if (adopting) {
+	// Following a thenable; the Deferred is already locked
+	deferred.follow(fulfill, value);
+      }
+      else if (fulfill) {
+	deferred.resolve(value);
+      }
+      else {
+	deferred.reject(value);
+      }
+
+      return Context.getUndefinedValue();
+    }
+
+    private JSDeferred deferred;
+    private boolean fulfill;
+    private boolean adopting;
+  }
+
+  private static final int PENDING   = 0;
+  private static final int FULFILLED = 1;
+  private static final int REJECTED  = 2;
+
+  private int state = PENDING;
+  private boolean locked;
+  private Object result;
+  private transient List<Listener> listeners;
+}
@@ -21,6 +21,7 @@ package org.esxx.js;
 import org.esxx.ESXX;
 import org.esxx.ESXXException;
 import org.esxx.Application;
+import org.esxx.PubSub;
 
 import java.io.InputStream;
 import java.io.IOException;
@@ -62,6 +63,7 @@ public class JSESXX
 				  Scriptable prototype) {
       // Define classes in constructor object
       try {
+	ScriptableObject.defineClass(constructor, JSDeferred.class);
 	ScriptableObject.defineClass(constructor, JSLogger.class);
 	ScriptableObject.defineClass(constructor, JSLRUCache.class);
 	ScriptableObject.defineClass(constructor, JSRequest.class);
@@ -70,7 +72,7 @@ public class JSESXX
 	ScriptableObject.defineClass(constructor, JSStylesheet.class);
       }
       catch (Exception ex) {
-	throw new ESXXException("Failed to define Logger, Request and Response classes");
+	throw new ESXXException("Failed to define Deferred, Logger, Request and Response classes");
       }
     }
 
@@ -78,7 +80,7 @@ public class JSESXX
 	Scriptable global = getTopLevelScope(scope);
 	Scriptable esxx   = (Scriptable) global.get("ESXX", global);
 	Function   ctor   = (Function) esxx.get(name, esxx);
-	
+
 	return ctor.construct(cx, scope, args);
     }
     
@@ -246,6 +248,123 @@ public class JSESXX
     }
 
 
+    /** Calls a function in a new workload and returns a Deferred
+     *  for its result. Any additional arguments are passed on to the
+     *  function. */
+
+    public static Scriptable jsFunction_async(Context cx, Scriptable thisObj,
+					      Object[] args, Function funcObj) {
+      if (args.length < 1 || !(args[0] instanceof Function)) {
+	throw Context.reportRuntimeError("First argument must be a Function");
+      }
+
+      final Function     func = (Function) args[0];
+      final Object[]    fargs = new Object[args.length - 1];
+      final JSDeferred result = (JSDeferred) newObject(cx, funcObj, "Deferred", Context.emptyArgs);
+
+      System.arraycopy(args, 1, fargs, 0, fargs.length);
+
+      ESXX.getInstance().addContextAction(cx, new ContextAction() {
+	  public Object run(Context cx) {
+	    result.resolveWith(cx, func, fargs);
+	    return null;
+	  }
+	}, "esxx.async", 0);
+
+      return result;
+    }
+
+    /** Publishes a message to all subscribers of a topic.
+     *
+     *  esxx.publish(topic, data [, event]) returns the number of
+     *  subscribers that received the message.
+     */
+
+    public static int jsFunction_publish(Context cx, Scriptable thisObj,
+					 Object[] args, Function funcObj) {
+      if (args.length < 2) {
+	throw Context.reportRuntimeError("publish() requires 2 or 3 arguments");
+      }
+
+      String event = null;
+
+      if (args.length > 2 && args[2] != Context.getUndefinedValue()) {
+	event = Context.toString(args[2]);
+      }
+
+      return ESXX.getInstance().getPubSub().publish(getTopic(thisObj, args[0]), event, args[1]);
+    }
+
+    /** Returns a text/event-stream Response that sends every message
+     *  published to the given topics, until the client disconnects.
+     *  No thread is used while the stream is idle. */
+
+    public static Scriptable jsFunction_subscribe(Context cx, Scriptable thisObj,
+						  Object[] args, Function funcObj) {
+      if (args.length < 1) {
+	throw Context.reportRuntimeError("subscribe() requires at least one topic");
+      }
+
+      String[] topics = new String[args.length];
+
+      for (int i = 0; i < args.length; ++i) {
+	topics[i] = getTopic(thisObj, args[i]);
+      }
+
+      PubSub.EventStream es = ESXX.getInstance().getPubSub().createEventStream(topics);
+      Scriptable    headers = cx.newObject(funcObj);
+
+      // Closed if the handler does not return it after all
+      ESXX.Workload workload = (ESXX.Workload) cx.getThreadLocal(ESXX.Workload.class);
+
+      if (workload != null) {
+	workload.addEventStream(es);
+      }
+
+      headers.put("Cache-Control", headers, "no-cache");
+
+      return newObject(cx, funcObj, "Response", new Object[] {
+	  200, headers, es, "text/event-stream; charset=UTF-8" });
+    }
+
+    /** Returns a Deferred that is resolved with the next message
+     *  published to a topic (long polling), or with null if the
+     *  optional timeout in seconds passes first. */
+
+    public static Scriptable jsFunction_poll(Context cx, Scriptable thisObj,
+					     Object[] args, Function funcObj) {
+      if (args.length < 1) {
+	throw Context.reportRuntimeError("poll() requires 1 or 2 arguments");
+      }
+
+      long timeout_ms = -1;
+
+      if (args.length > 1 && args[1] != Context.getUndefinedValue()) {
+	timeout_ms = (long) (1000 * Context.toNumber(args[1]));
+      }
+      else {
+	// Never wait longer than the current request
+	ESXX.Workload workload = (ESXX.Workload) cx.getThreadLocal(ESXX.Workload.class);
+
+	if (workload != null && workload.getExpires() != Long.MAX_VALUE) {
+	  timeout_ms = Math.max(0, workload.getExpires() - System.currentTimeMillis());
+	}
+      }
+
+      JSDeferred result = (JSDeferred) newObject(cx, funcObj, "Deferred", Context.emptyArgs);
+
+      ESXX.getInstance().getPubSub().poll(getTopic(thisObj, args[0]), result, timeout_ms);
+      return result;
+    }
+
+    /** Returns the server-wide name of a topic. Topics are private to
+     *  the application, so it's prefixed with the application's
+     *  filename. */
+
+    private static String getTopic(Scriptable thisObj, Object topic) {
+      return ((JSESXX) thisObj).app.getFilename() + "\n" + Context.toString(topic);
+    }
+
     public static Scriptable jsFunction_map(final Context cx, Scriptable thisObj,
 					    final Object[] args, Function funcObj) {
       JSESXX js_esxx = (JSESXX) thisObj;
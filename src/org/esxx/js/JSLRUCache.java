@@ -21,6 +21,8 @@ package org.esxx.js;
 import java.util.HashMap;
 import org.esxx.Application;
 import org.esxx.cache.LRUCache;
+import org.esxx.cache.WeightBudget;
+import org.esxx.util.ObjectWeigher;
 import org.mozilla.javascript.*;
 
 public class JSLRUCache
@@ -32,10 +34,10 @@ public class JSLRUCache
     super();
   }
 
-  public JSLRUCache(int max_entries, long max_age_ms) {
+  public JSLRUCache(int max_entries, long max_age_ms, int segments) {
     super();
 
-    cache = new LRUCache<String, Object>(max_entries, max_age_ms);
+    cache = new LRUCache<String, Object>(max_entries, max_age_ms, segments);
 
     cache.addListener(new LRUCache.LRUListener<String, Object>() {
 	public void entryAdded(String key, Object value) {
@@ -60,9 +62,19 @@ public class JSLRUCache
       });
   }
 
-  public static JSLRUCache newJSLRUCache(Context cx, Application app) {
-    return (JSLRUCache) JSESXX.newObject(cx, app.getJSGlobal(), "LRUCache",
-					 new Object[] { Integer.MAX_VALUE, Long.MAX_VALUE });
+  public static JSLRUCache newJSLRUCache(Context cx, Application app, int segments,
+					 long max_bytes) {
+    JSLRUCache cache = (JSLRUCache) JSESXX.newObject(cx, app.getJSGlobal(), "LRUCache",
+						     new Object[] { Integer.MAX_VALUE,
+								    Long.MAX_VALUE,
+								    segments });
+    WeightBudget budget = app.getCacheBudget();
+
+    if (max_bytes != Long.MAX_VALUE || budget != null) {
+      cache.setWeightLimits(max_bytes, budget);
+    }
+
+    return cache;
   }
 
   static public Object jsConstructor(Context cx,
@@ -71,6 +83,8 @@ public class JSLRUCache
 				     boolean inNewExpr) {
     int max_entries;
     long max_age_ms;
+    int segments = 1;
+    long max_bytes = Long.MAX_VALUE;
 
     if (args.length < 2) {
       throw Context.reportRuntimeError("Required argument missing.");
@@ -78,10 +92,36 @@ public class JSLRUCache
 
     max_entries = (int) Context.toNumber(args[0]);
     max_age_ms  = (long) (1000 * Context.toNumber(args[1]));
-    return new JSLRUCache(max_entries, max_age_ms);
+
+    if (args.length > 2 && args[2] != Context.getUndefinedValue()) {
+      segments = (int) Context.toNumber(args[2]);
+    }
+
+    if (args.length > 3 && args[3] != Context.getUndefinedValue()) {
+      max_bytes = (long) Context.toNumber(args[3]);
+    }
+
+    JSLRUCache cache = new JSLRUCache(max_entries, max_age_ms, segments);
+
+    if (max_bytes != Long.MAX_VALUE) {
+      cache.setWeightLimits(max_bytes, null);
+    }
+
+    return cache;
   }
 
 
+  /** Limits the estimated size of all values in this cache. Entries
+   *  that are evicted to make room will have their destructors called.
+   *
+   *  @param max_bytes  The maximum estimated size of this cache.
+   *  @param budget     A WeightBudget shared with other caches. May be null.
+   */
+
+  public void setWeightLimits(long max_bytes, WeightBudget budget) {
+    cache.setWeigher(ObjectWeigher.INSTANCE, max_bytes, budget);
+  }
+
   @Override public String getClassName() {
     return "LRUCache";
   }
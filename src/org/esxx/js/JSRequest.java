@@ -27,6 +27,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
 import javax.mail.internet.ContentType;
@@ -45,66 +46,27 @@ public class JSRequest
       super();
     }
 
+    /** Creates a new Request object.
+     *
+     *  Only the Content-* headers and the SOAPAction header are
+     *  examined here. All other views of the request, like env,
+     *  headers, cookies, accept and query, are created on first
+     *  access.
+     */
+
     public JSRequest(Request request, Context cx, Scriptable scope) {
       this();
 
-      ESXX esxx = ESXX.getInstance();
-
       this.request = request;
+      this.scope   = scope;
+      args         = null;
 
-      requestURI = (JSURI) cx.newObject(scope, "URI", new Object[] { request.getRequestURI() });
-      scriptURI  = (JSURI) cx.newObject(scope, "URI", new Object[] { request.getScriptURI() });
-
-      env     = cx.newObject(scope);
-      headers = cx.newObject(scope);
-      cookies = cx.newObject(scope);
-      accept  = cx.newObject(scope);
-      query   = cx.newObject(scope);
-      args    = null;
-      params  = cx.newObject(scope);
-
-      acceptValueOf = new FunctionObject("valueOf", acceptValueOfMethod, accept);
-
-      for (String name :  request.getProperties().stringPropertyNames()) {
-	String value = request.getProperties().getProperty(name).trim();
-
-	// Add environtment variable to esxx.env
-	ScriptableObject.putProperty(env, name, value);
-
-	// If this is an HTTP header, get the original name back
-	String hdr = esxx.cgiToHTTP(name);
-
-	if (hdr != null) {
-	  // Add real HTTP header to this.headers
-	  addHeader(hdr, value);
-
-	  // Decode cookies
-	  handleCookieHeader(hdr, value);
-
-	  // Decode Accept* HTTP headers
-	  handleAcceptHeader(hdr, value, cx, accept);
-
-	  // Decode Content-* HTTP headers
-	  handleContentHeader(hdr, value);
-
-	  // Handle SOAPAction
-	  if (hdr.equals("SOAPAction")) {
-	    soapAction = value;
-	  }
-	}
-
-	if (name.equals("QUERY_STRING")) {
-	  try {
-	    StringUtil.decodeFormVariables(value, query);
-	  }
-	  catch (UnsupportedEncodingException ex) {
-	    throw new ESXXException("Unable to parse request entity: " + ex.getMessage(), ex);
-	  }
-	}
+      for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+	// Decode Content-* HTTP headers
+	handleContentHeader(e.getKey(), e.getValue());
       }
 
-      logger  = JSESXX.newObject(cx, scope, "Logger", new Object[] { 
-	  request, request.getScriptName() });
+      soapAction = request.getHeader("SOAPAction");
     }
 
     public void setArgs(Scriptable uri_params) {
@@ -132,11 +94,21 @@ public class JSRequest
       return request.getRequestMethod();
     }
 
-    public JSURI jsGet_requestURI() {
+    public synchronized JSURI jsGet_requestURI() {
+      if (requestURI == null) {
+	requestURI = (JSURI) getContext().newObject(scope, "URI",
+						    new Object[] { request.getRequestURI() });
+      }
+
       return requestURI;
     }
 
-    public JSURI jsGet_scriptURI() {
+    public synchronized JSURI jsGet_scriptURI() {
+      if (scriptURI == null) {
+	scriptURI = (JSURI) getContext().newObject(scope, "URI",
+						   new Object[] { request.getScriptURI() });
+      }
+
       return scriptURI;
     }
 
@@ -148,24 +120,80 @@ public class JSRequest
       return request.getPathInfo();
     }
 
-    public Scriptable jsGet_env() {
+    public synchronized Scriptable jsGet_env() {
+      if (env == null) {
+	Properties props = request.getProperties();
+
+	env = getContext().newObject(scope);
+
+	for (String name : props.stringPropertyNames()) {
+	  ScriptableObject.putProperty(env, name, props.getProperty(name).trim());
+	}
+      }
+
       return env;
     }
 
-    public Scriptable jsGet_headers() {
+    public synchronized Scriptable jsGet_headers() {
+      if (headers == null) {
+	headers = getContext().newObject(scope);
+
+	for (Map.Entry<String, String> e : getHeaderMap().entrySet()) {
+	  ScriptableObject.putProperty(headers, e.getKey(), e.getValue());
+	}
+      }
+
       return headers;
     }
 
-    public Scriptable jsGet_cookies() {
+    public synchronized Scriptable jsGet_cookies() {
+      if (cookies == null) {
+	cookies = getContext().newObject(scope);
+
+	String value = getHeaderMap().get("Cookie");
+
+	if (value != null) {
+	  handleCookieHeader(value);
+	}
+      }
+
       return cookies;
     }
 
-    public Scriptable jsGet_accept() {
+    public synchronized Scriptable jsGet_accept() {
+      if (accept == null) {
+	Context cx = getContext();
+
+	accept        = cx.newObject(scope);
+	acceptValueOf = new FunctionObject("valueOf", acceptValueOfMethod, accept);
+
+	for (Map.Entry<String, String> e : getHeaderMap().entrySet()) {
+	  // Decode Accept* HTTP headers
+	  handleAcceptHeader(e.getKey(), e.getValue(), cx, accept);
+	}
+      }
+
       return accept;
     }
 
 
-    public Scriptable jsGet_query() {
+    public synchronized Scriptable jsGet_query() {
+      if (query == null) {
+	query = getContext().newObject(scope);
+
+	URI    uri   = request.getRequestURI();
+	String value = uri != null ? uri.getRawQuery() : null;
+
+	if (value != null) {
+	  try {
+	    StringUtil.decodeFormVariables(value, query);
+	  }
+	  catch (UnsupportedEncodingException ex) {
+	    throw new ESXXException("Unable to parse request entity: " + ex.getMessage(), ex);
+	  }
+	}
+      }
+
       return query;
     }
 
@@ -174,16 +202,25 @@ public class JSRequest
     }
 
 
-    public Scriptable jsGet_params() {
+    public synchronized Scriptable jsGet_params() {
+      if (params == null) {
+	params = getContext().newObject(scope);
+      }
+
       return params;
     }
 
-    public void jsSet_params(Scriptable params) {
+    public synchronized void jsSet_params(Scriptable params) {
       this.params = params;
     }
 
 
-    public Scriptable jsGet_log() {
+    public synchronized Scriptable jsGet_log() {
+      if (logger == null) {
+	logger = JSESXX.newObject(getContext(), scope, "Logger", new Object[] {
+	    request, request.getScriptName() });
+      }
+
       return logger;
     }
 
@@ -213,7 +250,16 @@ public class JSRequest
       return soapAction;
     }
 
+    private Map<String, String> getHeaderMap() {
+      return request.getHeaders();
+    }
+
+    private static Context getContext() {
+      return Context.getCurrentContext();
+    }
+
     private Request request;
+    private Scriptable scope;
 
     private JSURI requestURI;
     private JSURI scriptURI;
@@ -256,22 +302,16 @@ public class JSRequest
     }
 
 
-    private void addHeader(String name, String value) {
-      ScriptableObject.putProperty(headers, name, value);
-    }
-
     static private Pattern cookieSeparator = Pattern.compile("\\s*;\\s*");
     static private Pattern valueSeparator  = Pattern.compile("\\s*=\\s*");
 
-    private void handleCookieHeader(String hdr, String value) {
-      if (hdr.equals("Cookie")) {
-	for (String cookie : cookieSeparator.split(value)) {
-	  String[] parts = valueSeparator.split(cookie, 2);
-	  String cn = parts[0];
-	  String cv = parts.length < 2 || parts[1] == null ? "" : parts[1];
+    private void handleCookieHeader(String value) {
+      for (String cookie : cookieSeparator.split(value)) {
+	String[] parts = valueSeparator.split(cookie, 2);
+	String cn = parts[0];
+	String cv = parts.length < 2 || parts[1] == null ? "" : parts[1];
 
-	  ScriptableObject.putProperty(cookies, cn, cv);
-	}
+	ScriptableObject.putProperty(cookies, cn, cv);
       }
     }
 
@@ -389,13 +429,8 @@ public class JSRequest
 	try {
 	  MimeHeaders mime_headers = new MimeHeaders();
 
-	  for (Object k : headers.getIds()) {
-	    if (k instanceof String) {
-	      String name  = (String) k;
-	      String value = Context.toString(ScriptableObject.getProperty(headers, name));
-
-	      mime_headers.addHeader(name, value);
-	    }
+	  for (Map.Entry<String, String> e : getHeaderMap().entrySet()) {
+	    mime_headers.addHeader(e.getKey(), e.getValue());
 	  }
 
 	  return MessageFactory.newInstance(SOAPConstants.DYNAMIC_SOAP_PROTOCOL)
@@ -421,6 +456,10 @@ public class JSRequest
 				  new java.io.PrintWriter(request.getErrorWriter()),
 				  Context.getCurrentContext(), this);
 	}
+	catch (ESXXException ex) {
+	  // For instance, "413 Request Entity Too Large" from the front-end
+	  throw ex;
+	}
 	catch (Exception ex) {
 	  throw new ESXXException(400 /* Bad Request */, 
 				  "Unable to parse request entity: " + ex.getMessage(), ex);
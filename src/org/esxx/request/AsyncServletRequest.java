@@ -20,13 +20,18 @@ package org.esxx.request;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Properties;
 import java.util.logging.Level;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.*;
 import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.HttpConnection;
 import org.esxx.*;
+import org.esxx.util.FileRegion;
 
 public class AsyncServletRequest
   extends ServletRequest {
@@ -36,6 +41,9 @@ public class AsyncServletRequest
     throws IOException {
     super(sreq, null);
     this.cont = cont;
+
+    // Only available in the thread that Jetty dispatched the request to
+    this.connection = HttpConnection.getCurrentConnection();
   }
 
   public Integer handleResponse(Response response)
@@ -46,10 +54,40 @@ public class AsyncServletRequest
     }
     finally {
       super.sres = null;
-      cont.complete();
     }
   }
 
+  @Override protected void finished() {
+    super.finished();
+    cont.complete();
+  }
+
+  @Override protected void abortConnection() {
+    if (connection != null) {
+      try {
+	connection.getEndPoint().close();
+      }
+      catch (IOException ignored) {}
+    }
+  }
+
+  @Override protected void writeResult(Response response, ServletOutputStream out)
+    throws IOException {
+    if (response.getResult() instanceof FileRegion &&
+	out instanceof HttpConnection.Output) {
+      // Let Jetty write large files, memory-mapped, directly to the
+      // socket (small ones are not mapped and just copied)
+      ByteBuffer mapped = ((FileRegion) response.getResult()).map();
+
+      if (mapped != null) {
+	((HttpConnection.Output) out).sendContent(new DirectNIOBuffer(mapped, false));
+	return;
+      }
+    }
+
+    super.writeResult(response, out);
+  }
+
   public static void handleServletRequest(HttpServletRequest  sreq,
 					  HttpServletResponse sres,
 					  URI                 fs_root_uri,
@@ -80,4 +118,5 @@ public class AsyncServletRequest
   }
 
   private Continuation cont;
+  private HttpConnection connection;
 }
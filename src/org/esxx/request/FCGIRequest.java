@@ -22,6 +22,7 @@ import java.io.*;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Properties;
 import java.util.logging.Level;
 import org.bumblescript.jfast.*;
 import org.esxx.*;
@@ -33,24 +34,48 @@ import org.mozilla.javascript.ContextAction;
 public class FCGIRequest
   extends WebRequest {
 
-  public FCGIRequest(JFastRequest jfast) {
-    // NOTE: We MUST NOT send the error stream to jfast.error, because
+  public FCGIRequest(final JFastRequest jfast) {
+    this(jfast.properties, new ByteArrayInputStream(jfast.data),
+	 new FilterOutputStream(jfast.out) {
+	   @Override public void write(byte[] b, int off, int len)
+	     throws IOException {
+	     out.write(b, off, len);
+	   }
+
+	   @Override public void close()
+	     throws IOException {
+	     flush();
+	     jfast.end();
+	   }
+	 });
+  }
+
+  /** Creates a FastCGI request.
+   *
+   *  @param params  The FCGI_PARAMS (CGI environment) of the request.
+   *  @param in      The FCGI_STDIN stream.
+   *  @param out     The FCGI_STDOUT stream. Closing it ends the request.
+   */
+
+  public FCGIRequest(Properties params, InputStream in, OutputStream out) {
+    // NOTE: We MUST NOT send the error stream to FCGI_STDERR, because
     // that stream will, at least by lighttpd, be inserted in the
     // output stream, leading to broken HTTP responses!
-    super(new ByteArrayInputStream(jfast.data), System.err);
-    jFast = jfast;
+    super(in, System.err);
+    this.params = params;
+    this.stdout = out;
   }
 
   public void initRequest(URI fs_root_uri)
     throws URISyntaxException {
-    String   request_method    = jFast.properties.getProperty("REQUEST_METHOD");
+    String   request_method    = params.getProperty("REQUEST_METHOD");
     URI      request_uri;
     URI      path_translated;
 
-    String scheme   = jFast.properties.getProperty("HTTPS", "off").equals("on") ? "https" : "http";
-    String hostname = jFast.properties.getProperty("HTTP_HOST", "localhost");
-    String path     = jFast.properties.getProperty("REQUEST_URI");
-    String query    = jFast.properties.getProperty("QUERY_STRING", "");
+    String scheme   = params.getProperty("HTTPS", "off").equals("on") ? "https" : "http";
+    String hostname = params.getProperty("HTTP_HOST", "localhost");
+    String path     = params.getProperty("REQUEST_URI");
+    String query    = params.getProperty("QUERY_STRING", "");
 
     if (path != null) {
       int q = path.indexOf('?');
@@ -61,7 +86,7 @@ public class FCGIRequest
     }
     else {
       // Fall back to PATH_INFO (it might work too)
-      path = StringUtil.encodeURI(jFast.properties.getProperty("PATH_INFO", ""), false);
+      path = StringUtil.encodeURI(params.getProperty("PATH_INFO", ""), false);
     }
 
     request_uri = new URI(scheme + "://" + StringUtil.encodeURI(hostname, true)
@@ -70,15 +95,15 @@ public class FCGIRequest
     if (fs_root_uri == null) {
       String pt_path = null;
 
-      if (ESXX.getInstance().isHandlerMode(jFast.properties.getProperty("SERVER_SOFTWARE"))) {
-        pt_path = jFast.properties.getProperty("PATH_TRANSLATED");
+      if (ESXX.getInstance().isHandlerMode(params.getProperty("SERVER_SOFTWARE"))) {
+	pt_path = params.getProperty("PATH_TRANSLATED");
       }
 
       if (pt_path == null) {
         // If not handler mode, or PATH_TRANSLATED missing, use
         // SCRIPT_FILENAME + PATH_INFO instead
-        pt_path = (jFast.properties.getProperty("SCRIPT_FILENAME")
-  		 + jFast.properties.getProperty("PATH_INFO"));
+	pt_path = (params.getProperty("SCRIPT_FILENAME")
+		 + params.getProperty("PATH_INFO"));
       }
 
       path_translated = new URI("file", null, pt_path, null);
@@ -88,20 +113,39 @@ public class FCGIRequest
       path_translated = getPathTranslated(fs_root_uri, path, "/");
     }
 
+    // FastCGI gives us a CGI environment, so the headers must be
+    // extracted from that one instead
+    ESXX esxx = ESXX.getInstance();
+
+    for (String name : params.stringPropertyNames()) {
+      String hdr = esxx.cgiToHTTP(name);
+
+      if (hdr != null) {
+	addHeader(hdr, params.getProperty(name));
+      }
+    }
+
     initRequest(request_method, request_uri, path_translated,
-		jFast.properties, fs_root_uri, false);
+		params, fs_root_uri, false);
   }
 
   @Override public Integer handleResponse(Response response)
     throws Exception {
+    boolean detached = false;
+
     try {
+      Compression compression = ESXX.getInstance().getCompression();
+      String      encoding    = compression.prepare(this, response);
+
       // Output HTTP headers
-      final PrintWriter out = new PrintWriter(IO.createWriter(jFast.out, "US-ASCII"));
+      final PrintWriter out = new PrintWriter(IO.createWriter(stdout, "US-ASCII"));
 
       out.println("Status: " + response.getStatus());
       out.println("Content-Type: " + response.getContentType(true));
 
-      if (response.isBuffered()) {
+      boolean events = response.getResult() instanceof PubSub.EventStream;
+
+      if (encoding == null && !events && response.isBuffered()) {
 	out.println("Content-Length: " + response.getContentLength());
       }
 
@@ -114,30 +158,89 @@ public class FCGIRequest
       out.println();
       out.flush();
 
-      response.writeResult(jFast.out);
+      if (events) {
+	PubSub.EventStream es = (PubSub.EventStream) response.getResult();
+
+	try {
+	  stdout.flush();
+	}
+	catch (IOException ex) {
+	  es.close();
+	  throw ex;
+	}
+
+	// The events are written by PubSub, and the request ends when
+	// the stream is closed. (A stalled write is interrupted.)
+	es.open(stdout, new Runnable() {
+	    public void run() {
+	      try { stdout.close(); } catch (IOException ignored) {}
+	    }
+	  }, null);
+
+	detached = true;
+	return 0;
+      }
+      else if (encoding != null) {
+	compression.writeResult(response, encoding, stdout);
+      }
+      else {
+	response.writeResult(stdout);
+      }
 
       getErrorWriter().flush();
-      jFast.out.flush();
+      stdout.flush();
 
       return 0;
     }
+    catch (IOException ex) {
+      // If we fail to send response, it's probably just because
+      // nobody is listening anyway.
+      return 20;
+    }
     finally {
-      jFast.end();
+      if (!detached) {
+	stdout.close();
+      }
     }
   }
 
   public static void runServer(int fastcgi_port, final URI fs_root_uri)
     throws IOException {
     final ESXX esxx  = ESXX.getInstance();
-    JFast jfast = new JFast(fastcgi_port);
-
-    esxx.getLogger().logp(Level.INFO, null, null,
-			  "Listening for FastCGI requests on port " + fastcgi_port);
 
     int timeout = (int) (Double.parseDouble(esxx.getSettings()
 					    .getProperty("esxx.net.timeout", "60"))
 			 * 1000);
 
+    if (Boolean.parseBoolean(esxx.getSettings().getProperty("esxx.fastcgi.nio", "true"))) {
+      esxx.getLogger().logp(Level.INFO, null, null,
+			    "Listening for FastCGI requests on port " + fastcgi_port);
+
+      while (true) {
+	FCGIServer server = new FCGIServer(fastcgi_port, fs_root_uri, timeout);
+
+	try {
+	  server.run();
+	}
+	catch (IOException ex) {
+	  esxx.getLogger().log(Level.SEVERE, "FastCGI server failed", ex);
+	  // Re-bind
+	  server.close();
+	}
+	catch (RuntimeException ex) {
+	  esxx.getLogger().log(Level.SEVERE, "FastCGI server failed", ex);
+	  server.close();
+	}
+      }
+    }
+
+    // The old, blocking, one-request-per-connection server
+    JFast jfast = new JFast(fastcgi_port);
+
+    esxx.getLogger().logp(Level.INFO, null, null,
+			  "Listening for FastCGI requests on port " + fastcgi_port
+			  + " (blocking mode)");
+
     while (true) {
       try {
 	while (true) {
@@ -225,5 +328,6 @@ public class FCGIRequest
     }
   }
 
-  private JFastRequest jFast;
+  private Properties params;
+  private OutputStream stdout;
 }
@@ -0,0 +1,854 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.request;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.esxx.ESXX;
+import org.esxx.ESXXException;
+import org.esxx.Response;
+import org.esxx.util.SpoolBuffer;
+
+/** A non-blocking FastCGI server.
+ *
+ *  A single selector thread accepts connections and reads records
+ *  from all of them. Connections are kept open when the web server
+ *  asks for it (FCGI_KEEP_CONN), and records are demultiplexed by
+ *  request ID, so one connection may carry several concurrent
+ *  requests.
+ *
+ *  Once the parameters of a request have arrived, a dispatcher thread
+ *  hands the request to ESXX.addRequest(). (If the worker pool is
+ *  saturated, addRequest() may run the request in the calling thread,
+ *  which must never be the selector thread.) Requests that arrive
+ *  when all dispatcher threads are busy are rejected with "503
+ *  Service Unavailable". The FCGI_STDIN records are streamed
+ *  to the request's InputStream as they arrive, via a SpoolBuffer
+ *  that moves to a temporary file if the reader falls too far
+ *  behind. The file is written by a spooler thread
+ *  (esxx.fastcgi.spoolers), so the selector thread never waits for
+ *  the disk. Bodies larger than esxx.fastcgi.max_body_size are
+ *  rejected with "413 Request Entity Too Large". The response is
+ *  sent as FCGI_STDOUT records by whatever thread writes it. Records
+ *  that the socket won't accept right away are queued and written by
+ *  the selector thread; writers block (unless they run in the
+ *  selector thread) if too much output is queued.
+ */
+
+public class FCGIServer {
+  public FCGIServer(int port, URI fs_root_uri, int timeout)
+    throws IOException {
+    esxx      = ESXX.getInstance();
+    fsRootURI = fs_root_uri;
+    idleTimeout = timeout;
+    spoolThreshold = Integer.parseInt(esxx.getSettings()
+				      .getProperty("esxx.fastcgi.spool_threshold", "65536"));
+    maxBodySize    = Long.parseLong(esxx.getSettings()
+				    .getProperty("esxx.fastcgi.max_body_size",
+						 Long.toString(64 * 1024 * 1024)));
+    dispatcher     = new ThreadPoolExecutor(0,
+					    Integer.parseInt(esxx.getSettings()
+							     .getProperty("esxx.fastcgi.dispatchers",
+									  "16")),
+					    60L, TimeUnit.SECONDS,
+					    new SynchronousQueue<Runnable>(),
+					    esxx.createThreadFactory("ESXX-FastCGI-"));
+    int spoolers   = Integer.parseInt(esxx.getSettings()
+				      .getProperty("esxx.fastcgi.spoolers", "2"));
+    spooler        = new ThreadPoolExecutor(spoolers, spoolers, 60L, TimeUnit.SECONDS,
+					    new LinkedBlockingQueue<Runnable>(),
+					    esxx.createThreadFactory("ESXX-FastCGI-Spooler-"));
+    spooler.allowCoreThreadTimeOut(true);
+    selector  = Selector.open();
+    server    = ServerSocketChannel.open();
+
+    server.socket().setReuseAddress(true);
+    server.socket().bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /** Runs the server in the calling thread.
+   *
+   *  This method only returns by throwing an exception.
+   */
+
+  public void run()
+    throws IOException {
+    selectorThread = Thread.currentThread();
+
+    long last_expire = System.currentTimeMillis();
+
+    while (true) {
+      selector.select(1000);
+
+      // Connections that have output the socket didn't accept
+      for (Connection c = pendingWrites.poll(); c != null; c = pendingWrites.poll()) {
+	c.enableWrites();
+      }
+
+      for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+	SelectionKey key = i.next();
+	i.remove();
+
+	try {
+	  handleKey(key);
+	}
+	catch (CancelledKeyException ex) {
+	  // Closed by another thread while we were looking at it
+	  if (key.attachment() instanceof Connection) {
+	    ((Connection) key.attachment()).close();
+	  }
+	}
+      }
+
+      long now = System.currentTimeMillis();
+
+      if (now - last_expire >= 1000) {
+	expireIdleConnections(now);
+	last_expire = now;
+      }
+    }
+  }
+
+  public void close() {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+	((Connection) key.attachment()).close();
+      }
+    }
+
+    try { server.close(); } catch (IOException ignored) {}
+    try { selector.close(); } catch (IOException ignored) {}
+
+    dispatcher.shutdown();
+    spooler.shutdown();
+  }
+
+  private void handleKey(SelectionKey key)
+    throws IOException {
+    if (!key.isValid()) {
+      return;
+    }
+
+    if (key.isAcceptable()) {
+      accept();
+      return;
+    }
+
+    Connection conn = (Connection) key.attachment();
+
+    try {
+      if (key.isReadable()) {
+	conn.read();
+      }
+
+      if (key.isValid() && key.isWritable()) {
+	conn.write();
+      }
+    }
+    catch (IOException ex) {
+      esxx.getLogger().logp(Level.FINE, null, null,
+			    "FastCGI connection " + conn + " failed: " + ex.getMessage());
+      conn.close();
+    }
+  }
+
+  private void accept()
+    throws IOException {
+    SocketChannel channel = server.accept();
+
+    if (channel != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+
+      Connection conn = new Connection(channel);
+      conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+
+      esxx.getLogger().logp(Level.FINE, null, null, "Accepted FastCGI connection " + conn);
+    }
+  }
+
+  private void expireIdleConnections(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+	Connection conn = (Connection) key.attachment();
+
+	if (conn.isIdle(now)) {
+	  esxx.getLogger().logp(Level.FINE, null, null,
+				"Closing idle FastCGI connection " + conn);
+	  conn.close();
+	}
+      }
+    }
+  }
+
+  private void dispatch(final Stream s) {
+    s.stdin = new SpoolBuffer(spoolThreshold, spooler) {
+	@Override protected File createTempFile()
+	  throws IOException {
+	  return s.createTempFile();
+	}
+      };
+
+    final FCGIRequest fr = new FCGIRequest(s.params, s.stdin.getInputStream(), s);
+
+    s.dispatched = true;
+
+    try {
+      dispatcher.execute(new Runnable() {
+	  @Override public void run() {
+	    try {
+	      // Fire and forget
+	      fr.initRequest(fsRootURI);
+	      s.setWorkload(esxx.addRequest(fr, fr, 0));
+	    }
+	    catch (Exception ex) {
+	      fr.reportInternalError(500, "ESXX Server Error", "FastCGI Error",
+				     ex.getMessage(), ex);
+	    }
+	  }
+	});
+    }
+    catch (RejectedExecutionException ex) {
+      s.stdin.discard();
+
+      try {
+	fr.handleResponse(new Response(503, "text/plain; charset=UTF-8",
+				       "503 Service Unavailable: Too many requests\n", null));
+      }
+      catch (Exception ex2) {
+	esxx.getLogger().logp(Level.FINE, null, null,
+			      "Failed to send 503 response: " + ex2.getMessage());
+      }
+    }
+  }
+
+  private void rejectTooLarge(Stream s) {
+    FCGIRequest fr = new FCGIRequest(s.params, new ByteArrayInputStream(new byte[0]), s);
+
+    try {
+      fr.handleResponse(new Response(413, "text/plain; charset=UTF-8",
+				     "413 Request Entity Too Large\n", null));
+    }
+    catch (Exception ex) {
+      esxx.getLogger().logp(Level.FINE, null, null,
+			    "Failed to send 413 response: " + ex.getMessage());
+    }
+  }
+
+  private boolean isTooLarge(long length) {
+    return maxBodySize != -1 && length > maxBodySize;
+  }
+
+  private static ByteBuffer createRecord(int type, int id, byte[] data, int offset, int length) {
+    ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + length);
+
+    record.put((byte) VERSION);
+    record.put((byte) type);
+    record.putShort((short) id);
+    record.putShort((short) length);
+    record.put((byte) 0); // Padding length
+    record.put((byte) 0); // Reserved
+    record.put(data, offset, length);
+    record.flip();
+    return record;
+  }
+
+  private static ByteBuffer createEndRequest(int id, int app_status, int protocol_status) {
+    byte[] body = new byte[] {
+      (byte) (app_status >> 24), (byte) (app_status >> 16),
+      (byte) (app_status >> 8),  (byte) app_status,
+      (byte) protocol_status, 0, 0, 0
+    };
+
+    return createRecord(END_REQUEST, id, body, 0, body.length);
+  }
+
+  private static Properties parseParams(byte[] data)
+    throws IOException {
+    Properties params = new Properties();
+    ByteBuffer bb     = ByteBuffer.wrap(data);
+
+    try {
+      while (bb.hasRemaining()) {
+	int name_length  = readLength(bb);
+	int value_length = readLength(bb);
+
+	String name  = new String(data, bb.position(), name_length, "UTF-8");
+	bb.position(bb.position() + name_length);
+	String value = new String(data, bb.position(), value_length, "UTF-8");
+	bb.position(bb.position() + value_length);
+
+	params.setProperty(name, value);
+      }
+    }
+    catch (RuntimeException ex) {
+      // Buffer underflow or invalid lengths
+      throw new IOException("Malformed FastCGI name-value pairs", ex);
+    }
+
+    return params;
+  }
+
+  private static int readLength(ByteBuffer bb) {
+    int length = bb.get() & 0xff;
+
+    if ((length & 0x80) != 0) {
+      length = ((length & 0x7f) << 24) | ((bb.get() & 0xff) << 16)
+	| ((bb.get() & 0xff) << 8) | (bb.get() & 0xff);
+    }
+
+    return length;
+  }
+
+  private static void writeParam(ByteArrayOutputStream bos, String name, String value)
+    throws IOException {
+    byte[] n = name.getBytes("UTF-8");
+    byte[] v = value.getBytes("UTF-8");
+
+    // All names and values we send are short
+    bos.write(n.length);
+    bos.write(v.length);
+    bos.write(n);
+    bos.write(v);
+  }
+
+
+  /** A FastCGI connection, which may carry multiple requests. */
+
+  private class Connection {
+    public Connection(SocketChannel channel) {
+      this.channel = channel;
+      lastActivity = System.currentTimeMillis();
+    }
+
+    @Override public String toString() {
+      return channel.socket().getRemoteSocketAddress().toString();
+    }
+
+    /** Reads and processes all available records. Called by the
+     *  selector thread only. */
+
+    public void read()
+      throws IOException {
+      if (channel.read(input) == -1) {
+	close();
+	return;
+      }
+
+      lastActivity = System.currentTimeMillis();
+      input.flip();
+
+      while (input.remaining() >= HEADER_LENGTH) {
+	int pos     = input.position();
+	int version = input.get(pos) & 0xff;
+	int type    = input.get(pos + 1) & 0xff;
+	int id      = input.getShort(pos + 2) & 0xffff;
+	int length  = input.getShort(pos + 4) & 0xffff;
+	int padding = input.get(pos + 6) & 0xff;
+
+	if (version != VERSION) {
+	  throw new IOException("Unsupported FastCGI version " + version);
+	}
+
+	if (input.remaining() < HEADER_LENGTH + length + padding) {
+	  break; // Wait for the rest of the record
+	}
+
+	processRecord(type, id, input.array(), input.arrayOffset() + pos + HEADER_LENGTH, length);
+	input.position(pos + HEADER_LENGTH + length + padding);
+      }
+
+      input.compact();
+    }
+
+    private void processRecord(int type, int id, byte[] data, int offset, int length)
+      throws IOException {
+      if (id == 0) {
+	processManagementRecord(type, data, offset, length);
+	return;
+      }
+
+      Stream s = streams.get(id);
+
+      switch (type) {
+	case BEGIN_REQUEST: {
+	  if (length < 8) {
+	    throw new IOException("Malformed FCGI_BEGIN_REQUEST record");
+	  }
+
+	  int     role      = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	  boolean keep_conn = (data[offset + 2] & KEEP_CONN) != 0;
+
+	  if (!keep_conn) {
+	    // Close the connection once this request has been answered
+	    closeWhenDone = true;
+	  }
+
+	  if (role != RESPONDER) {
+	    send(null, createEndRequest(id, 0, UNKNOWN_ROLE));
+	  }
+	  else {
+	    streams.put(id, new Stream(this, id));
+	  }
+	  break;
+	}
+
+	case ABORT_REQUEST:
+	  if (s != null) {
+	    s.abort();
+	  }
+	  break;
+
+	case PARAMS:
+	  if (s != null && s.paramData != null) {
+	    if (length != 0) {
+	      s.paramData.write(data, offset, length);
+	    }
+	    else {
+	      s.params    = parseParams(s.paramData.toByteArray());
+	      s.paramData = null;
+
+	      long content_length = -1;
+
+	      try {
+		content_length = Long.parseLong(s.params.getProperty("CONTENT_LENGTH", "-1"));
+	      }
+	      catch (NumberFormatException ignored) {}
+
+	      // Reject large requests before any data is received
+	      if (isTooLarge(content_length)) {
+		rejectTooLarge(s);
+	      }
+	      else {
+		dispatch(s);
+	      }
+	    }
+	  }
+	  break;
+
+	case STDIN:
+	  if (s != null) {
+	    if (s.stdin == null) {
+	      throw new IOException("FCGI_STDIN received before FCGI_PARAMS");
+	    }
+
+	    if (length == 0) {
+	      s.stdin.close();
+	    }
+	    else if (isTooLarge(s.stdin.getLength() + length)) {
+	      // Fails the request when the handler reads this far
+	      s.stdin.fail(new ESXXException(413, "Request entity too large"));
+	    }
+	    else {
+	      try {
+		s.stdin.write(data, offset, length);
+	      }
+	      catch (IOException ex) {
+		// Spool file failure
+		s.stdin.fail(ex);
+	      }
+	    }
+	  }
+	  break;
+
+	case DATA:
+	  // Only used by the filter role
+	  break;
+
+	default: {
+	  byte[] body = new byte[] { (byte) type, 0, 0, 0, 0, 0, 0, 0 };
+	  send(null, createRecord(UNKNOWN_TYPE, 0, body, 0, body.length));
+	  break;
+	}
+      }
+    }
+
+    private void processManagementRecord(int type, byte[] data, int offset, int length)
+      throws IOException {
+      if (type == GET_VALUES) {
+	byte[] request = new byte[length];
+	System.arraycopy(data, offset, request, 0, length);
+
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+	for (String name : parseParams(request).stringPropertyNames()) {
+	  if (name.equals("FCGI_MPXS_CONNS")) {
+	    writeParam(bos, name, "1");
+	  }
+	}
+
+	byte[] result = bos.toByteArray();
+	send(null, createRecord(GET_VALUES_RESULT, 0, result, 0, result.length));
+      }
+      else {
+	byte[] body = new byte[] { (byte) type, 0, 0, 0, 0, 0, 0, 0 };
+	send(null, createRecord(UNKNOWN_TYPE, 0, body, 0, body.length));
+      }
+    }
+
+    /** Queues records for output.
+     *
+     *  @param s        The stream the records belong to, or null for
+     *                  management records. Records for a stream that
+     *                  has ended are discarded.
+     *  @param records  The records to send.
+     */
+
+    public void send(Stream s, ByteBuffer... records)
+      throws IOException {
+      send(s, false, records);
+    }
+
+    /** Queues the final records of a stream for output. */
+
+    public void end(Stream s, ByteBuffer... records)
+      throws IOException {
+      send(s, true, records);
+    }
+
+    private synchronized void send(Stream s, boolean last, ByteBuffer... records)
+      throws IOException {
+      if (s != null) {
+	if (s.ended) {
+	  if (last) {
+	    return;
+	  }
+
+	  // Let long-lived writers notice that the request is gone
+	  throw new IOException("FastCGI request " + s.id + " has ended");
+	}
+
+	if (last) {
+	  s.ended = true;
+	  streams.remove(s.id);
+
+	  if (s.stdin != null) {
+	    s.stdin.discard();
+	  }
+
+	  lastActivity = System.currentTimeMillis();
+	}
+      }
+
+      if (closed) {
+	throw new IOException("FastCGI connection " + this + " has been closed");
+      }
+
+      for (ByteBuffer record : records) {
+	output.add(record);
+	queued += record.remaining();
+      }
+
+      if (!writeScheduled) {
+	// Try to send it right away
+	flushOutput();
+
+	if (!output.isEmpty()) {
+	  writeScheduled = true;
+	  pendingWrites.add(this);
+	  selector.wakeup();
+	}
+      }
+
+      // Ending a stream never waits (its last records are small), so
+      // that an aborted writer can always close its request
+      if (!last && Thread.currentThread() != selectorThread) {
+	while (queued > MAX_QUEUED_BYTES && !closed) {
+	  try {
+	    wait();
+	  }
+	  catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted while sending FastCGI output");
+	  }
+	}
+      }
+    }
+
+    /** Called by the selector thread when there's queued output. */
+
+    public synchronized void enableWrites() {
+      try {
+	key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+      catch (CancelledKeyException ex) {
+	close();
+      }
+    }
+
+    /** Called by the selector thread when the socket is writable. */
+
+    public synchronized void write()
+      throws IOException {
+      flushOutput();
+
+      if (output.isEmpty() && key.isValid()) {
+	writeScheduled = false;
+	key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    private void flushOutput()
+      throws IOException {
+      while (!output.isEmpty()) {
+	ByteBuffer record = output.getFirst();
+
+	queued -= channel.write(record);
+
+	if (record.hasRemaining()) {
+	  break;
+	}
+
+	output.removeFirst();
+      }
+
+      notifyAll();
+
+      if (output.isEmpty() && closeWhenDone && streams.isEmpty()) {
+	close();
+      }
+    }
+
+    public synchronized boolean isIdle(long now) {
+      if (now - lastActivity < idleTimeout) {
+	return false;
+      }
+
+      for (Stream s : streams.values()) {
+	if (s.dispatched) {
+	  return false; // Still working on it
+	}
+      }
+
+      return output.isEmpty();
+    }
+
+    public synchronized void close() {
+      if (closed) {
+	return;
+      }
+
+      closed = true;
+      notifyAll();
+
+      for (Stream s : streams.values()) {
+	s.ended = true;
+
+	if (s.stdin != null) {
+	  s.stdin.discard();
+	}
+
+	if (s.workload != null) {
+	  s.workload.cancel();
+	}
+      }
+
+      streams.clear();
+      output.clear();
+
+      try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer input = ByteBuffer.allocate(HEADER_LENGTH + MAX_CONTENT_LENGTH + 255);
+    private Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+    private volatile long lastActivity;
+    private volatile boolean closeWhenDone;
+
+    // Guarded by this
+    private LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private long queued;
+    private boolean writeScheduled;
+    private boolean closed;
+  }
+
+
+  /** A request on a FastCGI connection.
+   *
+   *  The input fields are only used by the selector thread. As an
+   *  OutputStream, a Stream is the request's FCGI_STDOUT, and closing
+   *  it ends the request.
+   */
+
+  private class Stream
+    extends OutputStream {
+    public Stream(Connection conn, int id) {
+      this.conn = conn;
+      this.id   = id;
+    }
+
+    @Override public synchronized void write(int b)
+      throws IOException {
+      if (count == buffer.length) {
+	flush();
+      }
+
+      buffer[count++] = (byte) b;
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+      while (len > 0) {
+	if (count == buffer.length) {
+	  flush();
+	}
+
+	int n = Math.min(len, buffer.length - count);
+
+	System.arraycopy(b, off, buffer, count, n);
+	count += n;
+	off   += n;
+	len   -= n;
+      }
+    }
+
+    @Override public synchronized void flush()
+      throws IOException {
+      if (count != 0) {
+	conn.send(this, createRecord(STDOUT, id, buffer, 0, count));
+	count = 0;
+      }
+    }
+
+    @Override public synchronized void close()
+      throws IOException {
+      ByteBuffer data = createRecord(STDOUT, id, buffer, 0, count);
+
+      count = 0;
+      conn.end(this, data,
+	       createRecord(STDOUT, id, buffer, 0, 0),
+	       createEndRequest(id, 0, REQUEST_COMPLETE));
+    }
+
+    /** Creates a spool file for the request body. The workload
+     *  deletes it when the request has been handled. */
+
+    public File createTempFile()
+      throws IOException {
+      // (Not synchronized on this, since writers may be waiting for
+      // the selector thread while holding that lock)
+      synchronized (pendingTempFiles) {
+	File temp = esxx.createTempFile(workload);
+
+	if (workload == null) {
+	  // Not dispatched yet; hand it over later
+	  pendingTempFiles.add(temp);
+	}
+
+	return temp;
+      }
+    }
+
+    /** Called by the dispatcher thread once the request has been
+     *  added. */
+
+    public void setWorkload(ESXX.Workload w) {
+      synchronized (pendingTempFiles) {
+	workload = w;
+
+	for (File temp : pendingTempFiles) {
+	  w.addTempFile(temp);
+	}
+
+	pendingTempFiles.clear();
+      }
+    }
+
+    /** Called by the selector thread when the web server aborts the
+     *  request. */
+
+    public void abort()
+      throws IOException {
+      conn.end(this, createEndRequest(id, 0, REQUEST_COMPLETE));
+
+      if (workload != null) {
+	workload.cancel();
+      }
+    }
+
+    private Connection conn;
+    private int id;
+    private byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+    private int count;
+
+    // Used by the selector thread only
+    private ByteArrayOutputStream paramData = new ByteArrayOutputStream();
+    private Properties params;
+    private volatile SpoolBuffer stdin;
+    private volatile boolean dispatched;
+    private volatile ESXX.Workload workload;
+    private LinkedList<File> pendingTempFiles = new LinkedList<File>();
+
+    // Guarded by conn
+    private boolean ended;
+  }
+
+  private static final int VERSION            = 1;
+  private static final int HEADER_LENGTH      = 8;
+  private static final int MAX_CONTENT_LENGTH = 65535;
+  private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+  private static final long MAX_QUEUED_BYTES  = 256 * 1024;
+
+  private static final int BEGIN_REQUEST     = 1;
+  private static final int ABORT_REQUEST     = 2;
+  private static final int END_REQUEST       = 3;
+  private static final int PARAMS            = 4;
+  private static final int STDIN             = 5;
+  private static final int STDOUT            = 6;
+  private static final int DATA              = 8;
+  private static final int GET_VALUES        = 9;
+  private static final int GET_VALUES_RESULT = 10;
+  private static final int UNKNOWN_TYPE      = 11;
+
+  private static final int RESPONDER         = 1;
+  private static final int KEEP_CONN         = 1;
+  private static final int REQUEST_COMPLETE  = 0;
+  private static final int UNKNOWN_ROLE      = 3;
+
+  private ESXX esxx;
+  private URI fsRootURI;
+  private int idleTimeout;
+  private int spoolThreshold;
+  private long maxBodySize;
+  private Selector selector;
+  private ServerSocketChannel server;
+  private volatile Thread selectorThread;
+  private ThreadPoolExecutor dispatcher;
+  private ThreadPoolExecutor spooler;
+  private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+}
@@ -22,9 +22,12 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.*;
 import org.esxx.*;
 
@@ -53,55 +56,113 @@ public class ServletRequest
 
       URI full_request_uri = new URI(request_url.toString());
 
-      Properties p = createCGIEnvironment(sreq.getMethod(),
-					  sreq.getProtocol(),
-					  full_request_uri,
-					  sreq.getLocalAddr(), sreq.getLocalPort(),
-					  sreq.getRemoteAddr(), sreq.getRemotePort(),
-					  fs_root_uri);
+      // Save what's needed to create the CGI environment on demand
+      fullRequestURI = full_request_uri;
+      fsRootURI      = fs_root_uri;
+      protocol       = sreq.getProtocol();
+      localAddr      = sreq.getLocalAddr();
+      localPort      = sreq.getLocalPort();
+      remoteAddr     = sreq.getRemoteAddr();
+      remotePort     = sreq.getRemotePort();
 
       // Add request headers
       for (Enumeration<?> e = sreq.getHeaderNames(); e.hasMoreElements(); ) {
 	String h = (String) e.nextElement();
-	p.setProperty(ESXX.httpToCGI(h), sreq.getHeader(h));
+	addHeader(h, sreq.getHeader(h));
       }
 
       super.initRequest(sreq.getMethod(), full_request_uri, path_translated,
-			p, fs_root_uri, true);
+			null, fs_root_uri, true);
     }
     catch (URISyntaxException ex) {
       throw new ESXXException(400, "Malformed request URI: " + ex.getMessage(), ex);
     }
   }
 
+  @Override protected Properties createProperties() {
+    Properties p = createCGIEnvironment(getRequestMethod(), protocol, fullRequestURI,
+					localAddr, localPort, remoteAddr, remotePort,
+					fsRootURI);
+
+    for (Map.Entry<String, String> e : getHeaders().entrySet()) {
+      p.setProperty(ESXX.httpToCGI(e.getKey()), e.getValue());
+    }
+
+    addPathVariables(p);
+    return p;
+  }
+
   public Integer handleResponse(Response response)
     throws Exception {
+    boolean detached = false;
+
+    if (!responseState.compareAndSet(NO_RESPONSE, RESPONDING) &&
+	responseState.get() == TIMED_OUT) {
+      // The front-end gave up waiting and has already sent a 504
+      return 20;
+    }
+
     try {
-      int  status = response.getStatus();
+      int    status   = response.getStatus();
+      String encoding = ESXX.getInstance().getCompression().prepare(this, response);
 
       sres.setStatus(status);
       sres.setContentType(response.getContentType(true));
 
       response.enumerateHeaders(new Response.HeaderEnumerator() {
-  	  public void header(String name, String value) {
-  	    sres.addHeader(name, value);
-  	  }
-  	});
+	  public void header(String name, String value) {
+	    sres.addHeader(name, value);
+	  }
+	});
 
       if ((status >= 100 && status <= 199) ||
-  	  status == 204 ||
-  	  status == 205 ||
-  	  status == 304) {
+	  status == 204 ||
+	  status == 205 ||
+	  status == 304) {
 	// No body
       }
+      else if (response.getResult() instanceof PubSub.EventStream) {
+	PubSub.EventStream es = (PubSub.EventStream) response.getResult();
+
+	try {
+	  sres.flushBuffer();
+	}
+	catch (IOException ex) {
+	  es.close();
+	  throw ex;
+	}
+
+	// From now on, the events are written by PubSub, and the
+	// request is finished when the stream is closed. (The blocking
+	// servlet front-end holds its thread until then; see
+	// handleServletRequest().)
+	es.open(sres.getOutputStream(), new Runnable() {
+	    public void run() {
+	      finished();
+	    }
+	  }, new Runnable() {
+	    public void run() {
+	      abortConnection();
+	    }
+	  });
+
+	detached = true;
+      }
       else {
-	if (response.isBuffered()) {
-	  // Output Content-Length header, if size is known
-	  setContentLength(sres, response.getContentLength());
+	if (encoding != null) {
+	  // Compress body on the fly; the length is not known in advance
+	  ESXX.getInstance().getCompression().writeResult(response, encoding,
+							  sres.getOutputStream());
 	}
+	else {
+	  if (response.isBuffered()) {
+	    // Output Content-Length header, if size is known
+	    setContentLength(sres, response.getContentLength());
+	  }
 
-	// Output body
-	response.writeResult(sres.getOutputStream());
+	  // Output body
+	  writeResult(response, sres.getOutputStream());
+	}
       }
 
       return 0;
@@ -112,18 +173,79 @@ public class ServletRequest
       return 20;
     }
     finally {
-      try { sres.flushBuffer(); } catch (Exception ignored) {}
-      done.countDown();
+      if (!detached) {
+	try { sres.flushBuffer(); } catch (Exception ignored) {}
+	finished();
+      }
     }
   }
 
-  public void waitUntilDone(int timeout) {
+  /** Called when the response has been completely sent. */
+
+  protected void finished() {
+    done.countDown();
+  }
+
+  /** Called from another thread when a write to the client has
+   *  blocked for too long. Subclasses that can reach the connection
+   *  should close it, so that the blocked write fails. */
+
+  protected void abortConnection() {
+  }
+
+  /** Writes the response body. Subclasses may override this method
+   *  to use faster, container-specific ways of sending files. */
+
+  protected void writeResult(Response response, ServletOutputStream out)
+    throws IOException {
+    response.writeResult(out);
+  }
+
+  /** Waits until the response has been completely sent. */
+
+  public void waitUntilDone() {
+    try {
+      done.await();
+    }
+    catch (InterruptedException ignored) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Waits until the response has been completely sent, or the
+   *  timeout has passed.
+   *
+   *  @return true if the response has been sent.
+   */
+
+  public boolean waitUntilDone(long timeout) {
     try {
-      done.await(timeout, TimeUnit.MILLISECONDS);
+      return done.await(timeout, TimeUnit.MILLISECONDS);
     }
     catch (InterruptedException ignored) {
       Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Sends a 504 response, unless a response is already being
+   *  sent.
+   *
+   *  @return true if the 504 response was sent.
+   */
+
+  private boolean sendTimeout() {
+    if (!responseState.compareAndSet(NO_RESPONSE, TIMED_OUT)) {
+      return false;
+    }
+
+    try {
+      sres.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
     }
+    catch (IOException ignored) {}
+
+    finished();
+    return true;
   }
 
   private static void setContentLength(HttpServletResponse sres, long length) {
@@ -168,6 +290,23 @@ public class ServletRequest
       // in Google App Engine, this does not matter since there we use
       // a single-threaded "thread-pool" anyway.
       wl.getResult();
+
+      // If the handler returned a Deferred, the workload is done but
+      // the response will be written later, by another workload. The
+      // container must not recycle sres until then. That workload
+      // may be cancelled before it even starts, though, so don't
+      // wait past its cancel time (plus a tick of the canceller) for
+      // it to begin.
+      long cancel_time = wl.getCancelTime();
+
+      if (cancel_time == Long.MAX_VALUE) {
+	sr.waitUntilDone();
+      }
+      else if (!sr.waitUntilDone(cancel_time - System.currentTimeMillis() + 1000)
+	       && !sr.sendTimeout()) {
+	// The response is being sent; it will finish on its own
+	sr.waitUntilDone();
+      }
     }
     catch (java.util.concurrent.CancellationException ex) {
       esxx.getLogger().logp(java.util.logging.Level.WARNING, null, null,
@@ -186,6 +325,18 @@ public class ServletRequest
   }
 
   private HttpServletRequest sreq;
+  private URI fullRequestURI;
+  private URI fsRootURI;
+  private String protocol;
+  private String localAddr;
+  private int localPort;
+  private String remoteAddr;
+  private int remotePort;
   protected HttpServletResponse sres; /* Allow AsyncServletRequest to access this */
   private CountDownLatch done;
+  private AtomicInteger responseState = new AtomicInteger(NO_RESPONSE);
+
+  private static final int NO_RESPONSE = 0;
+  private static final int RESPONDING  = 1;
+  private static final int TIMED_OUT   = 2;
 }
@@ -0,0 +1,358 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import org.esxx.Compression;
+import org.esxx.ESXX;
+import org.esxx.Request;
+import org.esxx.Response;
+import org.esxx.util.FileRegion;
+
+/** Creates responses for static files, honoring conditional and
+ *  range requests.
+ *
+ *  The response body is a FileRegion (or, for multi-range requests,
+ *  an Iterator of parts), so that front-ends that can send
+ *  memory-mapped files directly to the socket may do so for large
+ *  files.
+ *
+ *  Compressible files are sent gzipped to clients that accept it,
+ *  either from a "file.gz" sibling that is at least as new as the
+ *  file itself, or from a cache of compressed copies of small files.
+ *  Other compressed variants are left to Compression.prepare(),
+ *  which compresses them on the fly. Either way, compressed variants
+ *  have their own ETag, which is checked before anything is
+ *  compressed, and are never sent as ranges.
+ */
+
+class StaticFile {
+  public static Response createResponse(Request request, String method,
+					File file, String content_type) {
+    long   length   = file.length();
+    long   modified = file.lastModified() / 1000 * 1000; // HTTP dates have 1 s resolution
+    String etag     = "\"" + Long.toHexString(modified) + "-" + Long.toHexString(length) + "\"";
+
+    TreeMap<String, String> hdr = new TreeMap<String, String>();
+    hdr.put("Last-Modified", formatDate(modified));
+
+    boolean get_or_head = "GET".equals(method) || "HEAD".equals(method);
+    String  encoding    = null;
+
+    if (get_or_head) {
+      encoding = getEncoding(request, file, length, content_type, hdr);
+    }
+
+    if (encoding != null) {
+      // Compression.prepare() leaves an ETag with this suffix alone
+      etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+      hdr.put("ETag", etag);
+
+      if (isNotModified(request, etag, modified)) {
+	return new Response(304, content_type, null, hdr);
+      }
+
+      Object gzipped = "gzip".equals(encoding) ? getGzippedVariant(file) : null;
+
+      if (gzipped != null) {
+	long gz_length = (gzipped instanceof byte[]
+			  ? ((byte[]) gzipped).length
+			  : ((FileRegion) gzipped).getLength());
+
+	hdr.put("Content-Encoding", "gzip");
+	hdr.put("Content-Length",   Long.toString(gz_length));
+	return new Response(200, content_type, gzipped, hdr);
+      }
+
+      // Compressed on the fly by Compression.prepare()
+      hdr.put("Content-Length", Long.toString(length));
+      return new Response(200, content_type, new FileRegion(file, 0, length), hdr);
+    }
+
+    hdr.put("ETag",          etag);
+    hdr.put("Accept-Ranges", "bytes");
+
+    if (get_or_head && isNotModified(request, etag, modified)) {
+      return new Response(304, content_type, null, hdr);
+    }
+
+    String range = request.getHeader("Range");
+
+    if (range != null && "GET".equals(method) && isRangeCurrent(request, etag, modified)) {
+      List<long[]> ranges = parseRanges(range, length);
+
+      if (ranges != null && ranges.isEmpty()) {
+	hdr.put("Content-Range", "bytes */" + length);
+	return new Response(416, "text/plain; charset=UTF-8", "Requested range not satisfiable\n",
+			    hdr);
+      }
+      else if (ranges != null && ranges.size() == 1) {
+	long[] r = ranges.get(0);
+
+	hdr.put("Content-Range",  "bytes " + r[0] + "-" + r[1] + "/" + length);
+	hdr.put("Content-Length", Long.toString(r[1] - r[0] + 1));
+	return new Response(206, content_type, new FileRegion(file, r[0], r[1] - r[0] + 1), hdr);
+      }
+      else if (ranges != null) {
+	return createMultiRangeResponse(file, length, content_type, ranges, hdr);
+      }
+    }
+
+    hdr.put("Content-Length", Long.toString(length));
+    return new Response(200, content_type, new FileRegion(file, 0, length), hdr);
+  }
+
+  /** Returns the content encoding a file will be sent with ("gzip"
+   *  or "deflate"), or null if the identity encoding should be
+   *  used. Nothing is compressed yet. */
+
+  private static String getEncoding(Request request, File file, long length,
+				    String content_type, TreeMap<String, String> hdr) {
+    Compression compression = ESXX.getInstance().getCompression();
+
+    if (!compression.isCompressible(content_type)) {
+      return null;
+    }
+
+    // The response depends on Accept-Encoding whether we compress it or not
+    hdr.put("Vary", "Accept-Encoding");
+
+    String encoding = compression.negotiate(request.getHeader("Accept-Encoding"));
+
+    if (encoding == null) {
+      return null;
+    }
+    else if ("gzip".equals(encoding) && getGzippedSibling(file) != null) {
+      return encoding;
+    }
+    else if (length < compression.getMinSize()) {
+      return null;
+    }
+    else {
+      return encoding;
+    }
+  }
+
+  private static File getGzippedSibling(File file) {
+    File gz = new File(file.getPath() + ".gz");
+
+    return gz.isFile() && gz.lastModified() >= file.lastModified() ? gz : null;
+  }
+
+  /** Returns a gzipped variant of a file (a FileRegion or a byte
+   *  array), or null if it should be compressed on the fly. */
+
+  private static Object getGzippedVariant(File file) {
+    Compression compression = ESXX.getInstance().getCompression();
+    File        gz          = getGzippedSibling(file);
+
+    if (gz != null) {
+      return new FileRegion(gz);
+    }
+
+    try {
+      return compression.getPrecompressed(file);
+    }
+    catch (IOException ex) {
+      ESXX.getInstance().getLogger().logp(Level.WARNING, null, null,
+					  "Failed to compress " + file + ": " + ex.getMessage());
+      return null;
+    }
+  }
+
+  private static Response createMultiRangeResponse(File file, long length, String content_type,
+						   List<long[]> ranges,
+						   TreeMap<String, String> hdr) {
+    String       boundary = "ESXX-" + Long.toHexString(System.nanoTime())
+      + Long.toHexString(Double.doubleToLongBits(Math.random()));
+    List<Object> parts    = new ArrayList<Object>();
+    long         total    = 0;
+
+    for (long[] r : ranges) {
+      byte[] header = ascii("\r\n--" + boundary + "\r\n"
+			    + "Content-Type: " + content_type + "\r\n"
+			    + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n"
+			    + "\r\n");
+
+      parts.add(header);
+      parts.add(new FileRegion(file, r[0], r[1] - r[0] + 1));
+      total += header.length + r[1] - r[0] + 1;
+    }
+
+    byte[] trailer = ascii("\r\n--" + boundary + "--\r\n");
+
+    parts.add(trailer);
+    total += trailer.length;
+
+    hdr.put("Content-Length", Long.toString(total));
+    return new Response(206, "multipart/byteranges; boundary=" + boundary,
+			parts.iterator(), hdr);
+  }
+
+  private static boolean isNotModified(Request request, String etag, long modified) {
+    String inm = request.getHeader("If-None-Match");
+
+    if (inm != null) {
+      // If-None-Match takes precedence over If-Modified-Since
+      for (String tag : inm.split(",")) {
+	tag = tag.trim();
+
+	if (tag.startsWith("W/")) {
+	  tag = tag.substring(2);
+	}
+
+	if (tag.equals("*") || tag.equals(etag)) {
+	  return true;
+	}
+      }
+
+      return false;
+    }
+
+    long ims = parseDate(request.getHeader("If-Modified-Since"));
+
+    return ims != -1 && modified <= ims;
+  }
+
+  private static boolean isRangeCurrent(Request request, String etag, long modified) {
+    String if_range = request.getHeader("If-Range");
+
+    if (if_range == null) {
+      return true;
+    }
+    else if (if_range.startsWith("\"") || if_range.startsWith("W/")) {
+      // Only strong validators may be used
+      return if_range.equals(etag);
+    }
+    else {
+      return parseDate(if_range) == modified;
+    }
+  }
+
+  /** Parses a Range header.
+   *
+   *  @return A list of satisfiable [first, last] byte ranges (empty if
+   *  there were none), or null if the header should be ignored.
+   */
+
+  static List<long[]> parseRanges(String range, long length) {
+    if (!range.startsWith("bytes=")) {
+      return null;
+    }
+
+    String[]     specs  = range.substring(6).split(",");
+    List<long[]> ranges = new ArrayList<long[]>();
+
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+
+    try {
+      for (String spec : specs) {
+	spec = spec.trim();
+
+	int dash = spec.indexOf('-');
+
+	if (dash == -1) {
+	  return null;
+	}
+
+	String first = spec.substring(0, dash).trim();
+	String last  = spec.substring(dash + 1).trim();
+
+	if (first.isEmpty()) {
+	  // Suffix range
+	  long suffix = Long.parseLong(last);
+
+	  if (suffix < 0) {
+	    return null;
+	  }
+	  else if (suffix > 0 && length > 0) {
+	    ranges.add(new long[] { Math.max(0, length - suffix), length - 1 });
+	  }
+	}
+	else {
+	  long from = Long.parseLong(first);
+	  long to   = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+
+	  if (from < 0 || to < from) {
+	    return null;
+	  }
+
+	  if (from < length) {
+	    ranges.add(new long[] { from, Math.min(to, length - 1) });
+	  }
+	}
+      }
+    }
+    catch (NumberFormatException ex) {
+      return null;
+    }
+
+    return ranges;
+  }
+
+  private static String formatDate(long date) {
+    return createDateFormat().format(new Date(date));
+  }
+
+  private static long parseDate(String date) {
+    if (date == null) {
+      return -1;
+    }
+
+    try {
+      return createDateFormat().parse(date.trim()).getTime();
+    }
+    catch (ParseException ex) {
+      return -1;
+    }
+  }
+
+  private static SimpleDateFormat createDateFormat() {
+    SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+
+    df.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return df;
+  }
+
+  private static byte[] ascii(String s) {
+    try {
+      return s.getBytes("US-ASCII");
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new InternalError("US-ASCII not supported");
+    }
+  }
+
+  /** Requests with more ranges than this are served in full. */
+  private static final int MAX_RANGES = 16;
+}
@@ -91,8 +91,8 @@ public abstract class WebRequest
 	    throw new FileNotFoundException("Only .esxx files can have a trailing path.");
 	  }
 
-	  quick_response = new Response(200, ESXX.fileTypeMap.getContentType(script_file),
-					new FileInputStream(script_file), null);
+	  quick_response = StaticFile.createResponse(this, request_method, script_file,
+						     ESXX.fileTypeMap.getContentType(script_file));
 	}
 	else {
 	  working_directory  = script_file.getParentFile().toURI();
@@ -125,10 +125,14 @@ public abstract class WebRequest
 
 	  // Complete CGI environment (using native OS file paths)
 	  if (update_env) {
-	    cgi_env.setProperty("PATH_TRANSLATED", new File(path_translated).toString());
-	    cgi_env.setProperty("PATH_INFO",       path_info);
-	    cgi_env.setProperty("SCRIPT_FILENAME", script_file.toString());
-	    cgi_env.setProperty("SCRIPT_NAME",     script_name);
+	    envPathTranslated = new File(path_translated).toString();
+	    envPathInfo       = path_info;
+	    envScriptFilename = script_file.toString();
+	    envScriptName     = script_name;
+
+	    if (cgi_env != null) {
+	      addPathVariables(cgi_env);
+	    }
 	  }
 	}
       }
@@ -184,6 +188,27 @@ public abstract class WebRequest
     return fs_root_uri.resolve(raw_request_path.substring(offset));
   }
 
+  /** Adds PATH_TRANSLATED, PATH_INFO, SCRIPT_FILENAME and
+   *  SCRIPT_NAME to a CGI environment, if known. */
+
+  protected void addPathVariables(Properties p) {
+    if (envPathTranslated != null) {
+      p.setProperty("PATH_TRANSLATED", envPathTranslated);
+    }
+
+    if (envPathInfo != null) {
+      p.setProperty("PATH_INFO", envPathInfo);
+    }
+
+    if (envScriptFilename != null) {
+      p.setProperty("SCRIPT_FILENAME", envScriptFilename);
+    }
+
+    if (envScriptName != null) {
+      p.setProperty("SCRIPT_NAME", envScriptName);
+    }
+  }
+
   protected Properties createCGIEnvironment(String request_method, String protocol,
 					    URI full_request_uri,
 					    String local_host, int local_port,
@@ -220,6 +245,11 @@ public abstract class WebRequest
     return p;
   }
 
+  private String envPathTranslated;
+  private String envPathInfo;
+  private String envScriptFilename;
+  private String envScriptName;
+
   /** A pattern that matches '!esxx-rsrc=' followed by a string of valid characters 
       and dot. (Slash is not valid.) */
   private static java.util.regex.Pattern esxxResource = 
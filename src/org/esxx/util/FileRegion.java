@@ -0,0 +1,123 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A part of a file, to be sent as-is to the client.
+ *
+ *  Response.writeObject() copies it to the output stream through a
+ *  small buffer. Front-ends that can send memory-mapped buffers
+ *  directly to the socket may use map() instead for large regions,
+ *  so that those bytes never have to be copied into the Java heap.
+ */
+
+public class FileRegion {
+  public FileRegion(File file) {
+    this(file, 0, file.length());
+  }
+
+  public FileRegion(File file, long offset, long length) {
+    this.file   = file;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /** Returns the region as a read-only, memory-mapped buffer.
+   *
+   *  Mappings are only released by the garbage collector, so small
+   *  regions, which are cheap to copy anyway, are never mapped.
+   *
+   *  @return A ByteBuffer, or null if the region is smaller than
+   *  MIN_MAPPED_LENGTH or too large to be mapped as a single buffer.
+   */
+
+  public ByteBuffer map()
+    throws IOException {
+    if (length < MIN_MAPPED_LENGTH || length > Integer.MAX_VALUE) {
+      return null;
+    }
+
+    FileInputStream fis = new FileInputStream(file);
+
+    try {
+      // (The mapping stays valid after the channel has been closed)
+      return fis.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  public void writeTo(OutputStream out)
+    throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+
+    try {
+      byte[] buffer = new byte[(int) Math.min(length, BUFFER_SIZE)];
+      long   left   = length;
+
+      fis.getChannel().position(offset);
+
+      while (left > 0) {
+	int read = fis.read(buffer, 0, (int) Math.min(left, buffer.length));
+
+	if (read <= 0) {
+	  throw new EOFException(file + " was truncated while being sent");
+	}
+
+	out.write(buffer, 0, read);
+	left -= read;
+      }
+
+      out.flush();
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  @Override public String toString() {
+    return "[FileRegion: " + file + " " + offset + "+" + length + "]";
+  }
+
+  /** Regions shorter than this are never memory-mapped. */
+  public static final long MIN_MAPPED_LENGTH = 256 * 1024;
+
+  private static final int BUFFER_SIZE = 65536;
+
+  private File file;
+  private long offset;
+  private long length;
+}
@@ -0,0 +1,466 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/** A streaming JSON parser that builds Rhino objects directly.
+ *
+ *  The input is read incrementally into a small char buffer, and
+ *  each value is converted to its JavaScript counterpart as soon as
+ *  it has been parsed: objects become Objects, arrays become Arrays,
+ *  numbers become Integers or Doubles and null becomes null. No
+ *  intermediate String or tree of the whole document is created.
+ *
+ *  The parser is strict (RFC 4627): only whitespace may follow the
+ *  top-level value.
+ */
+
+public class JSONReader {
+  public JSONReader(Reader in, Context cx, Scriptable scope) {
+    this.in    = in;
+    this.cx    = cx;
+    this.scope = scope;
+  }
+
+  /** Parses a single JSON value.
+   *
+   *  @return The value, as a Rhino object.
+   *
+   *  @throws IOException on I/O or syntax errors.
+   */
+
+  public Object parse()
+    throws IOException {
+    Object value = readValue(0);
+
+    if (skipWhitespace() != -1) {
+      throw error("Unexpected data after JSON value");
+    }
+
+    return value;
+  }
+
+  private Object readValue(int depth)
+    throws IOException {
+    int c = skipWhitespace();
+
+    switch (c) {
+      case '{':
+	++pos;
+	return readObject(depth + 1);
+
+      case '[':
+	++pos;
+	return readArray(depth + 1);
+
+      case '"':
+	++pos;
+	return readString();
+
+      case 't':
+	expect("true");
+	return Boolean.TRUE;
+
+      case 'f':
+	expect("false");
+	return Boolean.FALSE;
+
+      case 'n':
+	expect("null");
+	return null;
+
+      case -1:
+	throw error("Unexpected end of data");
+
+      default:
+	if (c == '-' || (c >= '0' && c <= '9')) {
+	  return readNumber();
+	}
+
+	throw error("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private Scriptable readObject(int depth)
+    throws IOException {
+    if (depth > MAX_DEPTH) {
+      throw error("JSON data nested too deeply");
+    }
+
+    Scriptable obj = cx.newObject(scope);
+
+    if (skipWhitespace() == '}') {
+      ++pos;
+      return obj;
+    }
+
+    while (true) {
+      if (skipWhitespace() != '"') {
+	throw error("Expected a property name");
+      }
+
+      ++pos;
+      String key = readString();
+
+      if (skipWhitespace() != ':') {
+	throw error("Expected ':'");
+      }
+
+      ++pos;
+      Object value = readValue(depth);
+      long   index = toIndex(key);
+
+      // Use the same key type as the JS runtime does for obj["123"]
+      if (index != NOT_AN_INDEX) {
+	obj.put((int) index, obj, value);
+      }
+      else {
+	obj.put(key, obj, value);
+      }
+
+      int c = skipWhitespace();
+
+      if (c == ',') {
+	++pos;
+      }
+      else if (c == '}') {
+	++pos;
+	return obj;
+      }
+      else {
+	throw error("Expected ',' or '}'");
+      }
+    }
+  }
+
+  private Scriptable readArray(int depth)
+    throws IOException {
+    if (depth > MAX_DEPTH) {
+      throw error("JSON data nested too deeply");
+    }
+
+    ArrayList<Object> elements = new ArrayList<Object>();
+
+    if (skipWhitespace() == ']') {
+      ++pos;
+      return cx.newArray(scope, 0);
+    }
+
+    while (true) {
+      elements.add(readValue(depth));
+
+      int c = skipWhitespace();
+
+      if (c == ',') {
+	++pos;
+      }
+      else if (c == ']') {
+	++pos;
+	return cx.newArray(scope, elements.toArray());
+      }
+      else {
+	throw error("Expected ',' or ']'");
+      }
+    }
+  }
+
+  private String readString()
+    throws IOException {
+    StringBuilder sb = null;
+
+    while (true) {
+      if (pos == limit && !fill()) {
+	throw error("Unterminated string");
+      }
+
+      int start = pos;
+
+      // Fast path: scan for the closing quote
+      while (pos < limit) {
+	char c = buf[pos];
+
+	if (c == '"') {
+	  String s = (sb == null
+		      ? new String(buf, start, pos - start)
+		      : sb.append(buf, start, pos - start).toString());
+	  ++pos;
+	  return s;
+	}
+	else if (c == '\\' || c < 0x20) {
+	  break;
+	}
+
+	++pos;
+      }
+
+      if (sb == null) {
+	sb = new StringBuilder(Math.max(16, 2 * (pos - start)));
+      }
+
+      sb.append(buf, start, pos - start);
+
+      if (pos < limit) {
+	if (buf[pos] != '\\') {
+	  throw error("Control character in string");
+	}
+
+	++pos;
+	sb.append(readEscape());
+      }
+    }
+  }
+
+  private char readEscape()
+    throws IOException {
+    char c = nextChar();
+
+    switch (c) {
+      case '"':  return '"';
+      case '\\': return '\\';
+      case '/':  return '/';
+      case 'b':  return '\b';
+      case 'f':  return '\f';
+      case 'n':  return '\n';
+      case 'r':  return '\r';
+      case 't':  return '\t';
+
+      case 'u': {
+	int value = 0;
+
+	for (int i = 0; i < 4; ++i) {
+	  char h = nextChar();
+	  int digit = (h >= '0' && h <= '9' ? h - '0'
+		       : h >= 'a' && h <= 'f' ? h - 'a' + 10
+		       : h >= 'A' && h <= 'F' ? h - 'A' + 10
+		       : -1);
+
+	  if (digit < 0) {
+	    --pos; // Report the offending character
+	    throw error("Invalid \\u escape");
+	  }
+
+	  value = (value << 4) | digit;
+	}
+
+	return (char) value;
+      }
+
+      default:
+	--pos; // Report the offending character
+	throw error("Invalid escape '\\" + c + "'");
+    }
+  }
+
+  private Object readNumber()
+    throws IOException {
+    StringBuilder sb = numberBuffer;
+    boolean integral = true;
+
+    sb.setLength(0);
+
+    if (peek() == '-') {
+      sb.append(nextChar());
+    }
+
+    if (peek() == '0') {
+      sb.append(nextChar());
+    }
+    else {
+      readDigits(sb);
+    }
+
+    if (peek() == '.') {
+      integral = false;
+      sb.append(nextChar());
+      readDigits(sb);
+    }
+
+    int c = peek();
+
+    if (c == 'e' || c == 'E') {
+      integral = false;
+      sb.append(nextChar());
+
+      c = peek();
+
+      if (c == '+' || c == '-') {
+	sb.append(nextChar());
+      }
+
+      readDigits(sb);
+    }
+
+    String number = sb.toString();
+
+    // (At most 11 chars, like "-2147483648", always fits in a long)
+    if (integral && sb.length() <= 11) {
+      long value = Long.parseLong(number);
+
+      // (-0 is a double in JavaScript)
+      if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE
+	  && !(value == 0 && sb.charAt(0) == '-')) {
+	return Integer.valueOf((int) value);
+      }
+    }
+
+    return Double.valueOf(number);
+  }
+
+  private void readDigits(StringBuilder sb)
+    throws IOException {
+    int c = peek();
+
+    if (c < '0' || c > '9') {
+      throw error("Expected a digit");
+    }
+
+    do {
+      sb.append(nextChar());
+      c = peek();
+    } while (c >= '0' && c <= '9');
+  }
+
+  private void expect(String literal)
+    throws IOException {
+    for (int i = 0; i < literal.length(); ++i) {
+      if (pos == limit && !fill() || buf[pos] != literal.charAt(i)) {
+	throw error("Invalid literal; expected '" + literal + "'");
+      }
+
+      ++pos;
+    }
+  }
+
+  /** Returns the next non-whitespace character without consuming
+   *  it, or -1 at end of input. */
+
+  private int skipWhitespace()
+    throws IOException {
+    while (true) {
+      if (pos == limit && !fill()) {
+	return -1;
+      }
+
+      char c = buf[pos];
+
+      if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+	++pos;
+      }
+      else {
+	return c;
+      }
+    }
+  }
+
+  private int peek()
+    throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+
+    return buf[pos];
+  }
+
+  private char nextChar()
+    throws IOException {
+    if (pos == limit && !fill()) {
+      throw error("Unexpected end of data");
+    }
+
+    return buf[pos++];
+  }
+
+  private boolean fill()
+    throws IOException {
+    offset += limit;
+    pos     = 0;
+    limit   = 0;
+
+    int n;
+
+    do {
+      n = in.read(buf, 0, buf.length);
+    } while (n == 0);
+
+    if (n < 0) {
+      return false;
+    }
+
+    limit = n;
+    return true;
+  }
+
+  private IOException error(String message) {
+    return new IOException("Invalid JSON data: " + message + " at offset " + (offset + pos));
+  }
+
+  /** Returns the index that a property name represents, or
+   *  NOT_AN_INDEX. This matches Rhino's ScriptRuntime.indexFromString(),
+   *  which accepts any int, including negative ones like "-1". */
+
+  private static long toIndex(String key) {
+    int length = key.length();
+    int  start = (length > 1 && key.charAt(0) == '-') ? 1 : 0;
+    int digits = length - start;
+
+    if (digits == 0 || digits > 10 || (digits > 1 && key.charAt(start) == '0')) {
+      return NOT_AN_INDEX;
+    }
+
+    long index = 0;
+
+    for (int i = start; i < length; ++i) {
+      char c = key.charAt(i);
+
+      if (c < '0' || c > '9') {
+	return NOT_AN_INDEX;
+      }
+
+      index = index * 10 + (c - '0');
+    }
+
+    if (start != 0) {
+      index = -index;
+    }
+
+    if (index < Integer.MIN_VALUE || index > Integer.MAX_VALUE) {
+      return NOT_AN_INDEX;
+    }
+
+    return index;
+  }
+
+  private static final long NOT_AN_INDEX = Long.MIN_VALUE;
+  private static final int MAX_DEPTH     = 512;
+  private static final int BUFFER_SIZE = 8192;
+
+  private Reader in;
+  private Context cx;
+  private Scriptable scope;
+  private char[] buf = new char[BUFFER_SIZE];
+  private int pos;
+  private int limit;
+  private long offset;
+  private StringBuilder numberBuffer = new StringBuilder();
+}
@@ -0,0 +1,184 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.Random;
+import org.json.*;
+import org.mozilla.javascript.*;
+
+/** Compares JSONReader with the original JSON parser, which reads
+ *  everything into a String, parses it with org.json and then
+ *  converts the result.
+ *
+ *  Usage: JSONReaderBenchmark [records] [iterations]
+ */
+
+public class JSONReaderBenchmark {
+  public static void main(String args[])
+    throws Exception {
+    final int num_records = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    final int iterations  = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    final byte[] data = createDocument(num_records, new Random(42)).getBytes("UTF-8");
+
+    ContextFactory.getGlobal().call(new ContextAction() {
+	public Object run(Context cx) {
+	  try {
+	    Scriptable scope = cx.initStandardObjects();
+
+	    // Make sure both parsers agree before timing them
+	    Object a = parseStreaming(new ByteArrayInputStream(data), cx, scope);
+	    Object b = parseLegacy(new ByteArrayInputStream(data), cx, scope);
+
+	    if (!same(a, b)) {
+	      throw new IllegalStateException("The parsers disagree");
+	    }
+
+	    for (int round = 0; round < 3; ++round) {
+	      long start = System.nanoTime();
+
+	      for (int i = 0; i < iterations; ++i) {
+		parseLegacy(new ByteArrayInputStream(data), cx, scope);
+	      }
+
+	      long old = System.nanoTime() - start;
+
+	      start = System.nanoTime();
+
+	      for (int i = 0; i < iterations; ++i) {
+		parseStreaming(new ByteArrayInputStream(data), cx, scope);
+	      }
+
+	      long stream = System.nanoTime() - start;
+
+	      System.out.println("Round " + (round + 1) + ", " + (data.length / 1024) + " KiB: "
+				 + "org.json " + (old / iterations / 1000) + " us/parse, "
+				 + "streaming " + (stream / iterations / 1000) + " us/parse");
+	    }
+
+	    return null;
+	  }
+	  catch (Exception ex) {
+	    throw new RuntimeException(ex);
+	  }
+	}
+      });
+  }
+
+  private static Object parseStreaming(InputStream is, Context cx, Scriptable scope)
+    throws Exception {
+    return new JSONReader(new InputStreamReader(is, "UTF-8"), cx, scope).parse();
+  }
+
+  private static Object parseLegacy(InputStream is, Context cx, Scriptable scope)
+    throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    IO.copyStream(is, bos);
+
+    JSONTokener tok = new JSONTokener(bos.toString("UTF-8"));
+
+    char first = tok.nextClean();
+    tok.back();
+
+    return jsonToJS(first == '{' ? new JSONObject(tok) : new JSONArray(tok), cx, scope);
+  }
+
+  private static Object jsonToJS(Object json, Context cx, Scriptable scope)
+    throws JSONException {
+    Scriptable res;
+
+    if (json == JSONObject.NULL) {
+      return null;
+    }
+    else if (json instanceof JSONObject) {
+      JSONObject jo = (JSONObject) json;
+      res = cx.newObject(scope);
+
+      for (Iterator<?> i = jo.keys(); i.hasNext();) {
+	String key = (String) i.next();
+	res.put(key, res, jsonToJS(jo.get(key), cx, scope));
+      }
+    }
+    else if (json instanceof JSONArray) {
+      JSONArray ja = (JSONArray) json;
+      res = cx.newArray(scope, ja.length());
+
+      for (int i = 0; i < ja.length(); ++i) {
+	res.put(i, res, jsonToJS(ja.get(i), cx, scope));
+      }
+    }
+    else {
+      return json;
+    }
+
+    return res;
+  }
+
+  private static String createDocument(int num_records, Random random) {
+    StringBuilder sb = new StringBuilder("[");
+
+    for (int i = 0; i < num_records; ++i) {
+      sb.append(i == 0 ? "\n" : ",\n")
+	.append("  { \"id\": ").append(i)
+	.append(", \"name\": \"Record \\\"").append(i).append("\\\" \\u00e5\"")
+	.append(", \"score\": ").append(random.nextDouble() * 1000)
+	.append(", \"active\": ").append(random.nextBoolean())
+	.append(", \"parent\": null")
+	.append(", \"tags\": [\"alpha\", \"beta\", \"gamma\"]")
+	.append(", \"geo\": { \"lat\": ").append(random.nextInt(180) - 90)
+	.append(", \"lon\": ").append(random.nextInt(360) - 180).append(" } }");
+    }
+
+    return sb.append("\n]\n").toString();
+  }
+
+  private static boolean same(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    else if (a instanceof Scriptable && b instanceof Scriptable) {
+      Scriptable sa = (Scriptable) a;
+      Scriptable sb = (Scriptable) b;
+      Object[]  ids = sa.getIds();
+
+      if (ids.length != sb.getIds().length) {
+	return false;
+      }
+
+      for (Object id : ids) {
+	Object va = id instanceof Integer ? sa.get((Integer) id, sa) : sa.get((String) id, sa);
+	Object vb = id instanceof Integer ? sb.get((Integer) id, sb) : sb.get((String) id, sb);
+
+	if (!same(va, vb)) {
+	  return false;
+	}
+      }
+
+      return true;
+    }
+    else {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+}
@@ -0,0 +1,458 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import org.esxx.ESXXException;
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.xml.XMLObject;
+
+/** A JSON serializer that writes JavaScript values directly to an
+ *  OutputStream.
+ *
+ *  Values are converted like JSON.stringify() does: properties whose
+ *  values are undefined or functions are skipped (and written as null
+ *  in arrays), non-finite numbers become null, Dates become ISO 8601
+ *  strings and objects with a toJSON() method are replaced by its
+ *  result. Wrapped Java Maps, Collections and arrays are supported as
+ *  well. Cyclic structures cause an ESXXException.
+ *
+ *  The output is encoded as UTF-8, or as pure ASCII with all other
+ *  characters escaped, and is buffered internally; call flush() when
+ *  done.
+ */
+
+public class JSONWriter {
+  /** Creates a new JSONWriter.
+   *
+   *  @param out     The stream to write to.
+   *  @param indent  The number of spaces to indent nested values
+   *                 with, or 0 for compact output.
+   *  @param ascii   If true, escape all non-ASCII characters.
+   */
+
+  public JSONWriter(OutputStream out, int indent, boolean ascii) {
+    this.out    = out;
+    this.indent = Math.max(0, Math.min(indent, 10));
+    this.ascii  = ascii;
+  }
+
+  public void write(Object value)
+    throws IOException {
+    if (!writeValue(value, 0)) {
+      writeRaw("null");
+    }
+  }
+
+  /** Writes any buffered data to the underlying stream (but does not
+   *  flush the stream itself). */
+
+  public void flush()
+    throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /** Writes a value.
+   *
+   *  @return false if the value cannot be represented in JSON
+   *  (undefined and functions), in which case nothing was written.
+   */
+
+  private boolean writeValue(Object value, int depth)
+    throws IOException {
+    return writeValue(value, depth, true);
+  }
+
+  /** Writes a value, invoking its toJSON() method first if
+   *  to_json is true. The result of toJSON() is written as-is, so a
+   *  toJSON() that returns the object itself cannot recurse forever.
+   */
+
+  private boolean writeValue(Object value, int depth, boolean to_json)
+    throws IOException {
+    if (value instanceof Wrapper) {
+      value = ((Wrapper) value).unwrap();
+    }
+
+    if (value == null) {
+      writeRaw("null");
+    }
+    else if (value == Context.getUndefinedValue() || value == Scriptable.NOT_FOUND ||
+	     value instanceof Function) {
+      return false;
+    }
+    else if (value instanceof CharSequence || value instanceof Character) {
+      writeString(value.toString());
+    }
+    else if (value instanceof Boolean) {
+      writeRaw(((Boolean) value).booleanValue() ? "true" : "false");
+    }
+    else if (value instanceof Number) {
+      writeNumber((Number) value);
+    }
+    else if (value instanceof XMLObject) {
+      writeString(Context.toString(ScriptableObject.callMethod((XMLObject) value,
+							       "toXMLString",
+							       Context.emptyArgs)));
+    }
+    else if (value instanceof Scriptable) {
+      Scriptable obj    = (Scriptable) value;
+      Object     toJSON = to_json ? ScriptableObject.getProperty(obj, "toJSON") : null;
+
+      if (toJSON instanceof Function) {
+	Context cx = Context.getCurrentContext();
+
+	return writeValue(((Function) toJSON).call(cx, ScriptableObject.getTopLevelScope(obj),
+						   obj, Context.emptyArgs), depth, false);
+      }
+      else if ("Date".equals(obj.getClassName())) {
+	double time = Context.toNumber(obj);
+
+	if (Double.isNaN(time)) {
+	  writeRaw("null");
+	}
+	else {
+	  writeString(formatDate(time));
+	}
+      }
+      else if (obj instanceof NativeArray) {
+	enter(obj);
+	writeArray((NativeArray) obj, depth);
+	leave(obj);
+      }
+      else {
+	enter(obj);
+	writeObject(obj, depth);
+	leave(obj);
+      }
+    }
+    else if (value instanceof Map) {
+      enter(value);
+      writeMap((Map<?, ?>) value, depth);
+      leave(value);
+    }
+    else if (value instanceof Collection) {
+      enter(value);
+      writeElements(((Collection<?>) value).toArray(), depth);
+      leave(value);
+    }
+    else if (value.getClass().isArray()) {
+      enter(value);
+      writeElements(value, depth);
+      leave(value);
+    }
+    else {
+      writeString(value.toString());
+    }
+
+    return true;
+  }
+
+  private void writeObject(Scriptable obj, int depth)
+    throws IOException {
+    boolean first = true;
+
+    writeByte('{');
+
+    for (Object id : obj.getIds()) {
+      Object value;
+      String key;
+
+      if (id instanceof Integer) {
+	value = obj.get((Integer) id, obj);
+	key   = id.toString();
+      }
+      else {
+	key   = id.toString();
+	value = obj.get(key, obj);
+      }
+
+      first = writeMember(key, value, first, depth);
+    }
+
+    if (!first) {
+      newline(depth);
+    }
+
+    writeByte('}');
+  }
+
+  private void writeMap(Map<?, ?> map, int depth)
+    throws IOException {
+    boolean first = true;
+
+    writeByte('{');
+
+    for (Map.Entry<?, ?> e : map.entrySet()) {
+      first = writeMember(String.valueOf(e.getKey()), e.getValue(), first, depth);
+    }
+
+    if (!first) {
+      newline(depth);
+    }
+
+    writeByte('}');
+  }
+
+  /** Writes a property, unless it should be skipped.
+   *
+   *  @return false if anything has been written to the object yet.
+   */
+
+  private boolean writeMember(String key, Object value, boolean first, int depth)
+    throws IOException {
+    if (value instanceof Wrapper) {
+      value = ((Wrapper) value).unwrap();
+    }
+
+    if (value == Context.getUndefinedValue() || value == Scriptable.NOT_FOUND ||
+	value instanceof Function) {
+      return first;
+    }
+
+    if (!first) {
+      writeByte(',');
+    }
+
+    newline(depth + 1);
+    writeString(key);
+    writeByte(':');
+
+    if (indent > 0) {
+      writeByte(' ');
+    }
+
+    writeValue(value, depth + 1);
+    return false;
+  }
+
+  private void writeArray(NativeArray array, int depth)
+    throws IOException {
+    long length = array.getLength();
+
+    writeByte('[');
+
+    for (long i = 0; i < length; ++i) {
+      if (i > 0) {
+	writeByte(',');
+      }
+
+      newline(depth + 1);
+
+      if (!writeValue(array.get((int) i, array), depth + 1)) {
+	writeRaw("null");
+      }
+    }
+
+    if (length > 0) {
+      newline(depth);
+    }
+
+    writeByte(']');
+  }
+
+  private void writeElements(Object elements, int depth)
+    throws IOException {
+    int length = Array.getLength(elements);
+
+    writeByte('[');
+
+    for (int i = 0; i < length; ++i) {
+      if (i > 0) {
+	writeByte(',');
+      }
+
+      newline(depth + 1);
+
+      if (!writeValue(Array.get(elements, i), depth + 1)) {
+	writeRaw("null");
+      }
+    }
+
+    if (length > 0) {
+      newline(depth);
+    }
+
+    writeByte(']');
+  }
+
+  private void writeNumber(Number number)
+    throws IOException {
+    if (number instanceof Integer || number instanceof Long ||
+	number instanceof Short   || number instanceof Byte) {
+      writeRaw(number.toString());
+      return;
+    }
+
+    double d = number.doubleValue();
+
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      writeRaw("null");
+    }
+    else if (d == (long) d && Math.abs(d) < MAX_EXACT_INTEGER) {
+      writeRaw(Long.toString((long) d));
+    }
+    else {
+      // (Rhino's own conversion is exact but very slow)
+      writeRaw(Double.toString(d));
+    }
+  }
+
+  private void writeString(String s)
+    throws IOException {
+    int  length = s.length();
+    char prev   = 0;
+
+    writeByte('"');
+
+    for (int i = 0; i < length; ++i) {
+      char c = s.charAt(i);
+
+      switch (c) {
+	case '"':  writeByte('\\'); writeByte('"');  break;
+	case '\\': writeByte('\\'); writeByte('\\'); break;
+	case '\b': writeByte('\\'); writeByte('b');  break;
+	case '\f': writeByte('\\'); writeByte('f');  break;
+	case '\n': writeByte('\\'); writeByte('n');  break;
+	case '\r': writeByte('\\'); writeByte('r');  break;
+	case '\t': writeByte('\\'); writeByte('t');  break;
+
+	case '/':
+	  // Never let "</script>" end up in an HTML document
+	  if (prev == '<') {
+	    writeByte('\\');
+	  }
+	  writeByte('/');
+	  break;
+
+	default:
+	  if (c < 0x20 || c == '\u2028' || c == '\u2029' || (ascii && c >= 0x80)) {
+	    writeEscape(c);
+	  }
+	  else if (c < 0x80) {
+	    writeByte(c);
+	  }
+	  else if (c < 0x800) {
+	    writeByte(0xc0 | (c >> 6));
+	    writeByte(0x80 | (c & 0x3f));
+	  }
+	  else if (Character.isHighSurrogate(c) && i + 1 < length &&
+		   Character.isLowSurrogate(s.charAt(i + 1))) {
+	    int cp = Character.toCodePoint(c, s.charAt(++i));
+
+	    writeByte(0xf0 | (cp >> 18));
+	    writeByte(0x80 | ((cp >> 12) & 0x3f));
+	    writeByte(0x80 | ((cp >> 6) & 0x3f));
+	    writeByte(0x80 | (cp & 0x3f));
+	  }
+	  else if (c >= '\uD800' && c <= '\uDFFF') {
+	    // Unpaired surrogates cannot be encoded as UTF-8
+	    writeEscape(c);
+	  }
+	  else {
+	    writeByte(0xe0 | (c >> 12));
+	    writeByte(0x80 | ((c >> 6) & 0x3f));
+	    writeByte(0x80 | (c & 0x3f));
+	  }
+	  break;
+      }
+
+      prev = c;
+    }
+
+    writeByte('"');
+  }
+
+  private void writeEscape(char c)
+    throws IOException {
+    writeByte('\\');
+    writeByte('u');
+    writeByte(HEX[(c >> 12) & 0xf]);
+    writeByte(HEX[(c >> 8) & 0xf]);
+    writeByte(HEX[(c >> 4) & 0xf]);
+    writeByte(HEX[c & 0xf]);
+  }
+
+  private void newline(int depth)
+    throws IOException {
+    if (indent > 0) {
+      writeByte('\n');
+
+      for (int i = depth * indent; i > 0; --i) {
+	writeByte(' ');
+      }
+    }
+  }
+
+  private void writeRaw(String ascii_string)
+    throws IOException {
+    for (int i = 0; i < ascii_string.length(); ++i) {
+      writeByte(ascii_string.charAt(i));
+    }
+  }
+
+  private void writeByte(int b)
+    throws IOException {
+    if (count == buffer.length) {
+      flush();
+    }
+
+    buffer[count++] = (byte) b;
+  }
+
+  private void enter(Object o) {
+    if (path.put(o, o) != null) {
+      throw new ESXXException("Cannot convert cyclic structure to JSON");
+    }
+  }
+
+  private void leave(Object o) {
+    path.remove(o);
+  }
+
+  private static String formatDate(double time) {
+    SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return fmt.format(new Date((long) time));
+  }
+
+  private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+				      '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+  private static final double MAX_EXACT_INTEGER = 9007199254740992.0; // 2^53
+
+  private OutputStream out;
+  private int indent;
+  private boolean ascii;
+  private byte[] buffer = new byte[8192];
+  private int count;
+  private IdentityHashMap<Object, Object> path = new IdentityHashMap<Object, Object>();
+}
@@ -0,0 +1,156 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.esxx.jmx.LatencyStats;
+
+/** A fixed-size, log-linear latency histogram.
+ *
+ *  Like HdrHistogram, each power of two is split into a number of
+ *  linear sub-buckets, which gives a constant relative precision
+ *  (about 3%) for all values from one microsecond up to several
+ *  hours, using about 8 kB of memory. Recording is lock-free and
+ *  never allocates.
+ */
+
+public class LatencyHistogram {
+  public LatencyHistogram() {
+    counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+  }
+
+  /** Records the time elapsed since start_nanos.
+   *
+   *  @param start_nanos  A System.nanoTime() timestamp.
+   */
+
+  public void recordSince(long start_nanos) {
+    record((System.nanoTime() - start_nanos) / 1000);
+  }
+
+  /** Records a latency.
+   *
+   *  @param micros  The latency, in microseconds.
+   */
+
+  public void record(long micros) {
+    long value = Math.max(0, Math.min(micros, MAX_VALUE));
+
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+
+    long current;
+
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) {
+	break;
+      }
+    }
+  }
+
+  /** Returns the value at a given percentile.
+   *
+   *  @param percentile  The percentile, 0-100.
+   *
+   *  @return The highest value that is equivalent (within the
+   *  histogram's precision) to the value at the percentile, in
+   *  microseconds.
+   */
+
+  public long getValueAtPercentile(double percentile) {
+    long total_count = 0;
+
+    for (int i = 0; i < counts.length(); ++i) {
+      total_count += counts.get(i);
+    }
+
+    if (total_count == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total_count));
+    long seen   = 0;
+
+    for (int i = 0; i < counts.length(); ++i) {
+      seen += counts.get(i);
+
+      if (seen >= target) {
+	return Math.min(valueOf(i + 1) - 1, max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+  public LatencyStats getStatistics(String name) {
+    long n = count.get();
+
+    return new LatencyStats(name, n, n == 0 ? 0 : total.get() / n,
+			    getValueAtPercentile(50),
+			    getValueAtPercentile(95),
+			    getValueAtPercentile(99),
+			    max.get());
+  }
+
+  /** Clears the histogram. Values that are recorded concurrently may
+   *  or may not be cleared. */
+
+  public void reset() {
+    for (int i = 0; i < counts.length(); ++i) {
+      counts.set(i, 0);
+    }
+
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    // Values in [2^n, 2^(n+1)) are mapped to SUB_BUCKETS/2 buckets
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+
+    return shift * (SUB_BUCKETS / 2) + (int) (value >>> shift);
+  }
+
+  private static long valueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift = index / (SUB_BUCKETS / 2) - 1;
+
+    return ((long) (index % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2)) << shift;
+  }
+
+  private static final int  SUB_BUCKET_BITS = 6;
+  private static final int  SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final long MAX_VALUE       = (1L << 36) - 1; // About 19 hours
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max   = new AtomicLong();
+}
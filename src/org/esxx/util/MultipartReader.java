@@ -0,0 +1,292 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A single-pass reader for MIME multipart streams.
+ *
+ *  The parts are read one at a time, directly from the underlying
+ *  stream, so nothing but the current buffer is ever held in memory.
+ *  Call nextPart() to advance to the next part and read its headers,
+ *  and getPartInputStream() to read its body. Any unread data is
+ *  skipped when nextPart() is called again.
+ */
+
+public class MultipartReader {
+  /** Creates a new MultipartReader.
+   *
+   *  @param is        The multipart stream.
+   *  @param boundary  The boundary, without the leading "--".
+   */
+
+  public MultipartReader(InputStream is, String boundary)
+    throws IOException {
+    if (boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+      throw new IOException("Invalid multipart boundary");
+    }
+
+    this.is   = is;
+    delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+    // The first boundary is not preceded by CRLF, so pretend it is
+    // and treat the preamble as a part body that is never returned
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+    tail      = 2;
+  }
+
+  /** Advances to the next part.
+   *
+   *  @return true if there was another part, or false if the end of
+   *  the multipart stream has been reached.
+   */
+
+  public boolean nextPart()
+    throws IOException {
+    if (finished) {
+      return false;
+    }
+
+    // Skip whatever is left of the current part (or the preamble)
+    while (!partEnded) {
+      skipBody();
+    }
+
+    partEnded = false;
+    headers.clear();
+
+    // A close delimiter has "--" appended
+    if (peek(0) == '-' && peek(1) == '-') {
+      finished = true;
+      return false;
+    }
+
+    // Skip transport padding and the CRLF after the delimiter
+    readLine();
+
+    String line;
+    while (!(line = readLine()).isEmpty()) {
+      if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && !headers.isEmpty()) {
+	// Folded header line
+	String[] last = headers.get(headers.size() - 1);
+	last[1] = last[1] + " " + line.trim();
+      }
+      else {
+	int colon = line.indexOf(':');
+
+	if (colon == -1) {
+	  throw new IOException("Malformed multipart header: " + line);
+	}
+
+	headers.add(new String[] { line.substring(0, colon).trim(),
+				   line.substring(colon + 1).trim() });
+      }
+
+      if (headers.size() > MAX_HEADERS) {
+	throw new IOException("Too many headers in multipart body part");
+      }
+    }
+
+    return true;
+  }
+
+  /** Returns the headers of the current part, as (name, value) pairs
+   *  in the order they appeared. */
+
+  public List<String[]> getHeaders() {
+    return headers;
+  }
+
+  /** Returns the first header with the specified name (matched
+   *  case-insensitively), or null. */
+
+  public String getHeader(String name) {
+    for (String[] h : headers) {
+      if (h[0].equalsIgnoreCase(name)) {
+	return h[1];
+      }
+    }
+
+    return null;
+  }
+
+  /** Returns a stream that reads the body of the current part. The
+   *  stream does not have to be closed. */
+
+  public InputStream getPartInputStream() {
+    return new InputStream() {
+      @Override public int read()
+	throws IOException {
+	byte[] b = new byte[1];
+	int    n = read(b, 0, 1);
+
+	return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override public int read(byte[] b, int off, int len)
+	throws IOException {
+	return readBody(b, off, len);
+      }
+
+      @Override public void close() {
+	// The part is skipped by nextPart()
+      }
+    };
+  }
+
+  private int readBody(byte[] b, int off, int len)
+    throws IOException {
+    if (partEnded) {
+      return -1;
+    }
+
+    while (true) {
+      int found = indexOfDelimiter();
+
+      if (found == head) {
+	// End of this part
+	head     += delimiter.length;
+	partEnded = true;
+	return -1;
+      }
+
+      // Bytes before a delimiter, or bytes that can't be the start of one
+      int safe = (found != -1
+		  ? found - head
+		  : tail - head - (delimiter.length - 1));
+
+      if (safe > 0) {
+	if (b == null) {
+	  // Skipping
+	  head += safe;
+	  return safe;
+	}
+
+	int n = Math.min(len, safe);
+
+	System.arraycopy(buffer, head, b, off, n);
+	head += n;
+	return n;
+      }
+
+      if (!fill()) {
+	throw new EOFException("Unexpected end of multipart stream");
+      }
+    }
+  }
+
+  private void skipBody()
+    throws IOException {
+    readBody(null, 0, 0);
+  }
+
+  private int indexOfDelimiter() {
+    int last = tail - delimiter.length;
+
+    outer:
+    for (int i = head; i <= last; ++i) {
+      if (buffer[i] == '\r') {
+	for (int j = 1; j < delimiter.length; ++j) {
+	  if (buffer[i + j] != delimiter[j]) {
+	    continue outer;
+	  }
+	}
+
+	return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private int peek(int offset)
+    throws IOException {
+    while (tail - head <= offset) {
+      if (!fill()) {
+	throw new EOFException("Unexpected end of multipart stream");
+      }
+    }
+
+    return buffer[head + offset] & 0xff;
+  }
+
+  private String readLine()
+    throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    while (true) {
+      int c = peek(0);
+      ++head;
+
+      if (c == '\n') {
+	break;
+      }
+      else if (c != '\r') {
+	line.write(c);
+
+	if (line.size() > MAX_LINE_LENGTH) {
+	  throw new IOException("Multipart header line too long");
+	}
+      }
+    }
+
+    return line.toString("UTF-8");
+  }
+
+  /** Reads more data into the buffer.
+   *
+   *  @return false on EOF.
+   */
+
+  private boolean fill()
+    throws IOException {
+    if (head > 0) {
+      System.arraycopy(buffer, head, buffer, 0, tail - head);
+      tail -= head;
+      head  = 0;
+    }
+
+    int n = is.read(buffer, tail, buffer.length - tail);
+
+    if (n == -1) {
+      return false;
+    }
+
+    tail += n;
+    return true;
+  }
+
+  private static final int BUFFER_SIZE         = 64 * 1024;
+  private static final int MAX_BOUNDARY_LENGTH = 200;
+  private static final int MAX_LINE_LENGTH     = 8192;
+  private static final int MAX_HEADERS         = 100;
+
+  private InputStream is;
+  private byte[] delimiter;
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int head;
+  private int tail;
+  private boolean partEnded;
+  private boolean finished;
+  private List<String[]> headers = new ArrayList<String[]>();
+}
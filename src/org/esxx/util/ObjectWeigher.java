@@ -0,0 +1,197 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import org.esxx.cache.LRUCache;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+import org.mozilla.javascript.xml.XMLObject;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/** A Weigher that estimates the heap usage, in bytes, of Java and
+ *  JavaScript objects.
+ *
+ *  The estimates are rough, but cheap: Strings, arrays and buffers
+ *  are measured by length, DOM nodes by walking the tree, E4X nodes
+ *  by the length of their XML text and plain JavaScript objects and
+ *  arrays by walking their own properties. Getters are never invoked,
+ *  and host objects are not walked, since reading their properties
+ *  might have side effects. Objects that are reachable more than once
+ *  are only counted once.
+ */
+
+public class ObjectWeigher
+  implements LRUCache.Weigher<Object, Object> {
+
+  public static final ObjectWeigher INSTANCE = new ObjectWeigher();
+
+  @Override public long weigh(Object key, Object value) {
+    IdentityHashMap<Object, Object> seen = new IdentityHashMap<Object, Object>();
+
+    return ENTRY_OVERHEAD + estimate(key, seen) + estimate(value, seen);
+  }
+
+  private long estimate(Object o, IdentityHashMap<Object, Object> seen) {
+    if (o == null || o instanceof Boolean || seen.put(o, o) != null) {
+      return 0;
+    }
+
+    if (o instanceof CharSequence) {
+      return OBJECT_OVERHEAD + ARRAY_OVERHEAD + 2L * ((CharSequence) o).length();
+    }
+    else if (o instanceof Number) {
+      return OBJECT_OVERHEAD;
+    }
+    else if (o instanceof byte[]) {
+      return ARRAY_OVERHEAD + ((byte[]) o).length;
+    }
+    else if (o instanceof char[]) {
+      return ARRAY_OVERHEAD + 2L * ((char[]) o).length;
+    }
+    else if (o instanceof ByteBuffer) {
+      return OBJECT_OVERHEAD + ((ByteBuffer) o).capacity();
+    }
+    else if (o instanceof Node) {
+      return estimateNode((Node) o);
+    }
+    else if (o instanceof XMLObject) {
+      return estimateE4X((XMLObject) o, seen);
+    }
+    else if (o instanceof Wrapper) {
+      return OBJECT_OVERHEAD + estimate(((Wrapper) o).unwrap(), seen);
+    }
+    else if (o instanceof Function) {
+      // Never walk into a function's scope
+      return OBJECT_OVERHEAD;
+    }
+    else if (o instanceof Scriptable) {
+      return estimateScriptable((Scriptable) o, seen);
+    }
+    else {
+      return OBJECT_OVERHEAD;
+    }
+  }
+
+  private long estimateNode(Node node) {
+    long size = NODE_OVERHEAD + length(node.getNodeName()) + length(node.getNodeValue());
+
+    NamedNodeMap attrs = node.getAttributes();
+
+    if (attrs != null) {
+      for (int i = 0; i < attrs.getLength(); ++i) {
+	Attr attr = (Attr) attrs.item(i);
+
+	size += NODE_OVERHEAD + length(attr.getName()) + length(attr.getValue());
+      }
+    }
+
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      size += estimateNode(child);
+    }
+
+    return size;
+  }
+
+  private long estimateE4X(XMLObject xml, IdentityHashMap<Object, Object> seen) {
+    if ("XMLList".equals(xml.getClassName())) {
+      long size = OBJECT_OVERHEAD;
+
+      for (Object id : xml.getIds()) {
+	if (id instanceof Integer) {
+	  size += estimate(xml.get((Integer) id, xml), seen);
+	}
+      }
+
+      return size;
+    }
+    else {
+      // Serializing is much cheaper than converting to DOM, and the
+      // tree is roughly proportional in size to its XML text
+      return OBJECT_OVERHEAD + XML_TEXT_FACTOR * 2L * xmlText(xml).length();
+    }
+  }
+
+  private static String xmlText(XMLObject xml) {
+    if (Context.getCurrentContext() != null) {
+      return Context.toString(ScriptableObject.callMethod(xml, "toXMLString",
+							  Context.emptyArgs));
+    }
+    else {
+      return xml.toString();
+    }
+  }
+
+  private long estimateScriptable(Scriptable obj, IdentityHashMap<Object, Object> seen) {
+    long size = OBJECT_OVERHEAD;
+
+    if (!(obj instanceof NativeObject) && !(obj instanceof NativeArray)) {
+      return size;
+    }
+
+    ScriptableObject so = (ScriptableObject) obj;
+
+    for (Object id : so.getIds()) {
+      String name  = id instanceof Integer ? null : id.toString();
+      int    index = id instanceof Integer ? (Integer) id : 0;
+
+      size += PROPERTY_OVERHEAD;
+
+      if (name != null) {
+	size += estimate(name, seen);
+      }
+
+      if (isAccessor(so, name, index)) {
+	continue;
+      }
+
+      size += estimate(name != null ? so.get(name, so) : so.get(index, so), seen);
+    }
+
+    return size;
+  }
+
+  private static boolean isAccessor(ScriptableObject so, String name, int index) {
+    Object getter = so.getGetterOrSetter(name, index, false);
+    Object setter = so.getGetterOrSetter(name, index, true);
+
+    return (getter != null && getter != Undefined.instance ||
+	    setter != null && setter != Undefined.instance);
+  }
+
+  private static long length(String s) {
+    return s == null ? 0 : OBJECT_OVERHEAD + ARRAY_OVERHEAD + 2L * s.length();
+  }
+
+  private static final long OBJECT_OVERHEAD   = 16;
+  private static final long ARRAY_OVERHEAD    = 16;
+  private static final long PROPERTY_OVERHEAD = 32;
+  private static final long NODE_OVERHEAD     = 64;
+  private static final long ENTRY_OVERHEAD    = 96;
+  private static final long XML_TEXT_FACTOR   = 4;
+}
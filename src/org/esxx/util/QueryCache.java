@@ -62,27 +62,34 @@ public class QueryCache {
 
   public void executeQuery(URI uri, Properties props, final String query, final QueryHandler qh)
     throws SQLException {
-    withConnection(uri, props, new ConnectionCallback() {
-	public void execute(PooledConnection pc)
-	  throws SQLException {
+    ESXX.Workload.Phase old_phase = ESXX.Workload.enterPhase(ESXX.Workload.Phase.SQL);
 
-	  List<Query.Param> params = new ArrayList<Query.Param>(32);
-	  String parsed_query      = Query.parseQuery(query, params, qh);
-	  int total_param_length   = 0;
+    try {
+      withConnection(uri, props, new ConnectionCallback() {
+	  public void execute(PooledConnection pc)
+	    throws SQLException {
 
-	  for (Query.Param p : params) {
-	    total_param_length += p.length;
-	  }
+	    List<Query.Param> params = new ArrayList<Query.Param>(32);
+	    String parsed_query      = Query.parseQuery(query, params, qh);
+	    int total_param_length   = 0;
 
-	  Query q = pc.getQuery(parsed_query, total_param_length);
+	    for (Query.Param p : params) {
+	      total_param_length += p.length;
+	    }
 
-	  for (int b = 0; b < qh.getBatches(); ++b) {
-	    q.bindParams(b, params, total_param_length, qh);
-	  }
+	    Query q = pc.getQuery(parsed_query, total_param_length);
 
-	  q.execute(qh);
-	}
-      });
+	    for (int b = 0; b < qh.getBatches(); ++b) {
+	      q.bindParams(b, params, total_param_length, qh);
+	    }
+
+	    q.execute(qh);
+	  }
+	});
+    }
+    finally {
+      ESXX.Workload.leavePhase(old_phase);
+    }
   }
 
   public void executeTransaction(URI uri, Properties props, final QueryHandler qh)
@@ -18,20 +18,35 @@
 
 package org.esxx.util;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.*;
 import org.mozilla.javascript.*;
 
+/** Matches requests against a list of patterns and returns the
+ *  first one that matches.
+ *
+ *  Each pattern consists of a method regex and a URI regex. To avoid
+ *  running every regex on every request, compile() indexes the
+ *  patterns in a trie, keyed by the literal prefix of the URI regex,
+ *  and patterns whose method regex is a plain list of alternatives
+ *  are filtered on the method before their regex is evaluated.
+ */
+
 public class RequestMatcher {
     public RequestMatcher() {
-      patterns = new LinkedList<Request>();
+      patterns = new ArrayList<Request>();
+      root     = new TrieNode();
     }
 
 
     public void clear() {
       patterns.clear();
+      root            = new TrieNode();
+      compiledPattern = null;
     }
 
 
@@ -49,77 +64,183 @@ public class RequestMatcher {
 
 
     public void compile() {
-      StringBuilder regex = new StringBuilder();
+      TrieNode trie = new TrieNode();
 
-      for (Request r : patterns) {
-	if (regex.length() > 0) {
- 	  regex.append("|");
+      for (int i = 0; i < patterns.size(); ++i) {
+	TrieNode node   = trie;
+	String   prefix = patterns.get(i).uriPrefix;
+
+	for (int c = 0; c < prefix.length(); ++c) {
+	  node = node.getChild(prefix.charAt(c), true);
 	}
 
-	regex.append("^(");
- 	regex.append(r.pattern.toString());
- 	regex.append(")");
+	node.addRoute(i);
       }
 
-      compiledPattern = Pattern.compile(regex.toString());
+      root            = trie;
+      compiledPattern = null;
     }
 
 
     public Match matchRequest(String method, String uri,
 			      Context cx, Scriptable scope) {
-      Matcher m = compiledPattern.matcher(method + SEPARATOR + uri);
+      String subject = method + SEPARATOR + uri;
 
-      if (m.matches()) {
-	int group = 1;
+      for (int idx : findCandidates(method, uri)) {
+	Request r = patterns.get(idx);
+	Matcher m = r.pattern.matcher(subject);
 
-	for (Request r : patterns) {
-	  if (m.start(group) != -1) {
-	    Match       res = new Match();
+	if (m.matches()) {
+	  return r.createMatch(m, 0, cx, scope);
+	}
+      }
+
+      return null;
+    }
 
-	    // We found the request that matched. Now calculate return
-	    // values and exit.
 
-	    res.params = cx.newObject(scope);
+    /** Returns the handlers of all patterns that match, not just the
+     *  first one.
+     *
+     *  @param method  The request method.
+     *  @param uri     The request URI.
+     *
+     *  @return An array of handlers, in declaration order.
+     */
 
-//	    // Put unnamed groups, incl. a faked group 0
-//	    ScriptableObject.putProperty(res.params, 0, uri);
-	    for (int i = 0; i <= r.numGroups; ++i) {
-	      Object value = m.group(group + i);
+    public String[] matchAllHandlers(String method, String uri) {
+      String   subject    = method + SEPARATOR + uri;
+      int[]    candidates = findCandidates(method, uri);
+      String[] handlers   = new String[candidates.length];
+      int      count      = 0;
 
-	      if (value == null) {
-		value = Context.getUndefinedValue();
-	      }
+      for (int idx : candidates) {
+	Request r = patterns.get(idx);
+	Matcher m = r.pattern.matcher(subject);
 
-	      ScriptableObject.putProperty(res.params, i, m.group(group + i));
-	    }
+	if (m.matches()) {
+	  handlers[count++] = r.createHandler(m, 0);
+	}
+      }
 
-	    // Put named groups
-	    for (Map.Entry<String,Integer> e : r.namedGroups.entrySet()) {
-	      String  name = e.getKey();
-	      Object value = m.group(group + e.getValue());
+      return count == handlers.length ? handlers : Arrays.copyOf(handlers, count);
+    }
 
-	      if (value == null) {
-		value = Context.getUndefinedValue();
+
+    /** Checks if matchAllHandlers() returns the same handlers for
+     *  every URI that a route matches, so that the result may be
+     *  cached per route instead of per URI.
+     *
+     *  The check is conservative. It succeeds only if the route
+     *  matches a single URI, or if each pattern either cannot match
+     *  any of the route's URIs, or is a literal prefix followed by
+     *  '.*' that matches all of them (and has a constant handler).
+     *
+     *  @param method  The request method.
+     *  @param route   A Match, from any RequestMatcher, for a URI.
+     *
+     *  @return true if the handlers only depend on the route.
+     */
+
+    public boolean isRouteInvariant(String method, Match route) {
+      if (route.routeLiteral) {
+	return true;
+      }
+
+      String prefix = route.routePrefix;
+
+      for (Request r : patterns) {
+	if (!r.acceptsMethod(method)
+	    || !(prefix.startsWith(r.uriPrefix) || r.uriPrefix.startsWith(prefix))) {
+	  // Can never match any of the route's URIs
+	  continue;
+	}
+
+	if (!r.uriPrefixOnly || r.handlerGroups != null || !prefix.startsWith(r.uriPrefix)) {
+	  return false;
+	}
+      }
+
+      return true;
+    }
+
+
+    /** Returns the indices of the patterns that might match, in
+     *  declaration order. */
+
+    private int[] findCandidates(String method, String uri) {
+      int[] candidates;
+      int   count;
+
+      if (method.indexOf(SEPARATOR) == -1 && uri.indexOf(SEPARATOR) == -1) {
+	// Collect the patterns whose literal prefix matches the URI
+	candidates = new int[16];
+	count      = 0;
+
+	TrieNode node = root;
+
+	for (int pos = 0; node != null; ++pos) {
+	  for (int i = 0; i < node.numRoutes; ++i) {
+	    int idx = node.routes[i];
+
+	    if (patterns.get(idx).acceptsMethod(method)) {
+	      if (count == candidates.length) {
+		candidates = Arrays.copyOf(candidates, count * 2);
 	      }
 
-	      ScriptableObject.putProperty(res.params, name, value);
+	      candidates[count++] = idx;
 	    }
+	  }
 
-	    StringBuffer sb = new StringBuffer();
-	    Matcher      tm = Request.namedReferencePattern.matcher(r.handlerTemplate);
+	  node = pos < uri.length() ? node.getChild(uri.charAt(pos), false) : null;
+	}
 
-	    while (tm.find()) {
-	      String    ref = tm.group();
-	      String   name = ref.substring(1, ref.length() - 1);
-	      int group_num = group + r.namedGroups.get(name);
+	// Restore declaration order, since the first match wins
+	Arrays.sort(candidates, 0, count);
+      }
+      else {
+	// The prefixes are only valid if the separator is unambiguous
+	candidates = new int[patterns.size()];
+	count      = candidates.length;
 
-	      tm.appendReplacement(sb, m.group(group_num));
-	    }
-	    tm.appendTail(sb);
+	for (int i = 0; i < count; ++i) {
+	  candidates[i] = i;
+	}
+      }
 
-	    res.handler = sb.toString();
+      return count == candidates.length ? candidates : Arrays.copyOf(candidates, count);
+    }
 
-	    return res;
+
+    /** The original matcher, which runs all patterns as a single
+     *  regex. It's only used for verification and benchmarking. */
+
+    Match matchRequestRegex(String method, String uri,
+			    Context cx, Scriptable scope) {
+      if (compiledPattern == null) {
+	StringBuilder regex = new StringBuilder();
+
+	for (Request r : patterns) {
+	  if (regex.length() > 0) {
+	    regex.append("|");
+	  }
+
+	  regex.append("^(");
+	  regex.append(r.pattern.toString());
+	  regex.append(")");
+	}
+
+	compiledPattern = Pattern.compile(regex.toString());
+      }
+
+      Matcher m = compiledPattern.matcher(method + SEPARATOR + uri);
+
+      if (m.matches()) {
+	int group = 1;
+
+	for (Request r : patterns) {
+	  if (m.start(group) != -1) {
+	    return r.createMatch(m, group, cx, scope);
 	  }
 
 	  group += r.numGroups + 1;
@@ -135,8 +256,13 @@ public class RequestMatcher {
 
     public static class Match {
         public String handler;
+	public String template; // The handler, before {group} expansion
+	public String route;    // The pattern that matched
 	public Scriptable params;
 
+	private String routePrefix;
+	private boolean routeLiteral;
+
 	@Override
 	public String toString() {
 	  StringBuilder sb = new StringBuilder();
@@ -168,6 +294,240 @@ public class RequestMatcher {
 	  handlerTemplate = h;
 	  namedGroups = new TreeMap<String, Integer>();
 	  compilePattern(m, u);
+	  compileHandler(h);
+	  methods   = literalAlternatives(m);
+	  uriPrefix = literalPrefix(u);
+
+	  uriLiteral    = isLiteral(u);
+	  uriPrefixOnly = u.endsWith(".*") && isLiteral(u.substring(0, u.length() - 2));
+	}
+
+	public boolean acceptsMethod(String method) {
+	  if (methods == null) {
+	    return true;
+	  }
+
+	  for (String m : methods) {
+	    if (m.equals(method)) {
+	      return true;
+	    }
+	  }
+
+	  return false;
+	}
+
+	/** Creates a Match from a Matcher, where this request's
+	 *  pattern starts at group 'group' + 1. */
+
+	public Match createMatch(Matcher m, int group, Context cx, Scriptable scope) {
+	  Match res = new Match();
+
+	  res.params = cx.newObject(scope);
+
+	  // Put unnamed groups, incl. group 0
+	  for (int i = 0; i <= numGroups; ++i) {
+	    ScriptableObject.putProperty(res.params, i, m.group(group + i));
+	  }
+
+	  // Put named groups
+	  for (Map.Entry<String,Integer> e : namedGroups.entrySet()) {
+	    String  name = e.getKey();
+	    Object value = m.group(group + e.getValue());
+
+	    if (value == null) {
+	      value = Context.getUndefinedValue();
+	    }
+
+	    ScriptableObject.putProperty(res.params, name, value);
+	  }
+
+	  res.handler      = createHandler(m, group);
+	  res.template     = handlerTemplate;
+	  res.route        = pattern.pattern();
+	  res.routePrefix  = uriPrefix;
+	  res.routeLiteral = uriLiteral;
+	  return res;
+	}
+
+	public String createHandler(Matcher m, int group) {
+	  if (handlerGroups == null) {
+	    return handlerTemplate;
+	  }
+
+	  StringBuilder sb = new StringBuilder(handlerTemplate.length() + 16);
+
+	  for (int i = 0; i < handlerGroups.length; ++i) {
+	    String value = m.group(group + handlerGroups[i]);
+
+	    sb.append(handlerParts[i]);
+	    sb.append(value != null ? value : "");
+	  }
+
+	  sb.append(handlerParts[handlerGroups.length]);
+	  return sb.toString();
+	}
+
+	private void compileHandler(String template) {
+	  Matcher tm = namedReferencePattern.matcher(template);
+	  ArrayList<String>  parts  = new ArrayList<String>();
+	  ArrayList<Integer> groups = new ArrayList<Integer>();
+	  int last = 0;
+
+	  while (tm.find()) {
+	    String  ref = tm.group();
+	    Integer num = namedGroups.get(ref.substring(1, ref.length() - 1));
+
+	    if (num != null) {
+	      parts.add(template.substring(last, tm.start()));
+	      groups.add(num);
+	      last = tm.end();
+	    }
+	  }
+
+	  if (groups.isEmpty()) {
+	    // Constant handler; no need to build it for every request
+	    handlerParts  = null;
+	    handlerGroups = null;
+	  }
+	  else {
+	    parts.add(template.substring(last));
+
+	    handlerParts  = parts.toArray(new String[parts.size()]);
+	    handlerGroups = new int[groups.size()];
+
+	    for (int i = 0; i < handlerGroups.length; ++i) {
+	      handlerGroups[i] = groups.get(i);
+	    }
+	  }
+	}
+
+	/** Returns the strings matched by a regex that is just a list
+	 *  of literal alternatives, like 'GET' or '(GET|POST)', or null
+	 *  if the regex is anything else. */
+
+	private static String[] literalAlternatives(String regex) {
+	  if (regex.startsWith("(?:") && regex.endsWith(")")) {
+	    regex = regex.substring(3, regex.length() - 1);
+	  }
+	  else if (regex.startsWith("(") && !regex.startsWith("(?") && regex.endsWith(")")) {
+	    regex = regex.substring(1, regex.length() - 1);
+	  }
+
+	  String[] alternatives = regex.split("\\|", -1);
+
+	  for (String s : alternatives) {
+	    if (s.isEmpty()) {
+	      return null;
+	    }
+
+	    for (int i = 0; i < s.length(); ++i) {
+	      if (META_CHARS.indexOf(s.charAt(i)) != -1) {
+		return null;
+	      }
+	    }
+	  }
+
+	  return alternatives;
+	}
+
+	/** Returns true if a regex contains no special characters at
+	 *  all, and thus only matches itself. */
+
+	private static boolean isLiteral(String regex) {
+	  for (int i = 0; i < regex.length(); ++i) {
+	    if (META_CHARS.indexOf(regex.charAt(i)) != -1) {
+	      return false;
+	    }
+	  }
+
+	  return true;
+	}
+
+	/** Returns the literal string that everything matched by a regex
+	 *  must start with. The result is conservative: the regex is
+	 *  only scanned up to the first construct that is not a plain
+	 *  character. */
+
+	private static String literalPrefix(String regex) {
+	  if (hasTopLevelAlternation(regex)) {
+	    return "";
+	  }
+
+	  StringBuilder prefix = new StringBuilder();
+	  int i = 0;
+
+	  while (i < regex.length()) {
+	    char c = regex.charAt(i);
+	    int next;
+
+	    if (c == '\\') {
+	      if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+		break; // A character class, back-reference or quote
+	      }
+
+	      c    = regex.charAt(i + 1);
+	      next = i + 2;
+	    }
+	    else if (META_CHARS.indexOf(c) != -1) {
+	      break;
+	    }
+	    else {
+	      next = i + 1;
+	    }
+
+	    // An optional or repeated character is not part of the prefix
+	    if (next < regex.length() && "?*+{".indexOf(regex.charAt(next)) != -1) {
+	      break;
+	    }
+
+	    prefix.append(c);
+	    i = next;
+	  }
+
+	  return prefix.toString();
+	}
+
+	private static boolean hasTopLevelAlternation(String regex) {
+	  int depth = 0;
+	  int klass = 0;
+
+	  for (int i = 0; i < regex.length(); ++i) {
+	    char c = regex.charAt(i);
+
+	    if (c == '\\') {
+	      if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+		int end = regex.indexOf("\\E", i + 2);
+
+		if (end == -1) {
+		  return false;
+		}
+
+		i = end + 1;
+	      }
+	      else {
+		++i;
+	      }
+	    }
+	    else if (c == '[') {
+	      ++klass;
+	    }
+	    else if (c == ']' && klass > 0) {
+	      --klass;
+	    }
+	    else if (klass == 0) {
+	      if (c == '(') {
+		++depth;
+	      }
+	      else if (c == ')') {
+		--depth;
+	      }
+	      else if (c == '|' && depth == 0) {
+		return true;
+	      }
+	    }
+	  }
+
+	  return false;
 	}
 
 	private void compilePattern(String method, String uri) {
@@ -224,6 +584,14 @@ public class RequestMatcher {
 	private TreeMap<String, Integer> namedGroups;
 	private int numGroups;
 	private Pattern pattern;
+	private String[] handlerParts;
+	private int[] handlerGroups;
+	private String[] methods;
+	private String uriPrefix;
+	private boolean uriLiteral;
+	private boolean uriPrefixOnly;
+
+	private static final String META_CHARS = "\\^$.|?*+()[]{}";
 
 	/** A Pattern that matches '(' or '(?{' but not '\(' or '(?' */
 	private static Pattern groupPattern = Pattern.compile("(((^\\()|((?<!\\\\)\\())" +
@@ -236,7 +604,37 @@ public class RequestMatcher {
 	static Pattern namedReferencePattern = Pattern.compile("(\\{[^\\}]+\\})");
     }
 
-    private LinkedList<Request> patterns;
+    private static class TrieNode {
+	public TrieNode getChild(char c, boolean create) {
+	  TrieNode child = children == null ? null : children.get(c);
+
+	  if (child == null && create) {
+	    if (children == null) {
+	      children = new HashMap<Character, TrieNode>();
+	    }
+
+	    child = new TrieNode();
+	    children.put(c, child);
+	  }
+
+	  return child;
+	}
+
+	public void addRoute(int idx) {
+	  if (numRoutes == routes.length) {
+	    routes = Arrays.copyOf(routes, Math.max(4, numRoutes * 2));
+	  }
+
+	  routes[numRoutes++] = idx;
+	}
+
+	private HashMap<Character, TrieNode> children;
+	private int[] routes = new int[0];
+	private int numRoutes;
+    }
+
+    private ArrayList<Request> patterns;
+    private volatile TrieNode root;
     private Pattern compiledPattern;
 
     private static char SEPARATOR = '\n';
@@ -0,0 +1,121 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.mozilla.javascript.*;
+
+/** Compares the trie-based RequestMatcher with the original
+ *  single-regex matcher.
+ *
+ *  Usage: RequestMatcherBenchmark [routes] [requests]
+ */
+
+public class RequestMatcherBenchmark {
+  public static void main(String args[]) {
+    final int num_routes   = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    final int num_requests = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    final RequestMatcher rm = new RequestMatcher();
+    final List<String[]> requests = new ArrayList<String[]>();
+    final Random random = new Random(42);
+
+    for (int i = 0; i < num_routes; ++i) {
+      switch (i % 4) {
+	case 0:
+	  rm.addRequestPattern("GET", "api/res" + i, "list" + i);
+	  break;
+	case 1:
+	  rm.addRequestPattern("GET", "api/res" + i + "/(?{id}\\d+)", "get" + i);
+	  break;
+	case 2:
+	  rm.addRequestPattern("(PUT|POST)", "api/res" + i + "/(?{id}\\d+)", "update" + i);
+	  break;
+	case 3:
+	  rm.addRequestPattern("", "pages/p" + i + "/(?{page}[a-z]+)", "{page}_" + i);
+	  break;
+      }
+    }
+
+    rm.addRequestPattern("", "", "fallback");
+    rm.compile();
+
+    String[] methods = { "GET", "PUT", "POST", "DELETE" };
+
+    for (int i = 0; i < 1000; ++i) {
+      int    r = random.nextInt(num_routes);
+      String method = methods[random.nextInt(methods.length)];
+      String uri;
+
+      switch (r % 4) {
+	case 0:  uri = "api/res" + r; break;
+	case 3:  uri = "pages/p" + r + "/index"; break;
+	default: uri = "api/res" + r + "/" + random.nextInt(1000); break;
+      }
+
+      requests.add(new String[] { method, uri });
+    }
+
+    ContextFactory.getGlobal().call(new ContextAction() {
+	public Object run(Context cx) {
+	  Scriptable scope = new ImporterTopLevel(cx);
+
+	  // Make sure both matchers agree before timing them
+	  for (String[] req : requests) {
+	    String trie  = rm.matchRequest(req[0], req[1], cx, scope).handler;
+	    String regex = rm.matchRequestRegex(req[0], req[1], cx, scope).handler;
+
+	    if (!trie.equals(regex)) {
+	      throw new IllegalStateException(req[0] + " " + req[1] + ": "
+					      + trie + " != " + regex);
+	    }
+	  }
+
+	  for (int round = 0; round < 3; ++round) {
+	    long start = System.nanoTime();
+
+	    for (int i = 0; i < num_requests; ++i) {
+	      String[] req = requests.get(i % requests.size());
+	      rm.matchRequestRegex(req[0], req[1], cx, scope);
+	    }
+
+	    long regex = System.nanoTime() - start;
+
+	    start = System.nanoTime();
+
+	    for (int i = 0; i < num_requests; ++i) {
+	      String[] req = requests.get(i % requests.size());
+	      rm.matchRequest(req[0], req[1], cx, scope);
+	    }
+
+	    long trie = System.nanoTime() - start;
+
+	    System.out.println("Round " + (round + 1) + ", " + num_routes + " routes: "
+			       + "regex " + (regex / num_requests) + " ns/match, "
+			       + "trie " + (trie / num_requests) + " ns/match");
+	  }
+
+	  return null;
+	}
+      });
+  }
+}
@@ -0,0 +1,380 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/** A pipe whose writer never waits for the reader.
+ *
+ *  Data that has been written but not yet read is kept in memory, up
+ *  to a threshold. When that is exceeded, the rest of the data is
+ *  spooled to a temporary file instead. The reader blocks until data
+ *  is available, the writer has closed the buffer, or the buffer has
+ *  failed.
+ *
+ *  The file is never accessed while the buffer is locked, so a slow
+ *  disk delays the reader but not the writer. If a spooler Executor
+ *  is supplied, the file is also created and written by the
+ *  spooler, and the writer never touches the disk at all; data that
+ *  the spooler has not caught up with yet is held in memory.
+ */
+
+public class SpoolBuffer {
+  /** Creates a new SpoolBuffer that spools in the writer's thread.
+   *
+   *  @param threshold  Max number of unread bytes to keep in memory.
+   */
+
+  public SpoolBuffer(int threshold) {
+    this(threshold, null);
+  }
+
+  /** Creates a new SpoolBuffer.
+   *
+   *  @param threshold  Max number of unread bytes to keep in memory.
+   *  @param spooler    The Executor that writes the spool file, or
+   *                    null to write it in the writer's thread.
+   */
+
+  public SpoolBuffer(int threshold, Executor spooler) {
+    this.threshold = threshold;
+    this.spooler   = spooler;
+  }
+
+  public InputStream getInputStream() {
+    return input;
+  }
+
+  /** Returns the total number of bytes written so far. */
+
+  public synchronized long getLength() {
+    return length;
+  }
+
+  /** Appends data to the buffer.
+   *
+   *  If the reader has closed its stream, or if the buffer has failed,
+   *  the data is silently discarded.
+   */
+
+  public void write(byte[] b, int off, int len)
+    throws IOException {
+    byte[] chunk = new byte[len];
+    System.arraycopy(b, off, chunk, 0, len);
+
+    synchronized (this) {
+      if (closed) {
+	throw new IOException("SpoolBuffer has been closed");
+      }
+
+      if (discarded || failure != null || len == 0) {
+	return;
+      }
+
+      length += len;
+
+      if (!spooling && memoryBytes + len > threshold) {
+	// From now on, everything goes through the file
+	spooling = true;
+      }
+
+      if (!spooling) {
+	memory.add(chunk);
+	memoryBytes += len;
+	notifyAll();
+	return;
+      }
+
+      pending.add(chunk);
+
+      if (flushing) {
+	return; // The active flush will pick it up
+      }
+
+      flushing = true;
+    }
+
+    if (spooler != null) {
+      spooler.execute(new Runnable() {
+	  public void run() {
+	    flush();
+	  }
+	});
+    }
+    else {
+      flush();
+    }
+  }
+
+  /** Marks the end of the data. */
+
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /** Writes pending chunks to the spool file. Only one flush runs at
+   *  a time. A failure makes the reader fail once it has consumed
+   *  the data spooled so far. */
+
+  private void flush() {
+    while (true) {
+      List<byte[]> chunks;
+      FileChannel  channel;
+      long         position;
+
+      synchronized (this) {
+	if (discarded || pending.isEmpty()) {
+	  flushing = false;
+	  notifyAll(); // The reader may be waiting for EOF
+	  return;
+	}
+
+	chunks   = new ArrayList<byte[]>(pending);
+	channel  = file;
+	position = fileWritePos;
+	pending.clear();
+      }
+
+      try {
+	if (channel == null) {
+	  channel = new RandomAccessFile(createTempFile(), "rw").getChannel();
+
+	  synchronized (this) {
+	    if (discarded) {
+	      channel.close();
+	      flushing = false;
+	      return;
+	    }
+
+	    file = channel;
+	  }
+	}
+
+	for (byte[] chunk : chunks) {
+	  ByteBuffer bb = ByteBuffer.wrap(chunk);
+
+	  while (bb.hasRemaining()) {
+	    position += channel.write(bb, position);
+	  }
+	}
+      }
+      catch (IOException ex) {
+	synchronized (this) {
+	  flushing = false;
+	  pending.clear();
+
+	  if (failure == null) {
+	    failure = ex;
+	  }
+
+	  notifyAll();
+	}
+
+	return;
+      }
+
+      synchronized (this) {
+	fileWritePos = position;
+	notifyAll();
+      }
+    }
+  }
+
+  /** Makes the reader fail with the specified exception once it has
+   *  consumed the data written so far.
+   *
+   *  @param ex  An IOException or a RuntimeException.
+   */
+
+  public synchronized void fail(Exception ex) {
+    if (!closed && failure == null) {
+      failure = ex;
+      notifyAll();
+    }
+  }
+
+  /** Releases all buffered data and closes the spool file. Further
+   *  writes are discarded. */
+
+  public synchronized void discard() {
+    discarded = true;
+    memory.clear();
+    memoryBytes = 0;
+    pending.clear();
+
+    if (file != null) {
+      try { file.close(); } catch (IOException ignored) {}
+    }
+
+    notifyAll();
+  }
+
+  /** Creates the spool file. The default implementation creates a
+   *  temporary file that is deleted when the JVM exits. */
+
+  protected File createTempFile()
+    throws IOException {
+    File temp = File.createTempFile(getClass().getName(), null);
+    temp.deleteOnExit();
+    return temp;
+  }
+
+  private int read(byte[] b, int off, int len)
+    throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    // Only one reader at a time, but without locking out the writer
+    synchronized (readLock) {
+      FileChannel channel;
+      long        position;
+      int         n;
+
+      synchronized (this) {
+	n = readMemory(b, off, len);
+
+	if (n != 0) {
+	  return n;
+	}
+
+	channel  = file;
+	position = fileReadPos;
+	n        = (int) Math.min(len, fileWritePos - fileReadPos);
+      }
+
+      // The writer only appends, so this part of the file is stable
+      n = channel.read(ByteBuffer.wrap(b, off, n), position);
+
+      if (n > 0) {
+	synchronized (this) {
+	  fileReadPos += n;
+	}
+      }
+
+      return n;
+    }
+  }
+
+  /** Reads from memory, or waits until there's something to read
+   *  from the file.
+   *
+   *  @return The number of bytes read, -1 at EOF, or 0 if the
+   *  caller should read from the file.
+   */
+
+  private int readMemory(byte[] b, int off, int len)
+    throws IOException {
+    while (!discarded) {
+      if (!memory.isEmpty()) {
+	byte[] chunk = memory.getFirst();
+	int    n     = Math.min(len, chunk.length - chunkOffset);
+
+	System.arraycopy(chunk, chunkOffset, b, off, n);
+	chunkOffset += n;
+	memoryBytes -= n;
+
+	if (chunkOffset == chunk.length) {
+	  memory.removeFirst();
+	  chunkOffset = 0;
+	}
+
+	return n;
+      }
+
+      if (fileReadPos < fileWritePos) {
+	return 0;
+      }
+
+      if (failure instanceof IOException) {
+	throw (IOException) failure;
+      }
+      else if (failure instanceof RuntimeException) {
+	throw (RuntimeException) failure;
+      }
+      else if (closed && !flushing && pending.isEmpty()) {
+	return -1;
+      }
+
+      try {
+	wait();
+      }
+      catch (InterruptedException ex) {
+	Thread.currentThread().interrupt();
+	throw new InterruptedIOException("Interrupted while waiting for data");
+      }
+    }
+
+    throw new IOException("SpoolBuffer has been discarded");
+  }
+
+  private synchronized int available() {
+    return (int) Math.min(Integer.MAX_VALUE, memoryBytes + fileWritePos - fileReadPos);
+  }
+
+  private InputStream input = new InputStream() {
+      @Override public int read()
+	throws IOException {
+	byte[] b = new byte[1];
+	int    n = read(b, 0, 1);
+
+	return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override public int read(byte[] b, int off, int len)
+	throws IOException {
+	return SpoolBuffer.this.read(b, off, len);
+      }
+
+      @Override public int available() {
+	return SpoolBuffer.this.available();
+      }
+
+      @Override public void close() {
+	discard();
+      }
+    };
+
+  private int threshold;
+  private Executor spooler;
+  private Object readLock = new Object();
+  private long length;
+  private boolean closed;
+  private boolean discarded;
+  private Exception failure;
+
+  private LinkedList<byte[]> memory = new LinkedList<byte[]>();
+  private int chunkOffset;
+  private long memoryBytes;
+
+  private boolean spooling;
+  private boolean flushing;
+  private List<byte[]> pending = new ArrayList<byte[]>();
+  private FileChannel file;
+  private long fileWritePos;
+  private long fileReadPos;
+}
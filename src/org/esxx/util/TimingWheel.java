@@ -0,0 +1,225 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A hashed timing wheel, which keeps track of deadlines.
+ *
+ *  Both schedule() and Timeout.cancel() are O(1) and only lock a
+ *  single bucket. Nothing happens by itself, though: someone must
+ *  call advance() periodically, preferably once every tick, and
+ *  that is when the Expirer will be invoked for all items whose
+ *  deadline has passed.
+ */
+
+public class TimingWheel<T> {
+
+  public interface Expirer<T> {
+    public void expired(T item);
+  }
+
+  /** Creates a new timing wheel.
+   *
+   *  @param tick_ms     The resolution of the wheel, in milliseconds.
+   *  @param wheel_size  The number of buckets (rounded up to a power of two).
+   *  @param expirer     The Expirer that will be called for expired items.
+   */
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimingWheel(long tick_ms, int wheel_size, Expirer<T> expirer) {
+    int size = 1;
+
+    while (size < wheel_size) {
+      size <<= 1;
+    }
+
+    tickMS  = Math.max(1, tick_ms);
+    buckets = new TimingWheel.Bucket[size];
+    mask    = size - 1;
+
+    for (int i = 0; i < size; ++i) {
+      buckets[i] = new Bucket();
+    }
+
+    this.expirer  = expirer;
+    processedTick = System.currentTimeMillis() / tickMS;
+  }
+
+  public long getTickMillis() {
+    return tickMS;
+  }
+
+  /** Schedules an item for expiration.
+   *
+   *  @param item      The item.
+   *  @param deadline  The absolute time, in milliseconds, when the
+   *                   item should expire.
+   *
+   *  @return A Timeout object, or null if deadline is Long.MAX_VALUE
+   *  (never expires).
+   */
+
+  public Timeout schedule(T item, long deadline) {
+    if (deadline == Long.MAX_VALUE) {
+      return null;
+    }
+
+    // Round up, so we never expire an item too early
+    Timeout timeout = new Timeout(item, (deadline + tickMS - 1) / tickMS);
+
+    while (true) { // Repeat until successful
+      long   tick   = Math.max(timeout.tick, processedTick + 1);
+      Bucket bucket = buckets[(int) (tick & mask)];
+
+      synchronized (bucket) {
+	// If this bucket has already been processed for the requested
+	// tick, we have to choose a later one
+	if (tick > processedTick) {
+	  timeout.tick = tick;
+	  bucket.link(timeout);
+	  return timeout;
+	}
+      }
+    }
+  }
+
+
+  /** Expires all items whose deadline has passed.
+   *
+   *  This method must not be called concurrently.
+   *
+   *  @param now  The current time, in milliseconds.
+   */
+
+  public void advance(long now) {
+    long target = now / tickMS;
+    long last   = Math.min(target, processedTick + buckets.length);
+    List<T> expired = new ArrayList<T>();
+
+    for (long tick = processedTick + 1; tick <= last; ++tick) {
+      Bucket bucket = buckets[(int) (tick & mask)];
+
+      synchronized (bucket) {
+	bucket.expire(target, expired);
+	processedTick = tick;
+      }
+    }
+
+    processedTick = Math.max(processedTick, target);
+
+    // Call the expirer without holding any locks
+    for (T item : expired) {
+      expirer.expired(item);
+    }
+  }
+
+
+  public class Timeout {
+    Timeout(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    /** Removes this item from the wheel.
+     *
+     *  @return true if the item was removed, false if it had already
+     *  expired or been cancelled.
+     */
+
+    public boolean cancel() {
+      Bucket b = buckets[(int) (tick & mask)];
+
+      synchronized (b) {
+	return b.unlink(this);
+      }
+    }
+
+    private T item;
+    private long tick;
+    private Timeout prev;
+    private Timeout next;
+    private boolean linked;
+  }
+
+  private class Bucket {
+    void link(Timeout t) {
+      t.prev = null;
+      t.next = head;
+
+      if (head != null) {
+	head.prev = t;
+      }
+
+      head     = t;
+      t.linked = true;
+    }
+
+    boolean unlink(Timeout t) {
+      if (!t.linked) {
+	return false;
+      }
+
+      if (t.prev != null) {
+	t.prev.next = t.next;
+      }
+      else {
+	head = t.next;
+      }
+
+      if (t.next != null) {
+	t.next.prev = t.prev;
+      }
+
+      t.prev   = null;
+      t.next   = null;
+      t.linked = false;
+      return true;
+    }
+
+    void expire(long target, List<T> expired) {
+      Timeout t = head;
+
+      while (t != null) {
+	Timeout next = t.next;
+
+	// Items scheduled more than one lap ahead stay in the bucket
+	if (t.tick <= target) {
+	  unlink(t);
+	  expired.add(t.item);
+	}
+
+	t = next;
+      }
+    }
+
+    private Timeout head;
+  }
+
+  private final long tickMS;
+  private final Bucket[] buckets;
+  private final int mask;
+  private final Expirer<T> expirer;
+  private volatile long processedTick;
+}
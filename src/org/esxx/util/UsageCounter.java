@@ -0,0 +1,59 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.esxx.util;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import org.esxx.jmx.ApplicationStats;
+
+/** Lock-free invocation statistics for applications, stylesheets
+ *  and schemas.
+ */
+
+public class UsageCounter {
+  /** Records one invocation.
+   *
+   *  @param start_time  The time the invocation started, or 0 if unknown.
+   */
+
+  public void logUsage(long start_time) {
+    long now = System.currentTimeMillis();
+
+    invocations.incrementAndGet();
+    lastAccessed = now;
+
+    if (start_time != 0) {
+      executionTime.addAndGet(now - start_time);
+    }
+  }
+
+  public long getLastAccessed() {
+    return lastAccessed;
+  }
+
+  public ApplicationStats getStatistics(Date started) {
+    return new ApplicationStats(invocations.get(), executionTime.get(),
+				started, new Date(lastAccessed));
+  }
+
+  private AtomicLong invocations   = new AtomicLong();
+  private AtomicLong executionTime = new AtomicLong();
+  private volatile long lastAccessed;
+}
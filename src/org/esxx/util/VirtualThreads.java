@@ -0,0 +1,75 @@
+/*
+     ESXX - The friendly ECMAscript/XML Application Server
+     Copyright (C) 2007-2015 Martin Blom <martin@blom.org>
+
+     This program is free software: you can redistribute it and/or
+     modify it under the terms of the GNU General Public License
+     as published by the Free Software Foundation, either version 3
+     of the License, or (at your option) any later version.
+
+     This program is distributed in the hope that it will be useful,
+     but WITHOUT ANY WARRANTY; without even the implied warranty of
+     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+     GNU General Public License for more details.
+
+     You should have received a copy of the GNU General Public License
+     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.esxx.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/** Access to virtual threads, if the JVM supports them.
+ *
+ *  ESXX is built for older JVMs, so Thread.ofVirtual() is looked up
+ *  by reflection.
+ */
+
+public abstract class VirtualThreads {
+  public static boolean isSupported() {
+    return ofVirtual != null;
+  }
+
+  /** Returns a ThreadFactory that creates virtual threads.
+   *
+   *  @param prefix  The thread name prefix. A counter will be appended.
+   *
+   *  @return A ThreadFactory, or null if virtual threads are not
+   *  supported by this JVM.
+   */
+
+  public static ThreadFactory newThreadFactory(String prefix) {
+    if (ofVirtual == null) {
+      return null;
+    }
+
+    try {
+      Object builder = ofVirtual.invoke(null);
+      builder = name.invoke(builder, prefix, 1L);
+      return (ThreadFactory) factory.invoke(builder);
+    }
+    catch (Exception ex) {
+      return null;
+    }
+  }
+
+  private static Method ofVirtual;
+  private static Method name;
+  private static Method factory;
+
+  static {
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+      name      = builder.getMethod("name", String.class, long.class);
+      factory   = builder.getMethod("factory");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+    }
+    catch (Exception ex) {
+      // Not supported (or still a preview feature)
+      ofVirtual = null;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+
+testRunner.add(new TestCase({
+  name: "testmod-json",
+
+  init: function() {
+    // Parse via a data: URI, so the default application/json parser is used
+    this.parse = function(json) {
+      return new URI("data:application/json;charset=UTF-8,"
+		     + encodeURIComponent(json)).load();
+    };
+
+    this.assertError = function(json, message, offset) {
+      let parse = this.parse;
+      let re    = new RegExp("Invalid JSON data: " + message + " at offset " + offset + "\\b");
+
+      Assert.fnThrows(function() { parse(json); },
+		      function(ex) { return re.test(String(ex)); },
+		      uneval(json.length > 40 ? json.substr(0, 40) + "..." : json)
+		      + " did not fail with '" + message + "' at offset " + offset);
+    };
+
+    this.repeat = function(str, count) {
+      return new Array(count + 1).join(str);
+    };
+  },
+
+  testStructures: function() {
+    let obj = this.parse('{ "array": [false, "1", 2, null], "object": { "string": "A string" } }');
+
+    Assert.areIdentical(obj.array.length, 4);
+    Assert.areIdentical(obj.array[0], false);
+    Assert.areIdentical(obj.array[1], "1");
+    Assert.areIdentical(obj.array[2], 2);
+    Assert.isNull(obj.array[3]);
+    Assert.areIdentical(obj.object.string, "A string");
+
+    Assert.areIdentical(this.parse("[]").length, 0);
+    Assert.areIdentical(uneval(this.parse(" { } ")), "({})");
+  },
+
+  testTopLevelScalar: function() {
+    let parse = this.parse;
+
+    Assert.fnThrows(function() { parse('"string"'); },
+		    function(ex) { return /Not a JSON Array or Object/.test(String(ex)); });
+  },
+
+  testTrailingGarbage: function() {
+    this.assertError("[1] x",  "Unexpected data after JSON value", 4);
+    this.assertError("[1]]",   "Unexpected data after JSON value", 3);
+    this.assertError("{}{}",   "Unexpected data after JSON value", 2);
+    this.assertError("[1] " + this.repeat(" ", 9000) + "[2]",
+		     "Unexpected data after JSON value", 9004);
+
+    // Trailing whitespace is fine
+    Assert.areIdentical(this.parse("[1] \r\n\t ")[0], 1);
+  },
+
+  testErrorOffsets: function() {
+    this.assertError("",            "Unexpected end of data", 0);
+    this.assertError("[",           "Unexpected end of data", 1);
+    this.assertError('{"a": tru}',  "Invalid literal; expected 'true'", 9);
+    this.assertError("[1,]",        "Unexpected character ']'", 3);
+    this.assertError('{"a" 1}',     "Expected ':'", 5);
+    this.assertError("{a: 1}",      "Expected a property name", 1);
+    this.assertError('["a\u0001"]', "Control character in string", 3);
+    this.assertError('["\\x"]',     "Invalid escape '\\\\x'", 3);
+    this.assertError('["\\u12g4"]', "Invalid \\\\u escape", 6);
+    this.assertError('["abc',       "Unterminated string", 5);
+
+    // Offsets keep counting across buffer refills
+    this.assertError("[" + this.repeat(" ", 9000) + "x]", "Unexpected character 'x'", 9001);
+  },
+
+  testUnicodeEscapes: function() {
+    Assert.areIdentical(this.parse('["\\u00e5\\u00E4\\u00f6"]')[0], "\u00e5\u00e4\u00f6");
+    Assert.areIdentical(this.parse('["\\ud83d\\ude00"]')[0], "\ud83d\ude00");
+
+    // Only ASCII hex digits are allowed
+    this.assertError('["\\u\uff10\uff10e5"]', "Invalid \\\\u escape", 4);
+
+    // Move the escapes across the 8 KiB read buffer boundary
+    for (let n = 8180; n <= 8195; ++n) {
+      let pad = this.repeat("x", n);
+
+      Assert.areIdentical(this.parse('["' + pad + '\\u00e5\\ud83d\\ude00\\n"]')[0],
+			  pad + "\u00e5\ud83d\ude00\n",
+			  "Escape at offset " + (n + 2) + " was not decoded");
+    }
+  },
+
+  testNumbers: function() {
+    let num = this.parse("[0, -0, -0.0, 0e0, 1.5, 1e3, 1E-2, 2.5e+1]");
+
+    Assert.areIdentical(1 / num[0], Infinity, "0 is not +0");
+    Assert.areIdentical(1 / num[1], -Infinity, "-0 is not -0");
+    Assert.areIdentical(1 / num[2], -Infinity, "-0.0 is not -0");
+    Assert.areIdentical(1 / num[3], Infinity, "0e0 is not +0");
+    Assert.areIdentical(num[4], 1.5);
+    Assert.areIdentical(num[5], 1000);
+    Assert.areIdentical(num[6], 0.01);
+    Assert.areIdentical(num[7], 25);
+
+    this.assertError("[01]", "Expected ',' or ']'", 2);
+    this.assertError("[-]",  "Expected a digit", 2);
+    this.assertError("[1.]", "Expected a digit", 3);
+    this.assertError("[1e]", "Expected a digit", 3);
+    this.assertError("[.5]", "Unexpected character '.'", 1);
+    this.assertError("[+1]", "Unexpected character '\\+'", 1);
+  },
+
+  testIntegerBoundaries: function() {
+    let num = this.parse("[2147483647, -2147483648, 2147483648, -2147483649, "
+			 + "9999999999, 12345678901, 9007199254740993]");
+
+    Assert.areIdentical(num[0], 2147483647);
+    Assert.areIdentical(num[1], -2147483648);
+    Assert.areIdentical(num[2], 2147483648);
+    Assert.areIdentical(num[3], -2147483649);
+    Assert.areIdentical(num[4], 9999999999);
+    Assert.areIdentical(num[5], 12345678901);
+    Assert.areIdentical(num[6], 9007199254740992);
+
+    for (let i = 0; i < num.length; ++i) {
+      Assert.areIdentical(num[i] % 1, 0, num[i] + " is not integral");
+    }
+  },
+
+  testNumericKeys: function() {
+    let obj = this.parse('{ "0": "a", "01": "b", "-1": "c", "-0": "d", '
+			 + '"999999999": "e", "2147483647": "f", "2147483648": "g", '
+			 + '"-2147483648": "h", "1a": "i" }');
+
+    // Every key must be reachable the same way a JS literal would be
+    // (and like Rhino itself, "-0" ends up as index 0)
+    Assert.areIdentical(obj[0], "d");
+    Assert.areIdentical(obj["0"], "d");
+    Assert.areIdentical(obj["01"], "b");
+    Assert.areIdentical(obj[-1], "c");
+    Assert.areIdentical(obj["-1"], "c");
+    Assert.areIdentical(obj[999999999], "e");
+    Assert.areIdentical(obj[2147483647], "f");
+    Assert.areIdentical(obj["2147483648"], "g");
+    Assert.areIdentical(obj[-2147483648], "h");
+    Assert.areIdentical(obj["1a"], "i");
+
+    Assert.isTrue("0" in obj);
+    Assert.isTrue(obj.hasOwnProperty(2147483647));
+    Assert.isFalse("1" in obj);
+  }
+}));
@@ -0,0 +1,204 @@
+
+testRunner.add(new TestCase({
+  name: "testmod-multipart",
+
+  init: function() {
+    // Creates a MultipartReader for boundary "XYZ". The data is
+    // returned in separate reads, split at the specified offsets.
+    this.reader = function(data, splits) {
+      let bytes   = new java.lang.String(data).getBytes("ISO-8859-1");
+      let offsets = [0].concat(splits || [], [bytes.length]);
+      let streams = new java.util.Vector();
+
+      for (let i = 0; i < offsets.length - 1; ++i) {
+	streams.add(new java.io.ByteArrayInputStream(bytes, offsets[i],
+						     offsets[i + 1] - offsets[i]));
+      }
+
+      return new Packages.org.esxx.util.MultipartReader(
+	new java.io.SequenceInputStream(streams.elements()), "XYZ");
+    };
+
+    this.readPart = function(mr) {
+      let bos = new java.io.ByteArrayOutputStream();
+      Packages.org.esxx.util.IO.copyStream(mr.getPartInputStream(), bos);
+      return String(bos.toString("ISO-8859-1"));
+    };
+
+    this.readAll = function(mr) {
+      let parts = [];
+
+      while (mr.nextPart()) {
+	parts.push(this.readPart(mr));
+      }
+
+      return parts;
+    };
+
+    this.assertEOF = function(fn, comment) {
+      Assert.fnThrows(fn, function(ex) { return ex.javaException instanceof java.io.EOFException; },
+		      comment);
+    };
+
+    this.repeat = function(str, count) {
+      return new Array(count + 1).join(str);
+    };
+
+    this.simple = ("--XYZ\r\n"
+		   + "Content-Type: text/plain\r\n"
+		   + "\r\n"
+		   + "one\r\n"
+		   + "--XYZ\r\n"
+		   + "\r\n"
+		   + "two\r\n"
+		   + "--XYZ--\r\n");
+  },
+
+  testSimple: function() {
+    let mr = this.reader(this.simple);
+
+    Assert.isTrue(mr.nextPart());
+    Assert.areEqual(mr.getHeader("content-type"), "text/plain");
+    Assert.areIdentical(this.readPart(mr), "one");
+
+    Assert.isTrue(mr.nextPart());
+    Assert.areIdentical(mr.getHeaders().size(), 0);
+    Assert.areIdentical(this.readPart(mr), "two");
+
+    Assert.isFalse(mr.nextPart());
+    Assert.isFalse(mr.nextPart());
+  },
+
+  testUnreadPartsAreSkipped: function() {
+    let mr = this.reader(this.simple);
+
+    Assert.isTrue(mr.nextPart());
+    Assert.isTrue(mr.nextPart());
+    Assert.areIdentical(this.readPart(mr), "two");
+    Assert.isFalse(mr.nextPart());
+  },
+
+  testPreambleAndEpilogue: function() {
+    let data = ("This is the preamble. It mentions --XYZ, but not at the start of a line.\r\n"
+		+ "--XYZ  \r\n"
+		+ "\r\n"
+		+ "one\r\n"
+		+ "--XYZ--\r\n"
+		+ "This is the epilogue.\r\n"
+		+ "--XYZ\r\n"
+		+ "\r\n"
+		+ "not a part\r\n");
+
+    Assert.areIdentical(this.readAll(this.reader(data)).toSource(), ["one"].toSource());
+  },
+
+  testNearMissDelimiters: function() {
+    let body = "a\r\n--XY\r\nb\r--XYZ\nc\n--XYZ\r\n-XYZ--";
+    let data = "--XYZ\r\n\r\n" + body + "\r\n--XYZ--";
+
+    Assert.areIdentical(this.readAll(this.reader(data))[0], body);
+  },
+
+  testFoldedHeaders: function() {
+    let data = ("--XYZ\r\n"
+		+ "Content-Disposition: form-data;\r\n"
+		+ "\tname=\"field\";\r\n"
+		+ "  filename=\"file.txt\"\r\n"
+		+ "X-Other:value\r\n"
+		+ "\r\n"
+		+ "body\r\n"
+		+ "--XYZ--");
+    let mr = this.reader(data);
+
+    Assert.isTrue(mr.nextPart());
+    Assert.areIdentical(mr.getHeaders().size(), 2);
+    Assert.areEqual(mr.getHeader("Content-Disposition"),
+		    'form-data; name="field"; filename="file.txt"');
+    Assert.areEqual(mr.getHeader("x-other"), "value");
+    Assert.isNull(mr.getHeader("Content-Type"));
+    Assert.areIdentical(this.readPart(mr), "body");
+    Assert.isFalse(mr.nextPart());
+  },
+
+  testOneByteReads: function() {
+    let splits = [];
+
+    for (let i = 1; i < this.simple.length; ++i) {
+      splits.push(i);
+    }
+
+    Assert.areIdentical(this.readAll(this.reader(this.simple, splits)).toSource(),
+			["one", "two"].toSource());
+  },
+
+  testDelimiterAcrossReads: function() {
+    let data  = this.simple;
+    let start = data.indexOf("\r\n--XYZ\r\n");
+
+    // Split the data once at every offset inside the first delimiter
+    for (let i = start; i <= start + 9; ++i) {
+      Assert.areIdentical(this.readAll(this.reader(data, [i])).toSource(),
+			  ["one", "two"].toSource(),
+			  "Split at offset " + i + " failed");
+    }
+  },
+
+  testDelimiterAcrossBuffer: function() {
+    // The reader buffers 64 KiB, so move the delimiter across that boundary
+    for (let n = 65500; n <= 65540; ++n) {
+      let pad   = this.repeat("x", n);
+      let data  = "--XYZ\r\n\r\n" + pad + "\r\n--XYZ\r\n\r\nafter\r\n--XYZ--";
+      let parts = this.readAll(this.reader(data));
+
+      Assert.areIdentical(parts.length, 2, "Wrong number of parts for " + n + " bytes");
+      Assert.areIdentical(parts[0].length, n, "Wrong length of a " + n + " byte part");
+      Assert.areIdentical(parts[0], pad);
+      Assert.areIdentical(parts[1], "after");
+    }
+  },
+
+  testMissingCloseDelimiter: function() {
+    let self = this;
+
+    this.assertEOF(function() {
+		     self.readAll(self.reader("No delimiter at all\r\n"));
+		   }, "Preamble only");
+
+    this.assertEOF(function() {
+		     self.readAll(self.reader("--XYZ\r\nContent-Type: text/pl"));
+		   }, "Truncated headers");
+
+    this.assertEOF(function() {
+		     self.readAll(self.reader("--XYZ\r\n\r\nbody"));
+		   }, "Truncated body");
+
+    this.assertEOF(function() {
+		     self.readAll(self.reader("--XYZ\r\n\r\nbody\r\n--XYZ"));
+		   }, "Truncated delimiter");
+
+    this.assertEOF(function() {
+		     self.readAll(self.reader("--XYZ\r\n\r\nbody\r\n--XYZ\r\n"));
+		   }, "No close delimiter");
+  },
+
+  testFormData: function() {
+    // Parse via a data: URI, so the multipart/form-data parser is used
+    let data = ("--XYZ\r\n"
+		+ "Content-Disposition: form-data;\r\n"
+		+ " name=\"plain\"\r\n"
+		+ "\r\n"
+		+ "Plain text\r\n"
+		+ "--XYZ\r\n"
+		+ "Content-Disposition: form-data; name=\"encoded\"\r\n"
+		+ "Content-Transfer-Encoding: base64\r\n"
+		+ "\r\n"
+		+ "SGVsbG8s\r\n"
+		+ "IHdvcmxkIQ==\r\n"
+		+ "--XYZ--\r\n");
+    let form = new URI("data:multipart/form-data;boundary=XYZ,"
+		       + encodeURIComponent(data)).load();
+
+    Assert.areEqual(form.plain, "Plain text");
+    Assert.areEqual(form.encoded, "Hello, world!");
+  }
+}));
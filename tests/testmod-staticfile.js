@@ -0,0 +1,219 @@
+
+testRunner.add(new TestCase({
+  name: "testmod-staticfile",
+
+  init: function() {
+    // StaticFile is package-private, so use reflection
+    let cls = java.lang.Class.forName("org.esxx.request.StaticFile");
+
+    function javaArray(type, values) {
+      let array = java.lang.reflect.Array.newInstance(type, values.length);
+
+      for (let i = 0; i < values.length; ++i) {
+	array[i] = values[i];
+      }
+
+      return array;
+    }
+
+    let parse_ranges = cls.getDeclaredMethod("parseRanges",
+					     javaArray(java.lang.Class,
+						       [java.lang.String, java.lang.Long.TYPE]));
+    let create_response = cls.getDeclaredMethod("createResponse",
+						javaArray(java.lang.Class,
+							  [Packages.org.esxx.Request,
+							   java.lang.String,
+							   java.io.File,
+							   java.lang.String]));
+    parse_ranges.setAccessible(true);
+    create_response.setAccessible(true);
+
+    // Returns the ranges as a string like "[[0, 9]]", or null
+    this.parseRanges = function(range, length) {
+      let ranges = parse_ranges.invoke(null, javaArray(java.lang.Object,
+						       [range, new java.lang.Long(length)]));
+
+      if (ranges == null) {
+	return null;
+      }
+
+      let result = [];
+
+      for (let i = 0; i < ranges.size(); ++i) {
+	result.push([Number(ranges.get(i)[0]), Number(ranges.get(i)[1])]);
+      }
+
+      return result.toSource();
+    };
+
+    this.respond = function(method, headers) {
+      let request = new JavaAdapter(Packages.org.esxx.request.ScriptRequest, {
+	  getHeader: function(name) {
+	    return name in headers ? headers[name] : null;
+	  }
+	});
+
+      return create_response.invoke(null, javaArray(java.lang.Object,
+						     [request, method, this.file,
+						      "application/octet-stream"]));
+    };
+
+    this.body = function(response) {
+      let bos = new java.io.ByteArrayOutputStream();
+      response.writeResult(bos);
+      return bos;
+    };
+
+    // A 1000 byte file of "0123456789"s, modified at a whole second
+    this.file = java.io.File.createTempFile("esxx-testmod-staticfile", ".bin");
+    this.file.deleteOnExit();
+
+    let fos = new java.io.FileOutputStream(this.file);
+    try {
+      fos.write(new java.lang.String(new Array(101).join("0123456789")).getBytes("US-ASCII"));
+    }
+    finally {
+      fos.close();
+    }
+
+    this.file.setLastModified(Date.UTC(2015, 0, 1, 12, 0, 0));
+
+    let full = this.respond("GET", {});
+    this.etag         = String(full.getHeader("ETag"));
+    this.lastModified = String(full.getHeader("Last-Modified"));
+    this.earlier      = new Date(Date.UTC(2015, 0, 1, 11, 59, 59)).toUTCString();
+  },
+
+  testParseRanges: function() {
+    Assert.areIdentical(this.parseRanges("bytes=0-99", 1000), "[[0, 99]]");
+    Assert.areIdentical(this.parseRanges("bytes=900-", 1000), "[[900, 999]]");
+    Assert.areIdentical(this.parseRanges("bytes=990-2000", 1000), "[[990, 999]]");
+    Assert.areIdentical(this.parseRanges("bytes= 0-1 , 5-5,8-", 10), "[[0, 1], [5, 5], [8, 9]]");
+
+    // Unsatisfiable ranges are dropped
+    Assert.areIdentical(this.parseRanges("bytes=1000-", 1000), "[]");
+    Assert.areIdentical(this.parseRanges("bytes=1000-1000,0-0", 1000), "[[0, 0]]");
+    Assert.areIdentical(this.parseRanges("bytes=0-", 0), "[]");
+
+    // Invalid headers are ignored
+    Assert.isNull(this.parseRanges("items=0-1", 1000));
+    Assert.isNull(this.parseRanges("bytes=5-1", 1000));
+    Assert.isNull(this.parseRanges("bytes=abc", 1000));
+    Assert.isNull(this.parseRanges("bytes=0-1,x-", 1000));
+    Assert.isNull(this.parseRanges("bytes=--1", 1000));
+  },
+
+  testSuffixRanges: function() {
+    Assert.areIdentical(this.parseRanges("bytes=-100", 1000), "[[900, 999]]");
+    Assert.areIdentical(this.parseRanges("bytes=-1", 1000), "[[999, 999]]");
+    Assert.areIdentical(this.parseRanges("bytes=-5000", 1000), "[[0, 999]]");
+    Assert.areIdentical(this.parseRanges("bytes=-0", 1000), "[]");
+    Assert.areIdentical(this.parseRanges("bytes=-10", 0), "[]");
+  },
+
+  testRangeCap: function() {
+    let specs = [];
+
+    for (let i = 0; i < 16; ++i) {
+      specs.push(i * 10 + "-" + (i * 10 + 4));
+    }
+
+    Assert.areNotEqual(this.parseRanges("bytes=" + specs.join(","), 1000), null);
+    Assert.areIdentical(this.respond("GET", { Range: "bytes=" + specs.join(",") }).getStatus(), 206);
+
+    specs.push("900-");
+
+    Assert.isNull(this.parseRanges("bytes=" + specs.join(","), 1000));
+
+    let res = this.respond("GET", { Range: "bytes=" + specs.join(",") });
+    Assert.areIdentical(res.getStatus(), 200);
+    Assert.areEqual(res.getHeader("Content-Length"), "1000");
+  },
+
+  testSingleRange: function() {
+    let res = this.respond("GET", { Range: "bytes=15-24" });
+
+    Assert.areIdentical(res.getStatus(), 206);
+    Assert.areEqual(res.getHeader("Content-Range"), "bytes 15-24/1000");
+    Assert.areEqual(res.getHeader("Content-Length"), "10");
+    Assert.areEqual(res.getHeader("Accept-Ranges"), "bytes");
+    Assert.areEqual(this.body(res).toString("US-ASCII"), "5678901234");
+
+    // Only GET requests honor Range
+    Assert.areIdentical(this.respond("HEAD", { Range: "bytes=15-24" }).getStatus(), 200);
+  },
+
+  testUnsatisfiableRange: function() {
+    for each (let range in ["bytes=-0", "bytes=1000-", "bytes=2000-3000,5000-"]) {
+      let res = this.respond("GET", { Range: range });
+
+      Assert.areIdentical(res.getStatus(), 416, range + " was satisfiable");
+      Assert.areEqual(res.getHeader("Content-Range"), "bytes */1000");
+    }
+  },
+
+  testMultipleRanges: function() {
+    let res = this.respond("GET", { Range: "bytes=0-9, 995-2000, -3" });
+    let ct  = String(res.getContentType(false));
+
+    Assert.areIdentical(res.getStatus(), 206);
+    Assert.that(/^multipart\/byteranges; boundary=/.test(ct), ct);
+
+    // Content-Length must match the actual body exactly
+    let body = this.body(res);
+    Assert.areEqual(res.getHeader("Content-Length"), String(body.size()));
+
+    let mr = new Packages.org.esxx.util.MultipartReader(
+      new java.io.ByteArrayInputStream(body.toByteArray()), ct.replace(/.*boundary=/, ""));
+    let parts = [];
+
+    while (mr.nextPart()) {
+      let bos = new java.io.ByteArrayOutputStream();
+      Packages.org.esxx.util.IO.copyStream(mr.getPartInputStream(), bos);
+
+      Assert.areEqual(mr.getHeader("Content-Type"), "application/octet-stream");
+      parts.push(mr.getHeader("Content-Range") + ": " + bos.toString("US-ASCII"));
+    }
+
+    Assert.areIdentical(parts.toSource(), ["bytes 0-9/1000: 0123456789",
+					   "bytes 995-999/1000: 56789",
+					   "bytes 997-999/1000: 789"].toSource());
+  },
+
+  testIfRange: function() {
+    let range = "bytes=0-4";
+
+    Assert.areIdentical(this.respond("GET", { Range: range,
+					      "If-Range": this.etag }).getStatus(), 206);
+    Assert.areIdentical(this.respond("GET", { Range: range,
+					      "If-Range": this.lastModified }).getStatus(), 206);
+
+    // A changed validator means the whole file is sent
+    Assert.areIdentical(this.respond("GET", { Range: range,
+					      "If-Range": '"other"' }).getStatus(), 200);
+    Assert.areIdentical(this.respond("GET", { Range: range,
+					      "If-Range": this.earlier }).getStatus(), 200);
+
+    // Weak ETags can't be used with If-Range
+    Assert.areIdentical(this.respond("GET", { Range: range,
+					      "If-Range": "W/" + this.etag }).getStatus(), 200);
+  },
+
+  testConditional: function() {
+    Assert.areIdentical(this.respond("GET", { "If-None-Match": this.etag }).getStatus(), 304);
+    Assert.areIdentical(this.respond("GET", { "If-None-Match": '"x", ' + this.etag }).getStatus(), 304);
+    Assert.areIdentical(this.respond("GET", { "If-None-Match": "W/" + this.etag }).getStatus(), 304);
+    Assert.areIdentical(this.respond("HEAD", { "If-None-Match": "*" }).getStatus(), 304);
+    Assert.areIdentical(this.respond("GET", { "If-None-Match": '"other"' }).getStatus(), 200);
+
+    Assert.areIdentical(this.respond("GET", { "If-Modified-Since": this.lastModified }).getStatus(), 304);
+    Assert.areIdentical(this.respond("GET", { "If-Modified-Since": this.earlier }).getStatus(), 200);
+
+    // If-None-Match takes precedence over If-Modified-Since
+    Assert.areIdentical(this.respond("GET", { "If-None-Match": '"other"',
+					      "If-Modified-Since": this.lastModified }).getStatus(), 200);
+
+    // Only GET and HEAD requests can be "not modified"
+    Assert.areIdentical(this.respond("POST", { "If-None-Match": this.etag }).getStatus(), 200);
+  }
+}));